@@ -1,7 +1,68 @@
 package com.alexdl.sdng;
 
+import javax.annotation.Nullable;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * @param headless            whether to render into offscreen images instead of a window
+ * @param headlessFrames      how many frames the runner renders before it stops when headless, since there is no
+ *                            window to close
+ * @param width               width of the window, or of the offscreen images when headless
+ * @param height              height of the window, or of the offscreen images when headless
+ * @param indirectDrawing     whether to draw through indirect commands written into a buffer instead of direct draw calls,
+ *                            ignored on devices without {@code drawIndirectFirstInstance}
+ * @param cacheDirectory      where data that speeds up later runs, like compiled pipelines, is kept, or {@code null} to
+ *                            not keep anything between runs
+ * @param framesInFlight      how many frames the CPU may prepare ahead of the GPU, more smooths out hitches at the cost
+ *                            of latency
+ * @param presentMode         preferred present mode, falls back to {@link PresentMode#FIFO} when the surface does not
+ *                            support it
+ * @param targetFrameRate     frames per second to pace the render loop to, or 0 to render as fast as the present mode
+ *                            allows
+ * @param pipelineStatistics  whether to query vertex and fragment counts of every frame on top of its GPU timings,
+ *                            ignored on devices without {@code pipelineStatisticsQuery} and {@code inheritedQueries}
+ * @param gpuCulling          whether to cull instances against the view frustum in a compute pass instead of on the
+ *                            CPU, ignored without indirect drawing or when the graphics queue does not support compute
+ * @param lodErrors           errors that loaded meshes get a simplified level of detail for, relative to the radius of
+ *                            the mesh and in increasing order, or an empty list to only keep the full meshes
+ * @param lodPixelError       how many pixels on screen the error of the level of detail that is drawn may cover, or 0
+ *                            to always draw the full meshes
+ */
 public record Configuration(
-        boolean debuggingEnabled
+        boolean debuggingEnabled,
+        boolean headless,
+        int headlessFrames,
+        int width,
+        int height,
+        boolean indirectDrawing,
+        @Nullable Path cacheDirectory,
+        int framesInFlight,
+        PresentMode presentMode,
+        int targetFrameRate,
+        boolean pipelineStatistics,
+        boolean gpuCulling,
+        List<Float> lodErrors,
+        float lodPixelError
 ) {
-
+    public Configuration {
+        if (headless && headlessFrames < 1) {
+            throw new IllegalArgumentException("A headless run has to render at least one frame, got " + headlessFrames);
+        }
+        if (framesInFlight < 1) {
+            throw new IllegalArgumentException("At least one frame has to be in flight, got " + framesInFlight);
+        }
+        if (targetFrameRate < 0) {
+            throw new IllegalArgumentException("Target frame rate can't be negative, got " + targetFrameRate);
+        }
+        for (int i = 0; i < lodErrors.size(); i++) {
+            if (lodErrors.get(i) <= 0 || (i > 0 && lodErrors.get(i) <= lodErrors.get(i - 1))) {
+                throw new IllegalArgumentException("Level of detail errors have to be positive and increasing, got " + lodErrors);
+            }
+        }
+        if (lodPixelError < 0) {
+            throw new IllegalArgumentException("Level of detail pixel error can't be negative, got " + lodPixelError);
+        }
+        lodErrors = List.copyOf(lodErrors);
+    }
 }
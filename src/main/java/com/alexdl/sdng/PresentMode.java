@@ -0,0 +1,13 @@
+package com.alexdl.sdng;
+
+/**
+ * How finished frames are handed to the display, trading latency against tearing and wasted work.
+ */
+public enum PresentMode {
+    /** Waits for vertical blank and queues frames, never tears. Always available. */
+    FIFO,
+    /** Waits for vertical blank but replaces the queued frame with the newest one, lowest latency without tearing. */
+    MAILBOX,
+    /** Presents right away, lowest latency but may tear. */
+    IMMEDIATE
+}
@@ -2,13 +2,20 @@ package com.alexdl.sdng;
 
 import com.alexdl.sdng.backend.Disposable;
 import com.alexdl.sdng.backend.vulkan.Model;
+import com.alexdl.sdng.occlusion.Occluder;
 import org.joml.Matrix4f;
+import org.joml.Matrix4fc;
 
 import javax.annotation.Nonnull;
 
 public interface Renderer extends Disposable {
     void queueModel(@Nonnull Model model);
 
+    /**
+     * Queues geometry that hides the models behind it for the next frame, without drawing it.
+     */
+    void queueOccluder(@Nonnull Occluder occluder, @Nonnull Matrix4fc transform);
+
     void draw();
 
     void updatePushConstant(@Nonnull Matrix4f transform);
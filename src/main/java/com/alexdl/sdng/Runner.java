@@ -1,36 +1,58 @@
 package com.alexdl.sdng;
 
+import com.alexdl.sdng.profiling.FramePhase;
+import com.alexdl.sdng.profiling.FrameProfiler;
 import org.lwjgl.glfw.GlfwWindow;
 
+import javax.annotation.Nullable;
 import javax.inject.Inject;
 
 import static org.lwjgl.glfw.GLFW.*;
 
 public class Runner {
     private final Game game;
-    private final GlfwWindow window;
+    private final @Nullable GlfwWindow window;
+    private final Configuration configuration;
     private final Disposables disposables;
+    private final FrameProfiler frameProfiler;
 
+    /**
+     * @param window the window to poll events of and run until it is closed, or {@code null} to run headless for the
+     *               configured number of frames without touching GLFW
+     */
     @Inject
-    public Runner(Game game, GlfwWindow window, Disposables disposables) {
+    public Runner(Game game, @Nullable GlfwWindow window, Configuration configuration, Disposables disposables, FrameProfiler frameProfiler) {
         this.game = game;
         this.window = window;
+        this.configuration = configuration;
         this.disposables = disposables;
+        this.frameProfiler = frameProfiler;
     }
 
     public void run() {
         game.init();
+        long startTime = System.nanoTime();
         double lastTime = 0.0;
-        while(!glfwWindowShouldClose(window.address())) {
-            glfwPollEvents();
-            double now = glfwGetTime();
+        int frames = 0;
+        while(window != null ? !glfwWindowShouldClose(window.address()) : frames < configuration.headlessFrames()) {
+            long phaseTime = System.nanoTime();
+            if (window != null) {
+                glfwPollEvents();
+            }
+            phaseTime = frameProfiler.lap(FramePhase.EVENT_POLLING, phaseTime);
+            double now = window != null ? glfwGetTime() : (System.nanoTime() - startTime) / 1e9;
             double deltaTime = now - lastTime;
             lastTime = now;
             game.update(deltaTime);
+            frameProfiler.lap(FramePhase.UPDATE, phaseTime);
             game.render();
+            frames = frames + 1;
         }
+        frameProfiler.log();
         game.dispose();
         disposables.dispose();
-        window.dispose();
+        if (window != null) {
+            window.dispose();
+        }
     }
 }
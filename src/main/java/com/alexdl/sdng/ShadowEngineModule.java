@@ -5,12 +5,16 @@ import com.alexdl.sdng.backend.ResourceAssetLoader;
 import com.alexdl.sdng.backend.ResourceFileLoader;
 import com.alexdl.sdng.backend.vulkan.VulkanRenderer;
 import com.alexdl.sdng.logging.Logger;
+import com.alexdl.sdng.profiling.FrameProfiler;
 import dagger.Binds;
+import dagger.Lazy;
 import dagger.Module;
 import dagger.Provides;
 import org.lwjgl.glfw.GlfwWindow;
 
 import javax.inject.Singleton;
+import java.nio.file.Path;
+import java.util.List;
 
 import static org.lwjgl.glfw.GLFW.*;
 
@@ -18,10 +22,10 @@ import static org.lwjgl.glfw.GLFW.*;
 public abstract class ShadowEngineModule {
     @Provides
     @Singleton
-    static GlfwWindow provideGlfwWindow() {
+    static GlfwWindow provideGlfwWindow(Configuration configuration) {
         glfwInit();
         glfwWindowHint(GLFW_CLIENT_API, GLFW_NO_API);
-        long address = glfwCreateWindow(800, 600, "Vulkan Test", 0, 0);
+        long address = glfwCreateWindow(configuration.width(), configuration.height(), "Vulkan Test", 0, 0);
         return new GlfwWindow(address);
     }
 
@@ -41,27 +45,39 @@ public abstract class ShadowEngineModule {
     }
 
     @Provides
-    static ResourceAssetLoader provideResourceAssetLoader(VulkanRenderer vulkanRenderer, ResourceFileLoader resourceFileLoader, Disposables disposables) {
-        return new ResourceAssetLoader(vulkanRenderer, resourceFileLoader, disposables, new Logger(ResourceAssetLoader.class));
+    static ResourceAssetLoader provideResourceAssetLoader(VulkanRenderer vulkanRenderer, ResourceFileLoader resourceFileLoader, Disposables disposables, Configuration configuration) {
+        return new ResourceAssetLoader(vulkanRenderer, resourceFileLoader, disposables, configuration, new Logger(ResourceAssetLoader.class));
     }
 
     @Provides
     @Singleton
-    static VulkanRenderer provideVulkanRenderer(GlfwWindow window, Configuration configuration, Disposables disposables) {
-        var renderer = new VulkanRenderer(window, configuration);
+    static VulkanRenderer provideVulkanRenderer(Lazy<GlfwWindow> window, Configuration configuration, Disposables disposables, FrameProfiler frameProfiler) {
+        var renderer = configuration.headless()
+                ? new VulkanRenderer(configuration, frameProfiler)
+                : new VulkanRenderer(window.get(), configuration, frameProfiler);
         disposables.add(renderer);
         return renderer;
     }
 
+    @Provides
+    @Singleton
+    static FrameProfiler provideFrameProfiler() {
+        return new FrameProfiler();
+    }
+
     @Provides
     static Configuration provideConfiguration() {
-        return new Configuration(true);
+        return new Configuration(true, false, 0, 800, 600, true, Path.of("cache"), 2, PresentMode.MAILBOX, 0, false, false,
+                List.of(0.01f, 0.04f, 0.16f), 1.0f);
     }
 
 
     @Provides
-    static Runner provideRunner(Game game, GlfwWindow window, Disposables disposables) {
-        return new Runner(game, window, disposables);
+    static Runner provideRunner(Game game, Lazy<GlfwWindow> window, Configuration configuration, Disposables disposables, FrameProfiler frameProfiler) {
+        // Headless runs must not touch GLFW at all, there may not even be a display to initialize it with
+        return configuration.headless()
+                ? new Runner(game, null, configuration, disposables, frameProfiler)
+                : new Runner(game, window.get(), configuration, disposables, frameProfiler);
     }
 
     @Binds
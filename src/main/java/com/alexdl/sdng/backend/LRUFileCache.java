@@ -3,6 +3,7 @@ package com.alexdl.sdng.backend;
 import com.alexdl.sdng.File;
 import com.alexdl.sdng.FileCache;
 import com.alexdl.sdng.FileHandle;
+import com.alexdl.sdng.profiling.FileCacheEvictionEvent;
 
 import java.util.LinkedHashMap;
 import java.util.Map;
@@ -17,7 +18,16 @@ public class LRUFileCache extends LinkedHashMap<FileHandle, File> implements Fil
 
     @Override
     protected boolean removeEldestEntry(Map.Entry<FileHandle, File> eldest) {
-        return super.size() > maxSize;
+        boolean evict = super.size() > maxSize;
+        if (evict) {
+            FileCacheEvictionEvent event = new FileCacheEvictionEvent();
+            if (event.shouldCommit()) {
+                event.uri = eldest.getKey().uri();
+                event.bytes = eldest.getValue().dataBuffer().capacity();
+                event.commit();
+            }
+        }
+        return evict;
     }
 
     @Override
@@ -1,16 +1,24 @@
 package com.alexdl.sdng.backend;
 
 import com.alexdl.sdng.AssetLoader;
+import com.alexdl.sdng.Configuration;
 import com.alexdl.sdng.Disposables;
+import com.alexdl.sdng.File;
 import com.alexdl.sdng.FileHandle;
+import com.alexdl.sdng.backend.vulkan.Bounds;
 import com.alexdl.sdng.backend.vulkan.Material;
 import com.alexdl.sdng.backend.vulkan.Mesh;
 import com.alexdl.sdng.backend.vulkan.MeshData;
 import com.alexdl.sdng.backend.vulkan.Model;
 import com.alexdl.sdng.backend.vulkan.Texture;
+import com.alexdl.sdng.backend.vulkan.UploadBatch;
 import com.alexdl.sdng.backend.vulkan.VulkanRenderer;
 import com.alexdl.sdng.backend.vulkan.structs.VertexDataStruct;
+import com.alexdl.sdng.geometry.MeshOptimizer;
+import com.alexdl.sdng.geometry.MeshSimplifier;
 import com.alexdl.sdng.logging.Logger;
+import com.alexdl.sdng.profiling.ModelLoadEvent;
+import com.alexdl.sdng.profiling.TextureLoadEvent;
 import org.joml.Matrix4f;
 import org.joml.Vector4f;
 import org.lwjgl.BufferUtils;
@@ -27,34 +35,53 @@ import org.lwjgl.assimp.AIVector3D;
 import org.lwjgl.system.MemoryStack;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import javax.inject.Inject;
 import java.nio.ByteBuffer;
 import java.nio.IntBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 import static org.lwjgl.assimp.Assimp.*;
 import static org.lwjgl.system.MemoryUtil.*;
 
 public class ResourceAssetLoader implements AssetLoader {
+    /** Position, color and texture coordinates, as laid out by parseMesh */
+    private static final int VERTEX_FLOATS = 8;
+    /** A level of detail is only kept when it has at most this fraction of the indices of the previous one */
+    private static final float MAX_LOD_INDEX_RATIO = 0.8f;
+    /** Size of the FIFO vertex cache the statistics are simulated with */
+    private static final int VERTEX_CACHE_SIZE = 16;
+    /** How much worse the vertex cache may get to draw outward facing triangles first */
+    private static final float OVERDRAW_THRESHOLD = 1.05f;
+
     private final VulkanRenderer renderer;
     private final ResourceFileLoader fileLoader;
     private final Disposables disposables;
+    private final Configuration configuration;
     private final Logger logger;
 
     @Inject
-    public ResourceAssetLoader(VulkanRenderer renderer, ResourceFileLoader fileLoader, Disposables disposables, Logger logger) {
+    public ResourceAssetLoader(VulkanRenderer renderer, ResourceFileLoader fileLoader, Disposables disposables, Configuration configuration, Logger logger) {
         this.renderer = renderer;
         this.fileLoader = fileLoader;
         this.disposables = disposables;
+        this.configuration = configuration;
         this.logger = logger;
     }
 
     @Nonnull
     public Model loadModel(@Nonnull FileHandle resourceHandle) {
+        long loadStartTime = System.nanoTime();
+        ModelLoadEvent event = new ModelLoadEvent();
+        event.begin();
         logger.info("-----------------");
         logger.info("Loading model: %s", resourceHandle);
         AIScene aiScene = loadAssimpScene(resourceHandle);
+        // Everything the model needs on the device is uploaded in one go
+        UploadBatch uploadBatch = renderer.beginUploadBatch();
 
         int numMaterials = aiScene.mNumMaterials();
         PointerBuffer aiMaterials = aiScene.mMaterials();
@@ -62,7 +89,7 @@ public class ResourceAssetLoader implements AssetLoader {
         for (int i = 0; i < numMaterials; i++) {
             logger.info("Parsing material %d", i);
             AIMaterial aiMaterial = AIMaterial.create(aiMaterials.get(i));
-            Material material = parseMaterial(aiMaterial);
+            Material material = parseMaterial(aiMaterial, uploadBatch);
             materials.add(material);
         }
 
@@ -76,20 +103,44 @@ public class ResourceAssetLoader implements AssetLoader {
         int numMeshes = aiScene.mNumMeshes();
         PointerBuffer aiMeshes = aiScene.mMeshes();
         List<Mesh> meshes = new ArrayList<>(numMeshes);
+        long vertices = 0;
+        long indices = 0;
+        long storedIndices = 0;
         for (int i = 0; i < numMeshes; i++) {
             logger.info("Parsing mesh %d", i);
             AIMesh aiMesh = AIMesh.create(aiMeshes.get(i));
-            Mesh mesh = parseMesh(aiMesh, materials);
+            Mesh mesh = parseMesh(aiMesh, materials, uploadBatch);
             meshes.add(mesh);
+            vertices = vertices + aiMesh.mNumVertices();
+            indices = indices + mesh.data().getIndexCount();
+            for (int lod = 0; lod < mesh.data().getLodCount(); lod++) {
+                storedIndices = storedIndices + mesh.data().getIndexCount(lod);
+            }
         }
 
         aiReleaseImport(aiScene);
+        long uploadStartTime = System.nanoTime();
+        CompletableFuture<Void> uploads = uploadBatch.submit();
+
+        if (event.isEnabled()) {
+            event.uri = resourceHandle.uri();
+            event.meshes = meshes.size();
+            event.materials = materials.size();
+            event.vertices = vertices;
+            event.indices = indices;
+            event.geometryBytes = vertices * VERTEX_FLOATS * Float.BYTES + storedIndices * Integer.BYTES;
+            event.parseTime = uploadStartTime - loadStartTime;
+            uploads.thenRun(() -> {
+                event.uploadTime = System.nanoTime() - uploadStartTime;
+                event.commit();
+            });
+        }
 
         return new Model(meshes, new Matrix4f().identity());
     }
 
     @Nonnull
-    private Mesh parseMesh(AIMesh aiMesh, List<Material> materials) {
+    private Mesh parseMesh(AIMesh aiMesh, List<Material> materials, UploadBatch uploadBatch) {
         Material material;
         int materialIndex = aiMesh.mMaterialIndex();
         if (materialIndex >= 0 && materialIndex < materials.size()) {
@@ -135,29 +186,75 @@ public class ResourceAssetLoader implements AssetLoader {
 
         int numFaces = aiMesh.mNumFaces();
         AIFace.Buffer faces = aiMesh.mFaces();
-        IntBuffer indexBuffer = BufferUtils.createIntBuffer(numFaces * 3);
+        int[] indices = new int[numFaces * 3];
+        int indexCount = 0;
         for (int i = 0; i < faces.limit(); i++) {
             AIFace aiFace = faces.get(i);
             // Only process triangles
             if (aiFace.mNumIndices() == 3) {
                 IntBuffer aiIndices = aiFace.mIndices();
-                indexBuffer.put(aiIndices.get(0));
-                indexBuffer.put(aiIndices.get(1));
-                indexBuffer.put(aiIndices.get(2));
+                indices[indexCount++] = aiIndices.get(0);
+                indices[indexCount++] = aiIndices.get(1);
+                indices[indexCount++] = aiIndices.get(2);
             }
         }
+        indices = Arrays.copyOf(indices, indexCount);
+        logger.info("Mesh has %d indices", indexCount);
+
+        Bounds bounds = Bounds.ofPositions(vertices, VERTEX_FLOATS);
+        List<int[]> lodIndices = new ArrayList<>();
+        List<MeshData.Lod> lods = new ArrayList<>();
+        lodIndices.add(indices);
+        lods.add(new MeshData.Lod(0, indices.length, 0));
+        for (float relativeError : configuration.lodErrors()) {
+            // Always simplified from the full mesh, so that the errors of the levels don't add up
+            MeshSimplifier.Simplification simplification = MeshSimplifier.simplify(vertices, VERTEX_FLOATS, indices,
+                    0, relativeError * bounds.radius());
+            int lodIndexCount = simplification.indices().length;
+            MeshData.Lod previous = lods.get(lods.size() - 1);
+            if (lodIndexCount == 0 || lodIndexCount > previous.indexCount() * MAX_LOD_INDEX_RATIO) {
+                continue;
+            }
+            lodIndices.add(simplification.indices());
+            lods.add(new MeshData.Lod(previous.firstIndex() + previous.indexCount(), lodIndexCount, simplification.error()));
+            logger.info("Mesh has level of detail %d with %d indices and an error of %f", lods.size() - 1,
+                    lodIndexCount, simplification.error());
+        }
+
+        // Every level is reordered on its own, each is drawn without the others
+        MeshOptimizer.VertexCacheStatistics cacheBefore = MeshOptimizer.analyzeVertexCache(indices, numVertices, VERTEX_CACHE_SIZE);
+        for (int level = 0; level < lodIndices.size(); level++) {
+            int[] levelIndices = MeshOptimizer.optimizeVertexCache(lodIndices.get(level), numVertices);
+            lodIndices.set(level, MeshOptimizer.optimizeOverdraw(levelIndices, vertices, VERTEX_FLOATS, OVERDRAW_THRESHOLD));
+        }
+        MeshOptimizer.VertexCacheStatistics cacheAfter = MeshOptimizer.analyzeVertexCache(lodIndices.get(0), numVertices, VERTEX_CACHE_SIZE);
+        logger.info("Mesh vertex cache ACMR %.3f -> %.3f, ATVR %.3f -> %.3f",
+                cacheBefore.acmr(), cacheAfter.acmr(), cacheBefore.atvr(), cacheAfter.atvr());
+
+        // The simplified levels only use vertices of the full mesh, so its order decides the order of the vertices
+        int[] vertexRemap = MeshOptimizer.optimizeVertexFetch(lodIndices.get(0), numVertices);
+        vertices = MeshOptimizer.remapVertices(vertices, VERTEX_FLOATS, vertexRemap);
+        for (int level = 0; level < lodIndices.size(); level++) {
+            lodIndices.set(level, MeshOptimizer.remapIndices(lodIndices.get(level), vertexRemap));
+        }
+
+        MeshData.Lod lastLod = lods.get(lods.size() - 1);
+        IntBuffer indexBuffer = BufferUtils.createIntBuffer(lastLod.firstIndex() + lastLod.indexCount());
+        for (int[] levelIndices : lodIndices) {
+            indexBuffer.put(levelIndices);
+        }
         indexBuffer.flip();
-        logger.info("Mesh has %d indices", indexBuffer.limit());
 
         VertexDataStruct.Buffer vertexBuffer = new VertexDataStruct.Buffer(vertices);
 
         MeshData meshData = new MeshData(
-                renderer.getGraphicsQueue(),
-                renderer.getGraphicsCommandPool(),
-                vertexBuffer, indexBuffer
+                renderer.getGeometryPool(),
+                vertexBuffer, indexBuffer,
+                lods,
+                uploadBatch
         );
 
-        Mesh mesh = new Mesh(meshData, material);
+        Mesh mesh = new Mesh(meshData, material, bounds);
         vertexBuffer.dispose();
         disposables.add(meshData);
 
@@ -165,7 +262,7 @@ public class ResourceAssetLoader implements AssetLoader {
     }
 
     @Nonnull
-    private Material parseMaterial(@Nonnull AIMaterial aiMaterial) {
+    private Material parseMaterial(@Nonnull AIMaterial aiMaterial, @Nonnull UploadBatch uploadBatch) {
         try (MemoryStack stack = MemoryStack.stackPush()) {
             AIColor4D color = AIColor4D.calloc(stack);
             AIString path = AIString.calloc(stack);
@@ -176,7 +273,8 @@ public class ResourceAssetLoader implements AssetLoader {
             Texture diffuseTexture = null;
             if (!diffuseTexturePath.isEmpty()) {
                 FileHandle resource = new FileHandle(diffuseTexturePath);
-                diffuseTexture = loadTexture(resource);
+                logger.info("Loading texture: " + resource);
+                diffuseTexture = createTexture(resource, uploadBatch);
                 logger.info("Material has diffuse texture: %s", resource);
             }
 
@@ -194,7 +292,33 @@ public class ResourceAssetLoader implements AssetLoader {
     @Nonnull
     public Texture loadTexture(@Nonnull FileHandle resourceHandle) {
         logger.info("Loading texture: " + resourceHandle);
-        return renderer.createTexture(fileLoader.loadFile(resourceHandle));
+        return createTexture(resourceHandle, null);
+    }
+
+    /**
+     * @param uploadBatch batch to upload the pixels with, or {@code null} to upload them on their own right away
+     */
+    @Nonnull
+    private Texture createTexture(@Nonnull FileHandle resourceHandle, @Nullable UploadBatch uploadBatch) {
+        TextureLoadEvent event = new TextureLoadEvent();
+        event.begin();
+        File file = fileLoader.loadFile(resourceHandle);
+        long parseStartTime = System.nanoTime();
+        Texture texture = uploadBatch != null
+                ? renderer.createTexture(file, uploadBatch)
+                : renderer.createTexture(file);
+
+        if (event.isEnabled()) {
+            long uploadStartTime = System.nanoTime();
+            event.uri = resourceHandle.uri();
+            event.fileBytes = file.dataBuffer().capacity();
+            event.parseTime = uploadStartTime - parseStartTime;
+            texture.residency().thenRun(() -> {
+                event.uploadTime = System.nanoTime() - uploadStartTime;
+                event.commit();
+            });
+        }
+        return texture;
     }
 
     @Nonnull
@@ -4,6 +4,7 @@ import com.alexdl.sdng.File;
 import com.alexdl.sdng.FileCache;
 import com.alexdl.sdng.FileHandle;
 import com.alexdl.sdng.FileLoader;
+import com.alexdl.sdng.profiling.FileLoadEvent;
 import org.lwjgl.BufferUtils;
 
 import javax.annotation.Nonnull;
@@ -23,8 +24,12 @@ public class ResourceFileLoader implements FileLoader {
     @Nonnull
     @Override
     public File loadFile(@Nonnull FileHandle resourceHandle) {
+        FileLoadEvent event = new FileLoadEvent();
+        event.begin();
         if (cache.containsKey(resourceHandle)) {
-            return cache.get(resourceHandle);
+            File file = cache.get(resourceHandle);
+            commitEvent(event, file, true);
+            return file;
         }
 
         InputStream fileStream = ResourceAssetLoader.class.getClassLoader().getResourceAsStream(resourceHandle.uri());
@@ -37,9 +42,19 @@ public class ResourceFileLoader implements FileLoader {
             fileStream.close();
             File file = new File(resourceHandle, rawDataBuffer.asReadOnlyBuffer());
             cache.put(file);
+            commitEvent(event, file, false);
             return file;
         } catch (IOException e) {
             throw new RuntimeException("Could not read as a resource into a buffer", e);
         }
     }
+
+    private static void commitEvent(FileLoadEvent event, File file, boolean cacheHit) {
+        if (event.shouldCommit()) {
+            event.uri = file.handle().uri();
+            event.bytes = file.dataBuffer().capacity();
+            event.cacheHit = cacheHit;
+            event.commit();
+        }
+    }
 }
@@ -0,0 +1,68 @@
+package com.alexdl.sdng.backend.vulkan;
+
+import org.joml.Vector3f;
+import org.joml.Vector3fc;
+
+import javax.annotation.Nonnull;
+import java.util.List;
+
+/**
+ * An axis-aligned bounding box together with a bounding sphere around the same geometry, in the space of that geometry.
+ * The sphere is the cheaper test and rejects most of what is far away, the box is tighter for what is left.
+ *
+ * @param min    minimum corner of the box
+ * @param max    maximum corner of the box
+ * @param center center of the sphere, which is also the center of the box
+ * @param radius radius of the sphere
+ */
+public record Bounds(Vector3fc min, Vector3fc max, Vector3fc center, float radius) {
+    public static final Bounds EMPTY = new Bounds(new Vector3f(), new Vector3f(), new Vector3f(), 0);
+
+    /**
+     * @param positions vertex data with the position in the first three floats of every vertex
+     * @param stride    number of floats per vertex
+     */
+    public static @Nonnull Bounds ofPositions(@Nonnull float[] positions, int stride) {
+        int vertexCount = positions.length / stride;
+        if (vertexCount == 0) {
+            return EMPTY;
+        }
+        Vector3f min = new Vector3f(Float.POSITIVE_INFINITY);
+        Vector3f max = new Vector3f(Float.NEGATIVE_INFINITY);
+        for (int i = 0; i < vertexCount; i++) {
+            int offset = i * stride;
+            min.set(Math.min(min.x, positions[offset]), Math.min(min.y, positions[offset + 1]), Math.min(min.z, positions[offset + 2]));
+            max.set(Math.max(max.x, positions[offset]), Math.max(max.y, positions[offset + 1]), Math.max(max.z, positions[offset + 2]));
+        }
+        Vector3f center = new Vector3f(min).add(max).mul(0.5f);
+
+        // Around the box center, which is tighter than half the box diagonal for anything but the box's corners
+        float radiusSquared = 0;
+        for (int i = 0; i < vertexCount; i++) {
+            int offset = i * stride;
+            radiusSquared = Math.max(radiusSquared, center.distanceSquared(positions[offset], positions[offset + 1], positions[offset + 2]));
+        }
+        return new Bounds(min, max, center, (float) Math.sqrt(radiusSquared));
+    }
+
+    /**
+     * @return bounds that enclose all the given ones
+     */
+    public static @Nonnull Bounds union(@Nonnull List<Bounds> bounds) {
+        if (bounds.isEmpty()) {
+            return EMPTY;
+        }
+        Vector3f min = new Vector3f(Float.POSITIVE_INFINITY);
+        Vector3f max = new Vector3f(Float.NEGATIVE_INFINITY);
+        for (Bounds other : bounds) {
+            min.min(other.min);
+            max.max(other.max);
+        }
+        Vector3f center = new Vector3f(min).add(max).mul(0.5f);
+        float radius = 0;
+        for (Bounds other : bounds) {
+            radius = Math.max(radius, center.distance(other.center) + other.radius);
+        }
+        return new Bounds(min, max, center, radius);
+    }
+}
@@ -0,0 +1,45 @@
+package com.alexdl.sdng.backend.vulkan;
+
+import java.util.Arrays;
+
+/**
+ * Every value that ends up baked into a recorded command buffer, flattened into a list of longs.
+ * <p>
+ * Two equal signatures record identical commands, so a command buffer recorded for one signature can be submitted
+ * again for as long as the signature does not change. The values are compared exactly rather than hashed, since a
+ * collision would silently draw a stale frame.
+ */
+public class CommandSignature {
+    private long[] values;
+    private int length;
+
+    public CommandSignature() {
+        this.values = new long[64];
+        this.length = 0;
+    }
+
+    public void clear() {
+        length = 0;
+    }
+
+    public CommandSignature add(long value) {
+        if (length == values.length) {
+            values = Arrays.copyOf(values, values.length * 2);
+        }
+        values[length] = value;
+        length = length + 1;
+        return this;
+    }
+
+    public boolean matches(CommandSignature other) {
+        return Arrays.equals(values, 0, length, other.values, 0, other.length);
+    }
+
+    public void copyFrom(CommandSignature other) {
+        if (values.length < other.length) {
+            values = new long[other.values.length];
+        }
+        System.arraycopy(other.values, 0, values, 0, other.length);
+        length = other.length;
+    }
+}
@@ -0,0 +1,13 @@
+package com.alexdl.sdng.backend.vulkan;
+
+/**
+ * Counters of a single frame's culling, either against the view frustum or against the occluders.
+ *
+ * @param modelsDrawn  models that were passed on to be drawn
+ * @param modelsCulled models that were culled as a whole
+ * @param meshesDrawn  meshes of the drawn models that were passed on to be drawn
+ * @param meshesCulled meshes that were culled, including all meshes of culled models
+ */
+public record CullingStatistics(int modelsDrawn, int modelsCulled, int meshesDrawn, int meshesCulled) {
+    public static final CullingStatistics EMPTY = new CullingStatistics(0, 0, 0, 0);
+}
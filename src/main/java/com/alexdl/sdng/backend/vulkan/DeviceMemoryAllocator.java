@@ -0,0 +1,297 @@
+package com.alexdl.sdng.backend.vulkan;
+
+import com.alexdl.sdng.backend.Disposable;
+import com.alexdl.sdng.profiling.DeviceMemoryEvent;
+import com.alexdl.sdng.profiling.ResourceAllocationEvent;
+import org.lwjgl.vulkan.*;
+
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.lwjgl.vulkan.VK10.*;
+
+/**
+ * Sub-allocates buffer and image memory from a few large {@link VkDeviceMemory} blocks per memory type instead of
+ * calling {@code vkAllocateMemory} for every resource, which is slow and runs into {@code maxMemoryAllocationCount}.
+ * <p>
+ * Linear resources (buffers, linear images) and optimal images never share a block, so {@code bufferImageGranularity}
+ * can not be violated between neighbours. Host visible blocks are mapped once for their whole lifetime, since a memory
+ * object can only be mapped once at a time, so the mapped address of an allocation has to be taken from here instead of
+ * mapping its memory.
+ * <p>
+ * Blocks that become empty are returned to the driver, except for one spare per memory type and kind of resource,
+ * which keeps a resource that is created and destroyed over and over from allocating a new block every time.
+ * <p>
+ * There is one allocator per logical device, so the static helpers in {@link VulkanUtils} can reach it from just the
+ * device.
+ */
+public class DeviceMemoryAllocator implements Disposable {
+    private static final long MAX_BLOCK_SIZE = 64L * 1024 * 1024;
+    private static final Map<Long, DeviceMemoryAllocator> ALLOCATORS = new ConcurrentHashMap<>();
+
+    private final VkDevice logicalDevice;
+    private final VkPhysicalDeviceMemoryProperties memoryProperties;
+    private final List<Block> blocks;
+    // Resource handle -> allocation, so that resources can be freed with just their handle
+    private final Map<Long, Allocation> allocations;
+
+    public record Allocation(Block block, long offset, long size) {
+        public @Nonnull VkDeviceMemory memory() {
+            return block.memory;
+        }
+
+        /**
+         * @return address the allocation is mapped at, or 0 if its memory is not host visible
+         */
+        public long mappedAddress() {
+            return block.mappedAddress == 0 ? 0 : block.mappedAddress + offset;
+        }
+    }
+
+    /**
+     * @param blockBytes     size of all the blocks allocated from the heap
+     * @param usedBytes      bytes of those blocks handed out to resources, including alignment padding
+     * @param blockCount     number of {@link VkDeviceMemory} objects allocated from the heap
+     * @param resourceCount  number of resources living in those blocks
+     */
+    public record HeapUsage(int heapIndex, long heapSize, long blockBytes, long usedBytes, int blockCount, int resourceCount) {
+    }
+
+    public static final class Block {
+        private final VkDeviceMemory memory;
+        private final int memoryTypeIndex;
+        private final boolean linear;
+        private final boolean dedicated;
+        private final RangeAllocator ranges;
+        private final long mappedAddress;
+        private int resourceCount;
+
+        private Block(VkDeviceMemory memory, int memoryTypeIndex, boolean linear, boolean dedicated, long size, long mappedAddress) {
+            this.memory = memory;
+            this.memoryTypeIndex = memoryTypeIndex;
+            this.linear = linear;
+            this.dedicated = dedicated;
+            this.ranges = new RangeAllocator(size);
+            this.mappedAddress = mappedAddress;
+            this.resourceCount = 0;
+        }
+    }
+
+    private DeviceMemoryAllocator(VkDevice logicalDevice) {
+        this.logicalDevice = logicalDevice;
+        this.memoryProperties = VkPhysicalDeviceMemoryProperties.calloc();
+        vkGetPhysicalDeviceMemoryProperties(logicalDevice.getPhysicalDevice(), memoryProperties);
+        this.blocks = new ArrayList<>();
+        this.allocations = new HashMap<>();
+    }
+
+    public static @Nonnull DeviceMemoryAllocator forDevice(@Nonnull VkDevice logicalDevice) {
+        return ALLOCATORS.computeIfAbsent(logicalDevice.address(), address -> new DeviceMemoryAllocator(logicalDevice));
+    }
+
+    /**
+     * Frees every block of the device's allocator, has to be called before the device is destroyed.
+     */
+    public static void disposeForDevice(@Nonnull VkDevice logicalDevice) {
+        DeviceMemoryAllocator allocator = ALLOCATORS.remove(logicalDevice.address());
+        if (allocator != null) {
+            allocator.dispose();
+        }
+    }
+
+    public synchronized @Nonnull Allocation allocateForBuffer(@Nonnull VkBuffer buffer, int memoryFlags) {
+        try (VulkanSession vk = new VulkanSession()) {
+            VkMemoryRequirements requirements = vk.getBufferMemoryRequirements(logicalDevice, buffer);
+            Allocation allocation = allocate(requirements, memoryFlags, true);
+            vk.bindBufferMemory(logicalDevice, buffer, allocation.memory(), allocation.offset());
+            allocations.put(buffer.address(), allocation);
+            commitResourceAllocationEvent(false, requirements, allocation);
+            return allocation;
+        }
+    }
+
+    public synchronized @Nonnull Allocation allocateForImage(@Nonnull VkImage image, int memoryFlags, boolean linearTiling) {
+        try (VulkanSession vk = new VulkanSession()) {
+            VkMemoryRequirements requirements = vk.getImageMemoryRequirements(logicalDevice, image);
+            Allocation allocation = allocate(requirements, memoryFlags, linearTiling);
+            vk.bindImageMemory(logicalDevice, image, allocation.memory(), allocation.offset());
+            allocations.put(image.address(), allocation);
+            commitResourceAllocationEvent(true, requirements, allocation);
+            return allocation;
+        }
+    }
+
+    /**
+     * @return the allocation bound to a buffer or image handle created through this allocator
+     */
+    public synchronized @Nonnull Allocation allocationOf(long resourceHandle) {
+        Allocation allocation = allocations.get(resourceHandle);
+        if (allocation == null) {
+            throw new RuntimeException("No memory was allocated for resource " + Long.toHexString(resourceHandle));
+        }
+        return allocation;
+    }
+
+    /**
+     * Returns the memory of a buffer or image, after the resource itself has been destroyed.
+     */
+    public synchronized void free(long resourceHandle) {
+        Allocation allocation = allocations.remove(resourceHandle);
+        if (allocation == null) {
+            return;
+        }
+        Block block = allocation.block();
+        block.ranges.free(allocation.offset(), allocation.size());
+        block.resourceCount = block.resourceCount - 1;
+        if (block.resourceCount == 0 && (block.dedicated || hasEmptySpare(block))) {
+            freeBlock(block);
+            blocks.remove(block);
+        }
+    }
+
+    public synchronized @Nonnull List<HeapUsage> heapUsage() {
+        List<HeapUsage> usage = new ArrayList<>(memoryProperties.memoryHeapCount());
+        for (int heapIndex = 0; heapIndex < memoryProperties.memoryHeapCount(); heapIndex++) {
+            long blockBytes = 0;
+            long usedBytes = 0;
+            int blockCount = 0;
+            int resourceCount = 0;
+            for (Block block : blocks) {
+                if (memoryProperties.memoryTypes(block.memoryTypeIndex).heapIndex() == heapIndex) {
+                    blockBytes += block.ranges.capacity();
+                    usedBytes += block.ranges.capacity() - block.ranges.freeSize();
+                    blockCount = blockCount + 1;
+                    resourceCount += block.resourceCount;
+                }
+            }
+            usage.add(new HeapUsage(heapIndex, memoryProperties.memoryHeaps(heapIndex).size(), blockBytes, usedBytes, blockCount, resourceCount));
+        }
+        return usage;
+    }
+
+    @Override
+    public synchronized void dispose() {
+        for (Block block : blocks) {
+            freeBlock(block);
+        }
+        blocks.clear();
+        allocations.clear();
+        memoryProperties.free();
+    }
+
+    /**
+     * @return whether another shared block could take the place of the given one, because it is empty as well
+     */
+    private boolean hasEmptySpare(Block block) {
+        for (Block other : blocks) {
+            if (other != block && !other.dedicated && other.resourceCount == 0
+                    && other.memoryTypeIndex == block.memoryTypeIndex && other.linear == block.linear) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Allocation allocate(VkMemoryRequirements requirements, int memoryFlags, boolean linear) {
+        int memoryTypeIndex = findMemoryTypeIndex(requirements.memoryTypeBits(), memoryFlags);
+        long size = requirements.size();
+        long alignment = requirements.alignment();
+
+        long blockSize = blockSizeFor(memoryTypeIndex);
+        if (size > blockSize / 2) {
+            Block block = createBlock(memoryTypeIndex, linear, true, size);
+            return allocateFrom(block, size, alignment);
+        }
+
+        for (Block block : blocks) {
+            if (block.memoryTypeIndex == memoryTypeIndex && block.linear == linear && !block.dedicated) {
+                long offset = block.ranges.allocate(size, alignment);
+                if (offset != RangeAllocator.NO_SPACE) {
+                    block.resourceCount = block.resourceCount + 1;
+                    return new Allocation(block, offset, size);
+                }
+            }
+        }
+        Block block = createBlock(memoryTypeIndex, linear, false, blockSize);
+        return allocateFrom(block, size, alignment);
+    }
+
+    private Allocation allocateFrom(Block block, long size, long alignment) {
+        long offset = block.ranges.allocate(size, alignment);
+        assert offset != RangeAllocator.NO_SPACE;
+        block.resourceCount = block.resourceCount + 1;
+        return new Allocation(block, offset, size);
+    }
+
+    private long blockSizeFor(int memoryTypeIndex) {
+        // Small heaps (e.g. the 256MB device local + host visible one) should not be eaten up by a couple of blocks
+        long heapSize = memoryProperties.memoryHeaps(memoryProperties.memoryTypes(memoryTypeIndex).heapIndex()).size();
+        return Math.min(MAX_BLOCK_SIZE, heapSize / 8);
+    }
+
+    private int findMemoryTypeIndex(int allowedTypes, int requiredFlags) {
+        for (int i = 0; i < memoryProperties.memoryTypeCount(); i++) {
+            if ((allowedTypes & (1 << i)) != 0 && (memoryProperties.memoryTypes(i).propertyFlags() & requiredFlags) == requiredFlags) {
+                return i;
+            }
+        }
+        throw new RuntimeException("Could not find a memory type with flags " + Integer.toBinaryString(requiredFlags));
+    }
+
+    private Block createBlock(int memoryTypeIndex, boolean linear, boolean dedicated, long size) {
+        DeviceMemoryEvent event = new DeviceMemoryEvent();
+        event.begin();
+        try (VulkanSession vk = new VulkanSession()) {
+            VkMemoryAllocateInfo memoryAllocateInfo = VkMemoryAllocateInfo.calloc(vk.stack())
+                    .sType$Default()
+                    .allocationSize(size)
+                    .memoryTypeIndex(memoryTypeIndex);
+            VkDeviceMemory memory = vk.allocateMemory(logicalDevice, memoryAllocateInfo);
+
+            long mappedAddress = 0;
+            if ((memoryProperties.memoryTypes(memoryTypeIndex).propertyFlags() & VK_MEMORY_PROPERTY_HOST_VISIBLE_BIT) != 0) {
+                mappedAddress = vk.mapMemoryPointer(logicalDevice, memory, 0, VK_WHOLE_SIZE, 0);
+            }
+
+            Block block = new Block(memory, memoryTypeIndex, linear, dedicated, size, mappedAddress);
+            blocks.add(block);
+            commitDeviceMemoryEvent(event, true, block);
+            return block;
+        }
+    }
+
+    private void freeBlock(Block block) {
+        DeviceMemoryEvent event = new DeviceMemoryEvent();
+        event.begin();
+        if (block.mappedAddress != 0) {
+            vkUnmapMemory(logicalDevice, block.memory.address());
+        }
+        vkFreeMemory(logicalDevice, block.memory.address(), null);
+        commitDeviceMemoryEvent(event, false, block);
+    }
+
+    private static void commitDeviceMemoryEvent(DeviceMemoryEvent event, boolean allocated, Block block) {
+        if (event.shouldCommit()) {
+            event.allocated = allocated;
+            event.bytes = block.ranges.capacity();
+            event.memoryTypeIndex = block.memoryTypeIndex;
+            event.dedicated = block.dedicated;
+            event.commit();
+        }
+    }
+
+    private static void commitResourceAllocationEvent(boolean image, VkMemoryRequirements requirements, Allocation allocation) {
+        ResourceAllocationEvent event = new ResourceAllocationEvent();
+        if (event.shouldCommit()) {
+            event.image = image;
+            event.bytes = allocation.size();
+            event.alignment = requirements.alignment();
+            event.memoryTypeIndex = allocation.block().memoryTypeIndex;
+            event.commit();
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package com.alexdl.sdng.backend.vulkan;
+
+import org.joml.Matrix4f;
+import org.lwjgl.vulkan.VkPipeline;
+
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * All the instances of one mesh that share the same pipeline, texture and level of detail, drawn with a single
+ * instanced draw call.
+ */
+public class DrawBatch {
+    private final VkPipeline pipeline;
+    private final Texture texture;
+    private final MeshData meshData;
+    private final int lod;
+    private final Bounds bounds;
+    private final List<Matrix4f> transforms;
+    private int firstInstance;
+    private int drawIndex;
+
+    /**
+     * @param lod    level of detail of the mesh data to draw
+     * @param bounds bounds of the mesh data, which every instance shares
+     */
+    public DrawBatch(@Nonnull VkPipeline pipeline, @Nonnull Texture texture, @Nonnull MeshData meshData, int lod, @Nonnull Bounds bounds) {
+        this.pipeline = pipeline;
+        this.texture = texture;
+        this.meshData = meshData;
+        this.lod = lod;
+        this.bounds = bounds;
+        this.transforms = new ArrayList<>();
+        this.firstInstance = 0;
+        this.drawIndex = 0;
+    }
+
+    public @Nonnull VkPipeline pipeline() {
+        return pipeline;
+    }
+
+    public @Nonnull Texture texture() {
+        return texture;
+    }
+
+    public @Nonnull MeshData meshData() {
+        return meshData;
+    }
+
+    public int lod() {
+        return lod;
+    }
+
+    /**
+     * @return index count of the batch's level of detail
+     */
+    public int indexCount() {
+        return meshData.getIndexCount(lod);
+    }
+
+    /**
+     * @return first index of the batch's level of detail
+     */
+    public int firstIndex() {
+        return meshData.getFirstIndex(lod);
+    }
+
+    public @Nonnull Bounds bounds() {
+        return bounds;
+    }
+
+    public @Nonnull List<Matrix4f> transforms() {
+        return transforms;
+    }
+
+    public int instanceCount() {
+        return transforms.size();
+    }
+
+    /**
+     * @return index of this batch's first transform in the instance buffer, valid once the transforms were uploaded
+     */
+    public int firstInstance() {
+        return firstInstance;
+    }
+
+    public void firstInstance(int value) {
+        firstInstance = value;
+    }
+
+    /**
+     * @return position of this batch in the sorted queue, which is also the index of its indirect draw command
+     */
+    public int drawIndex() {
+        return drawIndex;
+    }
+
+    public void drawIndex(int value) {
+        drawIndex = value;
+    }
+}
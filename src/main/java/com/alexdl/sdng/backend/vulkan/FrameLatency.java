@@ -0,0 +1,13 @@
+package com.alexdl.sdng.backend.vulkan;
+
+/**
+ * Time from when the CPU started preparing a frame until the GPU finished rendering it, which is when it gets handed
+ * to the presentation engine.
+ *
+ * @param averageMillis average over the recent frames
+ * @param maxMillis     worst of the recent frames
+ * @param frames        number of frames the values are taken from
+ */
+public record FrameLatency(double averageMillis, double maxMillis, int frames) {
+    public static final FrameLatency EMPTY = new FrameLatency(0, 0, 0);
+}
@@ -0,0 +1,72 @@
+package com.alexdl.sdng.backend.vulkan;
+
+import org.lwjgl.vulkan.VkDevice;
+import org.lwjgl.vulkan.VkFence;
+
+import javax.annotation.Nonnull;
+import java.util.List;
+
+import static org.lwjgl.vulkan.VK10.VK_SUCCESS;
+import static org.lwjgl.vulkan.VK10.vkGetFenceStatus;
+
+/**
+ * Measures {@link FrameLatency} from the frame fences. Fences are polled whenever the render loop comes around, so the
+ * end of a frame is only known to the precision of the loop, which is good enough to compare configurations.
+ */
+public class FrameLatencyTracker {
+    private static final int WINDOW = 120;
+
+    private final VkDevice logicalDevice;
+    private final List<VkFence> frameFences;
+    private final long[] frameStartTimes;
+    private final long[] latencies;
+    private int latencyCount;
+    private int nextLatency;
+
+    public FrameLatencyTracker(@Nonnull VkDevice logicalDevice, @Nonnull List<VkFence> frameFences) {
+        this.logicalDevice = logicalDevice;
+        this.frameFences = frameFences;
+        this.frameStartTimes = new long[frameFences.size()];
+        this.latencies = new long[WINDOW];
+    }
+
+    /**
+     * @param frame     index of the frame in flight whose fence was just submitted
+     * @param startTime {@link System#nanoTime()} of when the CPU started preparing the frame
+     */
+    public void submitted(int frame, long startTime) {
+        frameStartTimes[frame] = startTime;
+    }
+
+    /**
+     * Records the latency of every submitted frame whose fence has signaled since the last poll.
+     */
+    public void poll() {
+        long now = System.nanoTime();
+        for (int frame = 0; frame < frameFences.size(); frame++) {
+            if (frameStartTimes[frame] != 0 && vkGetFenceStatus(logicalDevice, frameFences.get(frame).address()) == VK_SUCCESS) {
+                record(now - frameStartTimes[frame]);
+                frameStartTimes[frame] = 0;
+            }
+        }
+    }
+
+    public @Nonnull FrameLatency latency() {
+        if (latencyCount == 0) {
+            return FrameLatency.EMPTY;
+        }
+        long sum = 0;
+        long max = 0;
+        for (int i = 0; i < latencyCount; i++) {
+            sum = sum + latencies[i];
+            max = Math.max(max, latencies[i]);
+        }
+        return new FrameLatency(sum / (double) latencyCount / 1_000_000.0, max / 1_000_000.0, latencyCount);
+    }
+
+    private void record(long latency) {
+        latencies[nextLatency] = latency;
+        nextLatency = (nextLatency + 1) % WINDOW;
+        latencyCount = Math.min(latencyCount + 1, WINDOW);
+    }
+}
@@ -0,0 +1,43 @@
+package com.alexdl.sdng.backend.vulkan;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Holds the render loop back to a target frame rate, so that frames are started at an even rate instead of as early
+ * as the present mode allows, which keeps the queue of frames in flight short and with it the input latency.
+ */
+public class FramePacer {
+    /** Sleeping is only precise to a millisecond or so on most systems, the rest of the wait is spent yielding */
+    private static final long SPIN_NANOS = 1_000_000;
+
+    private final long frameNanos;
+    private long nextFrameTime;
+
+    /**
+     * @param targetFrameRate frames per second, or 0 to never wait
+     */
+    public FramePacer(int targetFrameRate) {
+        this.frameNanos = targetFrameRate > 0 ? 1_000_000_000L / targetFrameRate : 0;
+        this.nextFrameTime = System.nanoTime();
+    }
+
+    /**
+     * Waits until the next frame is due.
+     */
+    public void waitForNextFrame() {
+        if (frameNanos == 0) {
+            return;
+        }
+        long now = System.nanoTime();
+        long remaining = nextFrameTime - now;
+        if (remaining > SPIN_NANOS) {
+            LockSupport.parkNanos(remaining - SPIN_NANOS);
+        }
+        while (System.nanoTime() - nextFrameTime < 0) {
+            Thread.onSpinWait();
+        }
+        // Falling more than a frame behind starts a new schedule instead of rushing a burst of frames to catch up
+        now = System.nanoTime();
+        nextFrameTime = now - nextFrameTime > frameNanos ? now + frameNanos : nextFrameTime + frameNanos;
+    }
+}
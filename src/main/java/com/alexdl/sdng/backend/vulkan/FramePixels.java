@@ -0,0 +1,13 @@
+package com.alexdl.sdng.backend.vulkan;
+
+import org.lwjgl.vulkan.enums.VkFormat;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A rendered frame read back from the device, tightly packed row after row from the top.
+ *
+ * @param format format of the pixels, four bytes per pixel in the order the format names them
+ */
+public record FramePixels(int width, int height, VkFormat format, ByteBuffer pixels) {
+}
@@ -0,0 +1,96 @@
+package com.alexdl.sdng.backend.vulkan;
+
+import org.joml.FrustumIntersection;
+import org.joml.Matrix4f;
+import org.joml.Matrix4fc;
+
+import javax.annotation.Nonnull;
+import java.util.List;
+import java.util.function.BiConsumer;
+
+/**
+ * Culls models, and then the meshes of models that are only partially visible, against the view frustum.
+ * <p>
+ * The frustum planes are extracted from each model's full model-view-projection matrix, which puts them in the model's
+ * own space, so the bounds computed at load time can be tested as they are instead of being transformed first.
+ */
+public class FrustumCuller {
+    private final FrustumIntersection frustum;
+    private final Matrix4f modelViewProjection;
+    private CullingStatistics statistics;
+
+    public FrustumCuller() {
+        this.frustum = new FrustumIntersection();
+        this.modelViewProjection = new Matrix4f();
+        this.statistics = CullingStatistics.EMPTY;
+    }
+
+    /**
+     * @param viewProjection  projection times view of the camera
+     * @param objectTransform transform applied to every vertex before the model transform
+     * @param visible         called for every mesh that is at least partially inside the frustum
+     */
+    public void cull(@Nonnull List<Model> models,
+                     @Nonnull Matrix4fc viewProjection,
+                     @Nonnull Matrix4fc objectTransform,
+                     @Nonnull BiConsumer<Model, Mesh> visible) {
+        int modelsDrawn = 0;
+        int modelsCulled = 0;
+        int meshesDrawn = 0;
+        int meshesCulled = 0;
+        for (Model model : models) {
+            viewProjection.mul(model.transform(), modelViewProjection).mul(objectTransform);
+            frustum.set(modelViewProjection);
+
+            int modelIntersection = intersect(model.bounds());
+            if (modelIntersection == FrustumIntersection.OUTSIDE) {
+                modelsCulled = modelsCulled + 1;
+                meshesCulled = meshesCulled + model.meshes().size();
+                continue;
+            }
+            modelsDrawn = modelsDrawn + 1;
+            for (Mesh mesh : model.meshes()) {
+                // Meshes of a model that is entirely inside are too
+                if (modelIntersection == FrustumIntersection.INSIDE || intersect(mesh.bounds()) != FrustumIntersection.OUTSIDE) {
+                    meshesDrawn = meshesDrawn + 1;
+                    visible.accept(model, mesh);
+                } else {
+                    meshesCulled = meshesCulled + 1;
+                }
+            }
+        }
+        statistics = new CullingStatistics(modelsDrawn, modelsCulled, meshesDrawn, meshesCulled);
+    }
+
+    /**
+     * Passes on every mesh without testing it, for when the frustum is tested somewhere else.
+     */
+    public void skip(@Nonnull List<Model> models, @Nonnull BiConsumer<Model, Mesh> visible) {
+        int meshesDrawn = 0;
+        for (Model model : models) {
+            for (Mesh mesh : model.meshes()) {
+                meshesDrawn = meshesDrawn + 1;
+                visible.accept(model, mesh);
+            }
+        }
+        statistics = new CullingStatistics(models.size(), 0, meshesDrawn, 0);
+    }
+
+    /**
+     * @return the counters of the last {@link #cull} or {@link #skip} call
+     */
+    public @Nonnull CullingStatistics statistics() {
+        return statistics;
+    }
+
+    private int intersect(Bounds bounds) {
+        int sphereIntersection = frustum.intersectSphere(bounds.center(), bounds.radius());
+        if (sphereIntersection != FrustumIntersection.INTERSECT) {
+            return sphereIntersection;
+        }
+        int boxIntersection = frustum.intersectAab(bounds.min(), bounds.max());
+        return boxIntersection == FrustumIntersection.INSIDE || boxIntersection == FrustumIntersection.INTERSECT
+                ? boxIntersection
+                : FrustumIntersection.OUTSIDE;
+    }
+}
@@ -0,0 +1,154 @@
+package com.alexdl.sdng.backend.vulkan;
+
+import com.alexdl.sdng.backend.Disposable;
+import com.alexdl.sdng.backend.vulkan.structs.VertexDataStruct;
+import org.lwjgl.vulkan.VkBuffer;
+import org.lwjgl.vulkan.VkDevice;
+
+import javax.annotation.Nonnull;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+import static com.alexdl.sdng.backend.vulkan.VulkanUtils.createBuffer;
+import static com.alexdl.sdng.backend.vulkan.VulkanUtils.destroyBuffer;
+import static org.lwjgl.system.MemoryUtil.memAddress;
+import static org.lwjgl.vulkan.VK10.*;
+
+/**
+ * Sub-allocates the geometry of every mesh from a few large, shared vertex and index buffers ("pages"), so that all the
+ * meshes of a page can be drawn with the same bound buffers and just a different {@code firstIndex}/{@code vertexOffset}.
+ * <p>
+ * A new page is added whenever a mesh does not fit in any of the existing ones, and freed ranges are reused by later
+ * meshes.
+ * <p>
+ * Uploads go through the {@link UploadService} and do not block, a mesh can be drawn once the
+ * {@link Allocation#residency()} future completes. Uploads can also be added to an {@link UploadBatch}, in which case
+ * they become resident together with the rest of the batch.
+ * <p>
+ * Released allocations are handed to the owner's retire queue, and only return to their page once every frame that was
+ * submitted before the release has finished, so that new geometry is never uploaded into ranges that are still drawn.
+ */
+public class GeometryPool implements Disposable {
+    private static final int DEFAULT_PAGE_VERTICES = 256 * 1024;
+    private static final int DEFAULT_PAGE_INDICES = 1024 * 1024;
+
+    private final VkDevice logicalDevice;
+    private final UploadService uploadService;
+    private final Consumer<Disposable> retire;
+    private final int vertexSize;
+    private final List<Page> pages;
+    private boolean disposed;
+
+    public record Page(VkBuffer vertexBuffer, VkBuffer indexBuffer, RangeAllocator vertices, RangeAllocator indices) {
+    }
+
+    public record Allocation(Page page, int vertexOffset, int vertexCount, int firstIndex, int indexCount,
+                             CompletableFuture<Void> residency) {
+    }
+
+    /**
+     * @param retire disposes of what it is given once no submitted frame can use it anymore
+     */
+    public GeometryPool(@Nonnull VkDevice logicalDevice, @Nonnull UploadService uploadService, @Nonnull Consumer<Disposable> retire) {
+        this.logicalDevice = logicalDevice;
+        this.uploadService = uploadService;
+        this.retire = retire;
+        this.vertexSize = Vertex.BYTES;
+        this.pages = new ArrayList<>();
+        this.disposed = false;
+    }
+
+    public @Nonnull Allocation allocate(@Nonnull VertexDataStruct.Buffer vertexData, @Nonnull IntBuffer indexData) {
+        UploadBatch batch = uploadService.beginBatch();
+        Allocation allocation = allocate(vertexData, indexData, batch);
+        batch.submit();
+        return allocation;
+    }
+
+    /**
+     * Adds the upload of the geometry to {@code batch}, the allocation becomes resident when the batch completes.
+     */
+    public synchronized @Nonnull Allocation allocate(@Nonnull VertexDataStruct.Buffer vertexData, @Nonnull IntBuffer indexData, @Nonnull UploadBatch batch) {
+        int vertexCount = vertexData.count();
+        int indexCount = indexData.limit();
+
+        CompletableFuture<Void> residency = batch.completion();
+        Allocation allocation = null;
+        for (Page page : pages) {
+            allocation = tryAllocate(page, vertexCount, indexCount, residency);
+            if (allocation != null) {
+                break;
+            }
+        }
+        if (allocation == null) {
+            Page page = createPage(Math.max(DEFAULT_PAGE_VERTICES, vertexCount), Math.max(DEFAULT_PAGE_INDICES, indexCount));
+            pages.add(page);
+            allocation = tryAllocate(page, vertexCount, indexCount, residency);
+            assert allocation != null;
+        }
+
+        batch.uploadBuffer(vertexData.address(), (long) vertexCount * vertexSize,
+                allocation.page().vertexBuffer(), (long) allocation.vertexOffset() * vertexSize,
+                VK_PIPELINE_STAGE_VERTEX_INPUT_BIT, VK_ACCESS_VERTEX_ATTRIBUTE_READ_BIT);
+        batch.uploadBuffer(memAddress(indexData), (long) indexCount * Integer.BYTES,
+                allocation.page().indexBuffer(), (long) allocation.firstIndex() * Integer.BYTES,
+                VK_PIPELINE_STAGE_VERTEX_INPUT_BIT, VK_ACCESS_INDEX_READ_BIT);
+        return allocation;
+    }
+
+    /**
+     * Returns the ranges of an allocation to its page once the frames submitted until now have finished drawing from
+     * them.
+     */
+    public void release(@Nonnull Allocation allocation) {
+        retire.accept(() -> free(allocation));
+    }
+
+    /**
+     * Returns the ranges of an allocation to its page right away. The caller has to make sure that no submitted frame
+     * still draws from them, see {@link #release}.
+     */
+    public synchronized void free(@Nonnull Allocation allocation) {
+        if (disposed) {
+            return;
+        }
+        allocation.page().vertices().free(allocation.vertexOffset(), allocation.vertexCount());
+        allocation.page().indices().free(allocation.firstIndex(), allocation.indexCount());
+    }
+
+    public synchronized int pageCount() {
+        return pages.size();
+    }
+
+    @Override
+    public synchronized void dispose() {
+        for (Page page : pages) {
+            destroyBuffer(logicalDevice, page.vertexBuffer());
+            destroyBuffer(logicalDevice, page.indexBuffer());
+        }
+        pages.clear();
+        disposed = true;
+    }
+
+    private Allocation tryAllocate(Page page, int vertexCount, int indexCount, CompletableFuture<Void> residency) {
+        long vertexOffset = page.vertices().allocate(Math.max(vertexCount, 1));
+        if (vertexOffset == RangeAllocator.NO_SPACE) {
+            return null;
+        }
+        long firstIndex = page.indices().allocate(Math.max(indexCount, 1));
+        if (firstIndex == RangeAllocator.NO_SPACE) {
+            page.vertices().free(vertexOffset, Math.max(vertexCount, 1));
+            return null;
+        }
+        return new Allocation(page, (int) vertexOffset, Math.max(vertexCount, 1), (int) firstIndex, Math.max(indexCount, 1), residency);
+    }
+
+    private Page createPage(int vertexCapacity, int indexCapacity) {
+        VkBuffer vertexBuffer = createBuffer(logicalDevice, (long) vertexCapacity * vertexSize, VK_BUFFER_USAGE_TRANSFER_DST_BIT | VK_BUFFER_USAGE_VERTEX_BUFFER_BIT, VK_MEMORY_PROPERTY_DEVICE_LOCAL_BIT);
+        VkBuffer indexBuffer = createBuffer(logicalDevice, (long) indexCapacity * Integer.BYTES, VK_BUFFER_USAGE_TRANSFER_DST_BIT | VK_BUFFER_USAGE_INDEX_BUFFER_BIT, VK_MEMORY_PROPERTY_DEVICE_LOCAL_BIT);
+        return new Page(vertexBuffer, indexBuffer, new RangeAllocator(vertexCapacity), new RangeAllocator(indexCapacity));
+    }
+}
@@ -0,0 +1,247 @@
+package com.alexdl.sdng.backend.vulkan;
+
+import com.alexdl.sdng.backend.Disposable;
+import org.joml.Matrix4f;
+import org.joml.Matrix4fc;
+import org.joml.Vector3f;
+import org.joml.Vector4f;
+import org.lwjgl.vulkan.VkBuffer;
+import org.lwjgl.vulkan.VkCommandBuffer;
+import org.lwjgl.vulkan.VkDescriptorSet;
+import org.lwjgl.vulkan.VkDescriptorSetLayout;
+import org.lwjgl.vulkan.VkDevice;
+import org.lwjgl.vulkan.VkMemoryBarrier;
+import org.lwjgl.vulkan.VkPipeline;
+import org.lwjgl.vulkan.VkPipelineCache;
+import org.lwjgl.vulkan.VkPipelineLayout;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.Arrays;
+import java.util.List;
+
+import static com.alexdl.sdng.backend.vulkan.SizeConstants.MATRIX_4F_SIZE_BYTES;
+import static com.alexdl.sdng.backend.vulkan.SizeConstants.MATRIX_4F_SIZE_FLOATS;
+import static com.alexdl.sdng.backend.vulkan.VulkanUtils.createComputePipeline;
+import static com.alexdl.sdng.backend.vulkan.VulkanUtils.createComputePipelineLayout;
+import static org.lwjgl.system.MemoryUtil.memPutFloat;
+import static org.lwjgl.system.MemoryUtil.memPutInt;
+import static org.lwjgl.vulkan.VK10.*;
+
+/**
+ * Culls the instances of a frame's draw batches against the view frustum in a compute pass that runs before the render
+ * pass, so the CPU never looks at the visibility of single instances.
+ * <p>
+ * The CPU writes every instance's transform and batch index into the frame's uniform ring, along with a bounding sphere
+ * for every batch and the batches' indirect draw commands with an instance count of 0. For every instance inside the
+ * frustum the compute shader increments its batch's instance count and copies its transform into the batch's instance
+ * range, which the vertex shader then reads as usual. The workgroup count is read from the ring too, so a recorded
+ * command buffer stays valid while the camera and the number of instances change.
+ * <p>
+ * The source transforms are only written into the ring when they differ from what was written to the same place the
+ * last time the same frame in flight was prepared, so instances that did not move are not uploaded again.
+ */
+public class GpuCuller implements Disposable {
+    private static final String COMPUTE_SHADER = "shaders/cull.spv";
+    private static final int WORKGROUP_SIZE = 64;
+    // Six frustum planes, the instance count, four word offsets and the workgroup counts of the dispatch
+    private static final int PARAMETER_WORDS = 32;
+    private static final int INSTANCE_COUNT_WORD = 24;
+    private static final int DISPATCH_WORD = 29;
+
+    private final VkDevice logicalDevice;
+    private final VkPipelineLayout pipelineLayout;
+    private final VkPipeline pipeline;
+    private final FrameUploads[] frameUploads;
+    private final Vector4f plane;
+    private final Vector3f center;
+    private final Vector3f scale;
+    private final float[] transform;
+    private long uploadedInstances;
+    private long reusedInstances;
+
+    /**
+     * What was last written into a frame's ring, in the order it was written.
+     */
+    private static class FrameUploads {
+        private int parameters = -1;
+        private int ringGeneration = -1;
+        private int sourceTransforms = -1;
+        private int instanceBatches = -1;
+        private int instanceCount;
+        private float[] transforms = new float[0];
+        private int[] batches = new int[0];
+    }
+
+    /**
+     * @param descriptorSetLayout layout of the scene set, whose binding 1 has to be the whole uniform ring
+     */
+    public GpuCuller(@Nonnull VkDevice logicalDevice,
+                     @Nullable VkPipelineCache pipelineCache,
+                     @Nonnull VkDescriptorSetLayout descriptorSetLayout,
+                     int frames) {
+        this.logicalDevice = logicalDevice;
+        this.pipelineLayout = createComputePipelineLayout(logicalDevice, List.of(descriptorSetLayout), Integer.BYTES);
+        this.pipeline = createComputePipeline(logicalDevice, pipelineCache, pipelineLayout, COMPUTE_SHADER);
+        this.frameUploads = new FrameUploads[frames];
+        for (int frame = 0; frame < frames; frame++) {
+            frameUploads[frame] = new FrameUploads();
+        }
+        this.plane = new Vector4f();
+        this.center = new Vector3f();
+        this.scale = new Vector3f();
+        this.transform = new float[MATRIX_4F_SIZE_FLOATS];
+    }
+
+    /**
+     * Allocates the frame's parameter block in its ring. It has a fixed size, so allocating it before anything sized
+     * by the number of instances keeps its offset, which recorded command buffers depend on, unchanged.
+     */
+    public void allocateParameters(@Nonnull UniformRing ring, int frame) {
+        frameUploads[frame].parameters = ring.allocate(PARAMETER_WORDS * Integer.BYTES);
+    }
+
+    /**
+     * Writes what the culling pass reads into the frame's ring, after {@link #allocateParameters} was called for the
+     * frame. The batches must already have their first instance pointing at a range of the ring that fits all of their
+     * instances, and their indirect draw commands must be written with an instance count of 0.
+     *
+     * @param drawCommandsOffset offset of the batches' indirect draw commands in the ring, in the batches' order
+     * @param viewProjection     projection times view of the camera
+     * @param objectTransform    transform applied to every vertex before the instance transform
+     */
+    public void upload(@Nonnull UniformRing ring,
+                       int frame,
+                       @Nonnull List<DrawBatch> batches,
+                       int instanceCount,
+                       int drawCommandsOffset,
+                       @Nonnull Matrix4fc viewProjection,
+                       @Nonnull Matrix4fc objectTransform) {
+        FrameUploads uploads = frameUploads[frame];
+        int parameters = uploads.parameters;
+        int sourceTransforms = ring.allocate(instanceCount * MATRIX_4F_SIZE_BYTES);
+        int instanceBatches = ring.allocate(instanceCount * Integer.BYTES);
+        int batchBounds = ring.allocate(batches.size() * 4 * Float.BYTES);
+        // Whatever else the frame writes lives before these, so unchanged offsets mean unchanged memory
+        boolean sameRing = uploads.ringGeneration == ring.generation();
+        boolean sameTransforms = sameRing && uploads.sourceTransforms == sourceTransforms;
+        boolean sameBatches = sameRing && uploads.instanceBatches == instanceBatches;
+        int previousInstanceCount = uploads.instanceCount;
+        if (uploads.batches.length < instanceCount) {
+            uploads.transforms = Arrays.copyOf(uploads.transforms, instanceCount * MATRIX_4F_SIZE_FLOATS);
+            uploads.batches = Arrays.copyOf(uploads.batches, instanceCount);
+        }
+
+        long parametersAddress = ring.address(parameters);
+        for (int i = 0; i < 6; i++) {
+            viewProjection.frustumPlane(i, plane);
+            float length = (float) Math.sqrt(plane.x * plane.x + plane.y * plane.y + plane.z * plane.z);
+            memPutFloat(parametersAddress + (i * 4L) * Float.BYTES, plane.x / length);
+            memPutFloat(parametersAddress + (i * 4L + 1) * Float.BYTES, plane.y / length);
+            memPutFloat(parametersAddress + (i * 4L + 2) * Float.BYTES, plane.z / length);
+            memPutFloat(parametersAddress + (i * 4L + 3) * Float.BYTES, plane.w / length);
+        }
+        memPutInt(parametersAddress + (long) INSTANCE_COUNT_WORD * Integer.BYTES, instanceCount);
+        memPutInt(parametersAddress + (INSTANCE_COUNT_WORD + 1L) * Integer.BYTES, sourceTransforms / Integer.BYTES);
+        memPutInt(parametersAddress + (INSTANCE_COUNT_WORD + 2L) * Integer.BYTES, instanceBatches / Integer.BYTES);
+        memPutInt(parametersAddress + (INSTANCE_COUNT_WORD + 3L) * Integer.BYTES, batchBounds / Integer.BYTES);
+        memPutInt(parametersAddress + (INSTANCE_COUNT_WORD + 4L) * Integer.BYTES, drawCommandsOffset / Integer.BYTES);
+        memPutInt(parametersAddress + (long) DISPATCH_WORD * Integer.BYTES, Math.ceilDiv(instanceCount, WORKGROUP_SIZE));
+        memPutInt(parametersAddress + (DISPATCH_WORD + 1L) * Integer.BYTES, 1);
+        memPutInt(parametersAddress + (DISPATCH_WORD + 2L) * Integer.BYTES, 1);
+
+        // The object transform is the same for every instance, so it is applied to the bounds once instead
+        float objectScale = Math.max(Math.max(objectTransform.getScale(scale).x, scale.y), scale.z);
+        int instance = 0;
+        for (int batchIndex = 0; batchIndex < batches.size(); batchIndex++) {
+            DrawBatch batch = batches.get(batchIndex);
+            Bounds bounds = batch.bounds();
+            objectTransform.transformPosition(bounds.center(), center);
+            long boundsAddress = ring.address(batchBounds + (long) batchIndex * 4 * Float.BYTES);
+            memPutFloat(boundsAddress, center.x);
+            memPutFloat(boundsAddress + Float.BYTES, center.y);
+            memPutFloat(boundsAddress + 2 * Float.BYTES, center.z);
+            memPutFloat(boundsAddress + 3 * Float.BYTES, bounds.radius() * objectScale);
+
+            for (Matrix4f instanceTransform : batch.transforms()) {
+                int shadowOffset = instance * MATRIX_4F_SIZE_FLOATS;
+                instanceTransform.get(transform);
+                boolean written = sameTransforms && instance < previousInstanceCount;
+                if (written && Arrays.equals(uploads.transforms, shadowOffset, shadowOffset + MATRIX_4F_SIZE_FLOATS,
+                        transform, 0, MATRIX_4F_SIZE_FLOATS)) {
+                    reusedInstances = reusedInstances + 1;
+                } else {
+                    long transformAddress = ring.address(sourceTransforms + (long) instance * MATRIX_4F_SIZE_BYTES);
+                    for (int i = 0; i < MATRIX_4F_SIZE_FLOATS; i++) {
+                        memPutFloat(transformAddress + (long) i * Float.BYTES, transform[i]);
+                    }
+                    System.arraycopy(transform, 0, uploads.transforms, shadowOffset, MATRIX_4F_SIZE_FLOATS);
+                    uploadedInstances = uploadedInstances + 1;
+                }
+                if (!sameBatches || instance >= previousInstanceCount || uploads.batches[instance] != batchIndex) {
+                    memPutInt(ring.address(instanceBatches + (long) instance * Integer.BYTES), batchIndex);
+                    uploads.batches[instance] = batchIndex;
+                }
+                instance = instance + 1;
+            }
+        }
+
+        uploads.ringGeneration = ring.generation();
+        uploads.sourceTransforms = sourceTransforms;
+        uploads.instanceBatches = instanceBatches;
+        uploads.instanceCount = instanceCount;
+    }
+
+    /**
+     * @return offset of the frame's parameter block in its ring, which recorded command buffers depend on
+     */
+    public int parametersOffset(int frame) {
+        return frameUploads[frame].parameters;
+    }
+
+    /**
+     * Records the culling pass of the frame's last {@link #upload}, which has to happen outside the render pass.
+     */
+    public void record(@Nonnull VkCommandBuffer commandBuffer, int frame, @Nonnull VkDescriptorSet sceneDescriptorSet,
+                       @Nonnull VkBuffer ringBuffer) {
+        int parameters = frameUploads[frame].parameters;
+        try (VulkanSession vk = new VulkanSession()) {
+            vkCmdBindPipeline(commandBuffer, VK_PIPELINE_BIND_POINT_COMPUTE, pipeline.address());
+            vkCmdBindDescriptorSets(commandBuffer, VK_PIPELINE_BIND_POINT_COMPUTE, pipelineLayout.address(), 0,
+                    vk.stack().longs(sceneDescriptorSet.address()), null);
+            vkCmdPushConstants(commandBuffer, pipelineLayout.address(), VK_SHADER_STAGE_COMPUTE_BIT, 0,
+                    vk.stack().ints(parameters / Integer.BYTES));
+            vkCmdDispatchIndirect(commandBuffer, ringBuffer.address(), parameters + (long) DISPATCH_WORD * Integer.BYTES);
+
+            // The draws read the instance counts and the vertex shader reads the copied transforms
+            VkMemoryBarrier.Buffer barrier = VkMemoryBarrier.calloc(1, vk.stack())
+                    .sType$Default()
+                    .srcAccessMask(VK_ACCESS_SHADER_WRITE_BIT)
+                    .dstAccessMask(VK_ACCESS_INDIRECT_COMMAND_READ_BIT | VK_ACCESS_SHADER_READ_BIT);
+            vkCmdPipelineBarrier(commandBuffer,
+                    VK_PIPELINE_STAGE_COMPUTE_SHADER_BIT,
+                    VK_PIPELINE_STAGE_DRAW_INDIRECT_BIT | VK_PIPELINE_STAGE_VERTEX_SHADER_BIT,
+                    0, barrier, null, null);
+        }
+    }
+
+    /**
+     * @return how many instance transforms were written into a ring so far
+     */
+    public long uploadedInstances() {
+        return uploadedInstances;
+    }
+
+    /**
+     * @return how many instance transforms were left as they were, because the ring already held them
+     */
+    public long reusedInstances() {
+        return reusedInstances;
+    }
+
+    @Override
+    public void dispose() {
+        vkDestroyPipeline(logicalDevice, pipeline.address(), null);
+        vkDestroyPipelineLayout(logicalDevice, pipelineLayout.address(), null);
+    }
+}
@@ -0,0 +1,14 @@
+package com.alexdl.sdng.backend.vulkan;
+
+/**
+ * Pipeline statistics of the render pass, averaged over the recent frames.
+ *
+ * @param inputAssemblyVertices     vertices read by the input assembler
+ * @param vertexShaderInvocations   vertex shader invocations, lower than the vertex count when the post-transform
+ *                                  cache hits
+ * @param clippingPrimitives        primitives that reached the clipping stage
+ * @param fragmentShaderInvocations fragment shader invocations, overdraw shows up as this growing past the pixel count
+ */
+public record GpuPipelineStatistics(double inputAssemblyVertices, double vertexShaderInvocations,
+                                    double clippingPrimitives, double fragmentShaderInvocations) {
+}
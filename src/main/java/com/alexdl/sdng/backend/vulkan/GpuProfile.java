@@ -0,0 +1,11 @@
+package com.alexdl.sdng.backend.vulkan;
+
+import javax.annotation.Nullable;
+import java.util.List;
+
+/**
+ * @param timings            one entry for every scope that was measured at least once
+ * @param pipelineStatistics {@code null} when pipeline statistics are disabled or not supported by the device
+ */
+public record GpuProfile(List<GpuTiming> timings, @Nullable GpuPipelineStatistics pipelineStatistics) {
+}
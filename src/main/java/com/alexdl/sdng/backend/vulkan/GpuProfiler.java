@@ -0,0 +1,266 @@
+package com.alexdl.sdng.backend.vulkan;
+
+import com.alexdl.sdng.backend.Disposable;
+import org.lwjgl.vulkan.VkCommandBuffer;
+import org.lwjgl.vulkan.VkDevice;
+import org.lwjgl.vulkan.VkPhysicalDevice;
+import org.lwjgl.vulkan.VkPhysicalDeviceFeatures;
+import org.lwjgl.vulkan.VkQueryPool;
+import org.lwjgl.vulkan.VkQueryPoolCreateInfo;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.nio.LongBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.alexdl.sdng.backend.vulkan.VulkanUtils.throwIfFailed;
+import static org.lwjgl.system.MemoryUtil.memAllocLong;
+import static org.lwjgl.system.MemoryUtil.memFree;
+import static org.lwjgl.vulkan.VK10.*;
+
+/**
+ * Measures GPU time of named scopes with timestamp queries, and optionally the pipeline statistics of the render pass.
+ * <p>
+ * Every frame in flight has query pools of its own, which are reset at the start of its command buffer and read back
+ * without waiting once its fence has signaled, a few frames after they were written. A scope always writes to the same
+ * pair of queries, so command buffers that are reused without being recorded again keep measuring the same scopes.
+ */
+public class GpuProfiler implements Disposable {
+    public static final int MAX_SCOPES = 32;
+    private static final int WINDOW = 240;
+    private static final int STATISTICS = 4;
+    private static final int STATISTICS_FLAGS = VK_QUERY_PIPELINE_STATISTIC_INPUT_ASSEMBLY_VERTICES_BIT
+            | VK_QUERY_PIPELINE_STATISTIC_VERTEX_SHADER_INVOCATIONS_BIT
+            | VK_QUERY_PIPELINE_STATISTIC_CLIPPING_PRIMITIVES_BIT
+            | VK_QUERY_PIPELINE_STATISTIC_FRAGMENT_SHADER_INVOCATIONS_BIT;
+
+    private final VkDevice logicalDevice;
+    private final double nanosPerTick;
+    private final long timestampMask;
+    private final @Nullable VkQueryPool[] timestampPools;
+    private final @Nullable VkQueryPool[] statisticsPools;
+    private final boolean[] submitted;
+    private final LongBuffer results;
+
+    private final Map<String, Integer> scopeIndices;
+    private final List<String> scopeNames;
+    private final List<SampleWindow> scopeSamples;
+    private final SampleWindow[] statisticsSamples;
+
+    /**
+     * @param pipelineStatistics whether to also query pipeline statistics, which only happens when the device supports
+     *                           both {@code pipelineStatisticsQuery} and {@code inheritedQueries}
+     */
+    public GpuProfiler(@Nonnull VkPhysicalDevice physicalDevice,
+                       @Nonnull VkDevice logicalDevice,
+                       int queueFamilyIndex,
+                       int frames,
+                       boolean pipelineStatistics) {
+        this.logicalDevice = logicalDevice;
+        int timestampValidBits;
+        boolean statisticsSupported;
+        try (VulkanSession vk = new VulkanSession()) {
+            nanosPerTick = vk.getPhysicalDeviceProperties(physicalDevice).limits().timestampPeriod();
+            timestampValidBits = vk.getPhysicalDeviceQueueFamilyProperties(physicalDevice).get(queueFamilyIndex).timestampValidBits();
+            VkPhysicalDeviceFeatures features = vk.getPhysicalDeviceFeatures(physicalDevice);
+            statisticsSupported = features.pipelineStatisticsQuery() && features.inheritedQueries();
+        }
+        this.timestampMask = timestampValidBits >= 64 ? -1L : (1L << timestampValidBits) - 1;
+
+        this.timestampPools = timestampValidBits > 0 ? new VkQueryPool[frames] : null;
+        this.statisticsPools = pipelineStatistics && statisticsSupported ? new VkQueryPool[frames] : null;
+        for (int frame = 0; frame < frames; frame++) {
+            if (timestampPools != null) {
+                timestampPools[frame] = createQueryPool(VK_QUERY_TYPE_TIMESTAMP, MAX_SCOPES * 2, 0);
+            }
+            if (statisticsPools != null) {
+                statisticsPools[frame] = createQueryPool(VK_QUERY_TYPE_PIPELINE_STATISTICS, 1, STATISTICS_FLAGS);
+            }
+        }
+        this.submitted = new boolean[frames];
+        // Every query is followed by its availability
+        this.results = memAllocLong(Math.max(MAX_SCOPES * 2, STATISTICS) * 2);
+
+        this.scopeIndices = new HashMap<>();
+        this.scopeNames = new ArrayList<>();
+        this.scopeSamples = new ArrayList<>();
+        this.statisticsSamples = new SampleWindow[STATISTICS];
+        for (int i = 0; i < STATISTICS; i++) {
+            statisticsSamples[i] = new SampleWindow(WINDOW);
+        }
+    }
+
+    public boolean timestampsSupported() {
+        return timestampPools != null;
+    }
+
+    /**
+     * @return the pipeline statistics that secondary command buffers executed inside the render pass have to inherit,
+     * 0 when they are not queried
+     */
+    public int inheritedPipelineStatistics() {
+        return statisticsPools != null ? STATISTICS_FLAGS : 0;
+    }
+
+    /**
+     * Resets the frame's queries, has to be recorded at the start of its command buffer, outside any render pass.
+     */
+    public void reset(@Nonnull VkCommandBuffer commandBuffer, int frame) {
+        if (timestampPools != null) {
+            vkCmdResetQueryPool(commandBuffer, timestampPools[frame].address(), 0, MAX_SCOPES * 2);
+        }
+        if (statisticsPools != null) {
+            vkCmdResetQueryPool(commandBuffer, statisticsPools[frame].address(), 0, 1);
+        }
+    }
+
+    /**
+     * Opens a scope by writing its start timestamp once all previous commands have started.
+     *
+     * @return the scope to pass to {@link #end}
+     */
+    public int begin(@Nonnull VkCommandBuffer commandBuffer, int frame, @Nonnull String scope) {
+        int index = scopeIndex(scope);
+        if (timestampPools != null && index >= 0) {
+            vkCmdWriteTimestamp(commandBuffer, VK_PIPELINE_STAGE_TOP_OF_PIPE_BIT, timestampPools[frame].address(), index * 2);
+        }
+        return index;
+    }
+
+    /**
+     * Closes a scope by writing its end timestamp once all previous commands have finished.
+     */
+    public void end(@Nonnull VkCommandBuffer commandBuffer, int frame, int scope) {
+        if (timestampPools != null && scope >= 0) {
+            vkCmdWriteTimestamp(commandBuffer, VK_PIPELINE_STAGE_BOTTOM_OF_PIPE_BIT, timestampPools[frame].address(), scope * 2 + 1);
+        }
+    }
+
+    public void beginStatistics(@Nonnull VkCommandBuffer commandBuffer, int frame) {
+        if (statisticsPools != null) {
+            vkCmdBeginQuery(commandBuffer, statisticsPools[frame].address(), 0, 0);
+        }
+    }
+
+    public void endStatistics(@Nonnull VkCommandBuffer commandBuffer, int frame) {
+        if (statisticsPools != null) {
+            vkCmdEndQuery(commandBuffer, statisticsPools[frame].address(), 0);
+        }
+    }
+
+    /**
+     * Marks the frame's queries as submitted, so that they are read back by the next {@link #collect} of the frame.
+     */
+    public void submitted(int frame) {
+        submitted[frame] = true;
+    }
+
+    /**
+     * Reads back whatever results of the frame's last submission are available, without waiting for the rest. Has to
+     * be called after the frame's fence has signaled and before its command buffer is submitted again.
+     */
+    public synchronized void collect(int frame) {
+        if (!submitted[frame]) {
+            return;
+        }
+        submitted[frame] = false;
+
+        if (timestampPools != null) {
+            int queries = scopeNames.size() * 2;
+            if (queries > 0) {
+                long poolAddress = timestampPools[frame].address();
+                getResults(poolAddress, queries, 2);
+                for (int scope = 0; scope < scopeNames.size(); scope++) {
+                    int begin = scope * 4;
+                    int end = begin + 2;
+                    // Scopes that were not recorded into this frame's command buffer stay unavailable
+                    if (results.get(begin + 1) != 0 && results.get(end + 1) != 0) {
+                        long ticks = (results.get(end) - results.get(begin)) & timestampMask;
+                        scopeSamples.get(scope).add(ticks * nanosPerTick / 1_000_000.0);
+                    }
+                }
+            }
+        }
+        if (statisticsPools != null) {
+            getResults(statisticsPools[frame].address(), 1, STATISTICS + 1);
+            if (results.get(STATISTICS) != 0) {
+                for (int i = 0; i < STATISTICS; i++) {
+                    statisticsSamples[i].add(results.get(i));
+                }
+            }
+        }
+    }
+
+    public synchronized @Nonnull GpuProfile profile() {
+        List<GpuTiming> timings = new ArrayList<>(scopeNames.size());
+        for (int scope = 0; scope < scopeNames.size(); scope++) {
+            SampleWindow samples = scopeSamples.get(scope);
+            if (samples.count() == 0) {
+                continue;
+            }
+            double[] percentiles = samples.percentiles(50, 95, 99, 100);
+            timings.add(new GpuTiming(scopeNames.get(scope), samples.average(),
+                    percentiles[0], percentiles[1], percentiles[2], percentiles[3], samples.count()));
+        }
+        GpuPipelineStatistics pipelineStatistics = statisticsPools != null && statisticsSamples[0].count() > 0
+                ? new GpuPipelineStatistics(statisticsSamples[0].average(), statisticsSamples[1].average(),
+                        statisticsSamples[2].average(), statisticsSamples[3].average())
+                : null;
+        return new GpuProfile(timings, pipelineStatistics);
+    }
+
+    @Override
+    public void dispose() {
+        for (int frame = 0; frame < submitted.length; frame++) {
+            if (timestampPools != null) {
+                vkDestroyQueryPool(logicalDevice, timestampPools[frame].address(), null);
+            }
+            if (statisticsPools != null) {
+                vkDestroyQueryPool(logicalDevice, statisticsPools[frame].address(), null);
+            }
+        }
+        memFree(results);
+    }
+
+    private synchronized int scopeIndex(String scope) {
+        Integer index = scopeIndices.get(scope);
+        if (index != null) {
+            return index;
+        }
+        if (scopeNames.size() == MAX_SCOPES) {
+            return -1;
+        }
+        scopeIndices.put(scope, scopeNames.size());
+        scopeNames.add(scope);
+        scopeSamples.add(new SampleWindow(WINDOW));
+        return scopeNames.size() - 1;
+    }
+
+    /**
+     * @param valuesPerQuery values written for each query, including its availability
+     */
+    private void getResults(long poolAddress, int queries, int valuesPerQuery) {
+        int result = vkGetQueryPoolResults(logicalDevice, poolAddress, 0, queries, results.clear(),
+                (long) valuesPerQuery * Long.BYTES, VK_QUERY_RESULT_64_BIT | VK_QUERY_RESULT_WITH_AVAILABILITY_BIT);
+        // Not ready only means that some queries are unavailable, which the availability values tell apart
+        if (result != VK_NOT_READY) {
+            throwIfFailed(result);
+        }
+    }
+
+    private VkQueryPool createQueryPool(int queryType, int queryCount, int pipelineStatistics) {
+        try (VulkanSession vk = new VulkanSession()) {
+            VkQueryPoolCreateInfo createInfo = VkQueryPoolCreateInfo.calloc(vk.stack())
+                    .sType$Default()
+                    .queryType(queryType)
+                    .queryCount(queryCount)
+                    .pipelineStatistics(pipelineStatistics);
+            LongBuffer pointer = vk.stack().mallocLong(1);
+            throwIfFailed(vkCreateQueryPool(logicalDevice, createInfo, null, pointer));
+            return new VkQueryPool(pointer.get(0));
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package com.alexdl.sdng.backend.vulkan;
+
+/**
+ * GPU time spent in a profiler scope over the recent frames.
+ *
+ * @param scope         name the scope was opened with
+ * @param averageMillis average time
+ * @param medianMillis  50th percentile
+ * @param p95Millis     95th percentile
+ * @param p99Millis     99th percentile
+ * @param maxMillis     slowest frame
+ * @param samples       number of frames the values are taken from
+ */
+public record GpuTiming(String scope, double averageMillis, double medianMillis, double p95Millis, double p99Millis,
+                        double maxMillis, int samples) {
+}
@@ -0,0 +1,121 @@
+package com.alexdl.sdng.backend.vulkan;
+
+import org.joml.Matrix4f;
+import org.joml.Matrix4fc;
+import org.joml.Vector3f;
+
+import javax.annotation.Nonnull;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Picks the level of detail to draw every mesh with, as the coarsest one whose error covers no more than the allowed
+ * number of pixels on screen.
+ * <p>
+ * The error is projected at the point of the mesh's bounding sphere that is closest to the camera. To keep meshes that
+ * sit right at a threshold from switching back and forth every frame, a mesh only switches to a coarser level than it
+ * had in the previous frame once that level's error is well below the allowed number of pixels, while switching to a
+ * finer level happens right away.
+ */
+public class LodSelector {
+    /** Fraction of the allowed pixels a coarser level's error may cover for a mesh to switch to it */
+    private static final float HYSTERESIS = 0.75f;
+
+    private final float pixelError;
+    private final Matrix4f modelTransform;
+    private final Vector3f cameraPosition;
+    private final Vector3f center;
+    private final Vector3f scale;
+    private Map<Model, int[]> previousLods;
+    private Map<Model, int[]> currentLods;
+    private float pixelsPerUnit;
+    private int meshesSimplified;
+
+    /**
+     * @param pixelError how many pixels the error of the selected level may cover, or 0 to always select the full mesh
+     */
+    public LodSelector(float pixelError) {
+        this.pixelError = pixelError;
+        this.modelTransform = new Matrix4f();
+        this.cameraPosition = new Vector3f();
+        this.center = new Vector3f();
+        this.scale = new Vector3f();
+        this.previousLods = new IdentityHashMap<>();
+        this.currentLods = new IdentityHashMap<>();
+    }
+
+    /**
+     * Starts a new frame, the levels selected in the current one become the ones the hysteresis compares against.
+     *
+     * @param viewportHeight height of the render target in pixels
+     */
+    public void begin(@Nonnull Matrix4fc view, @Nonnull Matrix4fc projection, int viewportHeight) {
+        Map<Model, int[]> previous = previousLods;
+        previousLods = currentLods;
+        currentLods = previous;
+        currentLods.clear();
+        view.origin(cameraPosition);
+        // Pixels covered by one unit at a distance of one unit, the projection's Y is flipped for Vulkan
+        pixelsPerUnit = Math.abs(projection.m11()) * viewportHeight * 0.5f;
+        meshesSimplified = 0;
+    }
+
+    /**
+     * @param objectTransform transform applied to every vertex before the model transform
+     * @return the level of detail to draw the mesh with, for {@link MeshData#getFirstIndex(int)} and
+     * {@link MeshData#getIndexCount(int)}
+     */
+    public int select(@Nonnull Model model, @Nonnull Mesh mesh, @Nonnull Matrix4fc objectTransform) {
+        MeshData meshData = mesh.data();
+        int lodCount = meshData.getLodCount();
+        if (lodCount == 1 || pixelError == 0) {
+            return 0;
+        }
+
+        model.transform().mul(objectTransform, modelTransform);
+        modelTransform.transformPosition(mesh.bounds().center(), center);
+        modelTransform.getScale(scale);
+        float maxScale = Math.max(Math.max(scale.x, scale.y), scale.z);
+        float distance = center.distance(cameraPosition) - mesh.bounds().radius() * maxScale;
+
+        int meshIndex = indexOf(model.meshes(), mesh);
+        int[] previous = previousLods.get(model);
+        int previousLod = previous != null && previous.length == model.meshes().size() ? previous[meshIndex] : -1;
+        int lod = 0;
+        // Inside the bounding sphere nothing but the full mesh will do
+        if (distance > 0) {
+            float pixelsPerError = maxScale * pixelsPerUnit / distance;
+            for (int candidate = lodCount - 1; candidate > 0; candidate--) {
+                float allowedPixels = previousLod >= 0 && candidate > previousLod ? pixelError * HYSTERESIS : pixelError;
+                if (meshData.getLodError(candidate) * pixelsPerError <= allowedPixels) {
+                    lod = candidate;
+                    break;
+                }
+            }
+        }
+
+        int[] current = currentLods.computeIfAbsent(model, key -> new int[key.meshes().size()]);
+        current[meshIndex] = lod;
+        if (lod > 0) {
+            meshesSimplified = meshesSimplified + 1;
+        }
+        return lod;
+    }
+
+    /**
+     * @return how many meshes got a simplified level of detail since the last {@link #begin}
+     */
+    public int meshesSimplified() {
+        return meshesSimplified;
+    }
+
+    private static int indexOf(List<Mesh> meshes, Mesh mesh) {
+        for (int i = 0; i < meshes.size(); i++) {
+            if (meshes.get(i) == mesh) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("The mesh is not part of the model");
+    }
+}
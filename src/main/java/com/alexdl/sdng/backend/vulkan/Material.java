@@ -2,5 +2,13 @@ package com.alexdl.sdng.backend.vulkan;
 
 import org.joml.Vector4f;
 
-public record Material(Texture diffuse, Vector4f diffuseColor) {
+import javax.annotation.Nullable;
+
+/**
+ * @param pipeline how meshes with this material are drawn, or {@code null} for the renderer's standard pipeline
+ */
+public record Material(Texture diffuse, Vector4f diffuseColor, @Nullable PipelineDescription pipeline) {
+    public Material(Texture diffuse, Vector4f diffuseColor) {
+        this(diffuse, diffuseColor, null);
+    }
 }
@@ -1,4 +1,7 @@
 package com.alexdl.sdng.backend.vulkan;
 
-public record Mesh(MeshData data, Material material) {
+/**
+ * @param bounds bounds of the vertices, in the space of the model the mesh belongs to
+ */
+public record Mesh(MeshData data, Material material, Bounds bounds) {
 }
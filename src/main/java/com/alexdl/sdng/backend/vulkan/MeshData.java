@@ -3,54 +3,120 @@ package com.alexdl.sdng.backend.vulkan;
 import com.alexdl.sdng.backend.Disposable;
 import com.alexdl.sdng.backend.vulkan.structs.VertexDataStruct;
 import org.lwjgl.vulkan.VkBuffer;
-import org.lwjgl.vulkan.VkCommandPool;
-import org.lwjgl.vulkan.VkDevice;
-import org.lwjgl.vulkan.VkQueue;
 
 import javax.annotation.Nonnull;
 import java.nio.IntBuffer;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
-import static com.alexdl.sdng.backend.vulkan.VulkanUtils.createIndexBuffer;
-import static com.alexdl.sdng.backend.vulkan.VulkanUtils.createVertexBuffer;
-
+/**
+ * Geometry of a single mesh, living in a shared page of a {@link GeometryPool}. Draws have to use
+ * {@link #getFirstIndex()} and {@link #getVertexOffset()}, since the buffers are shared with other meshes.
+ * <p>
+ * The index data can hold several levels of detail one after another, which all use the same vertices. Level 0 is the
+ * full mesh, and every following one is simpler.
+ */
 public class MeshData implements Disposable {
-    private final VkBuffer vertexBuffer;
-    private final int indexCount;
-    private final VkBuffer indexBuffer;
-    private final VkDevice logicalDevice;
+    /**
+     * @param firstIndex first index of the level, relative to the start of the mesh's index data
+     * @param error      how far the level's surface is from the full mesh at most, in the units of the vertex positions
+     */
+    public record Lod(int firstIndex, int indexCount, float error) {
+    }
 
-    public MeshData(@Nonnull VkQueue transferQueue,
-                    @Nonnull VkCommandPool transferCommandPool,
+    private final GeometryPool geometryPool;
+    private final GeometryPool.Allocation allocation;
+    private final List<Lod> lods;
+
+    public MeshData(@Nonnull GeometryPool geometryPool,
                     @Nonnull VertexDataStruct.Buffer vertexData,
                     @Nonnull IntBuffer indexData) {
-        this.indexCount = indexData.limit();
-        this.logicalDevice = transferQueue.getDevice();
-        this.vertexBuffer = createVertexBuffer(vertexData, transferQueue, transferCommandPool);
-        this.indexBuffer = createIndexBuffer(indexData, transferQueue, transferCommandPool);
+        this.geometryPool = geometryPool;
+        this.lods = List.of(new Lod(0, indexData.limit(), 0));
+        this.allocation = geometryPool.allocate(vertexData, indexData);
+    }
+
+    public MeshData(@Nonnull GeometryPool geometryPool,
+                    @Nonnull VertexDataStruct.Buffer vertexData,
+                    @Nonnull IntBuffer indexData,
+                    @Nonnull UploadBatch uploadBatch) {
+        this(geometryPool, vertexData, indexData, List.of(new Lod(0, indexData.limit(), 0)), uploadBatch);
+    }
+
+    /**
+     * @param lods the levels of detail stored in the index data, starting with the full mesh
+     */
+    public MeshData(@Nonnull GeometryPool geometryPool,
+                    @Nonnull VertexDataStruct.Buffer vertexData,
+                    @Nonnull IntBuffer indexData,
+                    @Nonnull List<Lod> lods,
+                    @Nonnull UploadBatch uploadBatch) {
+        if (lods.isEmpty()) {
+            throw new IllegalArgumentException("A mesh needs at least one level of detail");
+        }
+        for (Lod lod : lods) {
+            if (lod.firstIndex() < 0 || lod.firstIndex() + lod.indexCount() > indexData.limit()) {
+                throw new IllegalArgumentException("Level of detail " + lod + " is outside of the " + indexData.limit() + " indices");
+            }
+        }
+        this.geometryPool = geometryPool;
+        this.lods = List.copyOf(lods);
+        this.allocation = geometryPool.allocate(vertexData, indexData, uploadBatch);
     }
 
     public VkBuffer getVertexBuffer() {
-        return vertexBuffer;
+        return allocation.page().vertexBuffer();
     }
 
+    public int getVertexOffset() {
+        return allocation.vertexOffset();
+    }
+
+    /**
+     * @return the index count of the full mesh
+     */
     public int getIndexCount() {
-        return indexCount;
+        return lods.get(0).indexCount();
+    }
+
+    public int getIndexCount(int lod) {
+        return lods.get(lod).indexCount();
     }
 
     public VkBuffer getIndexBuffer() {
-        return indexBuffer;
+        return allocation.page().indexBuffer();
+    }
+
+    public int getFirstIndex() {
+        return allocation.firstIndex() + lods.get(0).firstIndex();
+    }
+
+    public int getFirstIndex(int lod) {
+        return allocation.firstIndex() + lods.get(lod).firstIndex();
+    }
+
+    public int getLodCount() {
+        return lods.size();
+    }
+
+    public float getLodError(int lod) {
+        return lods.get(lod).error();
+    }
+
+    /**
+     * @return whether the geometry has finished uploading and can be drawn
+     */
+    public boolean isResident() {
+        CompletableFuture<Void> residency = allocation.residency();
+        return residency.isDone() && !residency.isCompletedExceptionally();
+    }
+
+    public @Nonnull CompletableFuture<Void> residency() {
+        return allocation.residency();
     }
 
     @Override
     public void dispose() {
-        try (VulkanSession vk = new VulkanSession()) {
-            vk.destroyBuffer(logicalDevice, vertexBuffer, null);
-            vk.destroyBuffer(logicalDevice, indexBuffer, null);
-
-            assert vertexBuffer.memory() != null;
-            vk.freeMemory(logicalDevice, vertexBuffer.memory(), null);
-            assert indexBuffer.memory() != null;
-            vk.freeMemory(logicalDevice, indexBuffer.memory(), null);
-        }
+        geometryPool.release(allocation);
     }
 }
@@ -4,5 +4,11 @@ import org.joml.Matrix4f;
 
 import java.util.List;
 
-public record Model(List<Mesh> meshes, Matrix4f transform) {
+/**
+ * @param bounds bounds of all meshes, in the space of the model before its transform is applied
+ */
+public record Model(List<Mesh> meshes, Matrix4f transform, Bounds bounds) {
+    public Model(List<Mesh> meshes, Matrix4f transform) {
+        this(meshes, transform, Bounds.union(meshes.stream().map(Mesh::bounds).toList()));
+    }
 }
@@ -0,0 +1,133 @@
+package com.alexdl.sdng.backend.vulkan;
+
+import com.alexdl.sdng.backend.Disposable;
+import com.alexdl.sdng.occlusion.Occluder;
+import com.alexdl.sdng.occlusion.OcclusionBuffer;
+import org.joml.Matrix4f;
+import org.joml.Matrix4fc;
+
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BiConsumer;
+
+/**
+ * Culls models and meshes that frustum culling let through, but which are hidden behind the queued occluders.
+ * <p>
+ * The occluders are rasterized into an {@link OcclusionBuffer} first, and then every model's bounds are tested against
+ * it, followed by the bounds of the meshes of models that are not hidden as a whole. Without any occluders queued
+ * nothing is rasterized or tested.
+ */
+public class OcclusionCuller implements Disposable {
+    public static final int WIDTH = 256;
+    public static final int HEIGHT = 128;
+
+    private final OcclusionBuffer occlusionBuffer;
+    private final List<Occluder> queuedOccluders;
+    private final List<Matrix4fc> queuedOccluderTransforms;
+    private final Matrix4f modelViewProjection;
+    private int modelsDrawn;
+    private int modelsCulled;
+    private int meshesDrawn;
+    private int meshesCulled;
+
+    public OcclusionCuller(int workerCount) {
+        this.occlusionBuffer = new OcclusionBuffer(WIDTH, HEIGHT, workerCount);
+        this.queuedOccluders = new ArrayList<>();
+        this.queuedOccluderTransforms = new ArrayList<>();
+        this.modelViewProjection = new Matrix4f();
+    }
+
+    /**
+     * @param transform transform of the occluder, which is applied after the object transform like a model's
+     */
+    public void queueOccluder(@Nonnull Occluder occluder, @Nonnull Matrix4fc transform) {
+        queuedOccluders.add(occluder);
+        queuedOccluderTransforms.add(transform);
+    }
+
+    public void clearQueue() {
+        queuedOccluders.clear();
+        queuedOccluderTransforms.clear();
+    }
+
+    /**
+     * Rasterizes the queued occluders.
+     *
+     * @param viewProjection  projection times view of the camera
+     * @param objectTransform transform applied to every vertex before the model transform
+     */
+    public void rasterize(@Nonnull Matrix4fc viewProjection, @Nonnull Matrix4fc objectTransform) {
+        occlusionBuffer.clear();
+        for (int i = 0; i < queuedOccluders.size(); i++) {
+            viewProjection.mul(queuedOccluderTransforms.get(i), modelViewProjection).mul(objectTransform);
+            occlusionBuffer.addOccluder(queuedOccluders.get(i), modelViewProjection);
+        }
+        if (!queuedOccluders.isEmpty()) {
+            occlusionBuffer.rasterize();
+        }
+        modelsDrawn = 0;
+        modelsCulled = 0;
+        meshesDrawn = 0;
+        meshesCulled = 0;
+    }
+
+    /**
+     * Wraps the consumer of visible meshes, so that it is only called for the ones that are not occluded. The meshes of
+     * a model have to be passed one after another, like {@link FrustumCuller#cull} does.
+     *
+     * @param viewProjection  the same as passed to {@link #rasterize}
+     * @param objectTransform the same as passed to {@link #rasterize}
+     */
+    public @Nonnull BiConsumer<Model, Mesh> cull(@Nonnull Matrix4fc viewProjection,
+                                                @Nonnull Matrix4fc objectTransform,
+                                                @Nonnull BiConsumer<Model, Mesh> visible) {
+        if (queuedOccluders.isEmpty()) {
+            return visible;
+        }
+        return new BiConsumer<>() {
+            private Model currentModel;
+            private boolean currentModelOccluded;
+
+            @Override
+            public void accept(Model model, Mesh mesh) {
+                if (model != currentModel) {
+                    currentModel = model;
+                    viewProjection.mul(model.transform(), modelViewProjection).mul(objectTransform);
+                    Bounds bounds = model.bounds();
+                    currentModelOccluded = occlusionBuffer.isOccluded(bounds.min(), bounds.max(), modelViewProjection);
+                    if (currentModelOccluded) {
+                        modelsCulled = modelsCulled + 1;
+                    } else {
+                        modelsDrawn = modelsDrawn + 1;
+                    }
+                }
+                // A model's only mesh has the same bounds as the model itself
+                boolean occluded = currentModelOccluded || (model.meshes().size() > 1
+                        && occlusionBuffer.isOccluded(mesh.bounds().min(), mesh.bounds().max(), modelViewProjection));
+                if (occluded) {
+                    meshesCulled = meshesCulled + 1;
+                } else {
+                    meshesDrawn = meshesDrawn + 1;
+                    visible.accept(model, mesh);
+                }
+            }
+        };
+    }
+
+    /**
+     * @return the counters of the last frame's culling, only counting what was inside the frustum
+     */
+    public @Nonnull CullingStatistics statistics() {
+        return new CullingStatistics(modelsDrawn, modelsCulled, meshesDrawn, meshesCulled);
+    }
+
+    public int occluderTriangleCount() {
+        return occlusionBuffer.triangleCount();
+    }
+
+    @Override
+    public void dispose() {
+        occlusionBuffer.dispose();
+    }
+}
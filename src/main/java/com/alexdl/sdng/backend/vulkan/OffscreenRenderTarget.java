@@ -0,0 +1,115 @@
+package com.alexdl.sdng.backend.vulkan;
+
+import com.alexdl.sdng.backend.Disposable;
+import org.lwjgl.vulkan.VkDevice;
+import org.lwjgl.vulkan.VkExtent2D;
+import org.lwjgl.vulkan.VkFormatFeatureFlags;
+import org.lwjgl.vulkan.VkImageAspectFlags;
+import org.lwjgl.vulkan.VkImageUsageFlags;
+import org.lwjgl.vulkan.VkImageView;
+import org.lwjgl.vulkan.VkMemoryPropertyFlags;
+import org.lwjgl.vulkan.VkSemaphore;
+import org.lwjgl.vulkan.enums.VkFormat;
+import org.lwjgl.vulkan.enums.VkImageLayout;
+import org.lwjgl.vulkan.enums.VkImageTiling;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import static com.alexdl.sdng.backend.vulkan.VulkanUtils.createImage;
+import static com.alexdl.sdng.backend.vulkan.VulkanUtils.destroyImage;
+import static com.alexdl.sdng.backend.vulkan.VulkanUtils.findBestImageFormat;
+import static org.lwjgl.vulkan.VK10.*;
+
+/**
+ * Renders into device-local color images instead of a swapchain, so no window, surface or presentation engine
+ * is needed. The images are cycled through in order and left in a layout they can be copied out of.
+ */
+public class OffscreenRenderTarget implements RenderTarget {
+    private final VkDevice logicalDevice;
+    private final VkExtent2D extent;
+    private final List<Image> colorImages;
+    private final List<VkImageView> colorImageViews;
+    private int nextImageIndex = 0;
+
+    public OffscreenRenderTarget(@Nonnull VkDevice logicalDevice, int width, int height, int imageCount) {
+        this.logicalDevice = logicalDevice;
+        //noinspection resource
+        this.extent = VkExtent2D.malloc().set(width, height);
+
+        VkFormat format = findBestImageFormat(logicalDevice,
+                Set.of(VkFormat.VK_FORMAT_R8G8B8A8_UNORM, VkFormat.VK_FORMAT_B8G8R8A8_UNORM),
+                VkImageTiling.VK_IMAGE_TILING_OPTIMAL,
+                new VkFormatFeatureFlags(VK_FORMAT_FEATURE_COLOR_ATTACHMENT_BIT));
+
+        colorImages = new ArrayList<>(imageCount);
+        for (int i = 0; i < imageCount; i++) {
+            colorImages.add(i, createImage(logicalDevice, width, height, format,
+                    VkImageTiling.VK_IMAGE_TILING_OPTIMAL,
+                    new VkImageUsageFlags(VK_IMAGE_USAGE_COLOR_ATTACHMENT_BIT | VK_IMAGE_USAGE_TRANSFER_SRC_BIT),
+                    new VkMemoryPropertyFlags(VK_MEMORY_PROPERTY_DEVICE_LOCAL_BIT),
+                    new VkImageAspectFlags(VK_IMAGE_ASPECT_COLOR_BIT)));
+        }
+        colorImageViews = colorImages.stream().map(Image::view).toList();
+    }
+
+    @Override
+    public @Nonnull VkFormat colorFormat() {
+        return colorImages.getFirst().format();
+    }
+
+    @Override
+    public @Nonnull VkExtent2D extent() {
+        return extent;
+    }
+
+    @Override
+    public @Nonnull VkImageLayout finalLayout() {
+        return VkImageLayout.VK_IMAGE_LAYOUT_TRANSFER_SRC_OPTIMAL;
+    }
+
+    @Override
+    public @Nonnull List<VkImageView> colorImageViews() {
+        return colorImageViews;
+    }
+
+    public @Nonnull List<Image> colorImages() {
+        return colorImages;
+    }
+
+    @Override
+    public boolean presentable() {
+        return false;
+    }
+
+    @Override
+    public int acquireNextImage(@Nonnull VkSemaphore imageAvailableSemaphore) {
+        int imageIndex = nextImageIndex;
+        nextImageIndex = (nextImageIndex + 1) % colorImages.size();
+        return imageIndex;
+    }
+
+    @Override
+    public boolean present(int imageIndex, @Nonnull VkSemaphore renderFinishedSemaphore) {
+        // Nothing to present to, the finished frame simply stays in the color image
+        return false;
+    }
+
+    @Override
+    public @Nullable Disposable recreate() {
+        // The size is fixed by the configuration, so there is never anything to recreate
+        return () -> {
+        };
+    }
+
+    @Override
+    public void dispose() {
+        for (Image image : colorImages) {
+            destroyImage(logicalDevice, image);
+        }
+        extent.free();
+    }
+}
@@ -0,0 +1,169 @@
+package com.alexdl.sdng.backend.vulkan;
+
+import com.alexdl.sdng.backend.Disposable;
+import org.lwjgl.PointerBuffer;
+import org.lwjgl.vulkan.*;
+
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.alexdl.sdng.backend.vulkan.VulkanUtils.createCommandPool;
+import static com.alexdl.sdng.backend.vulkan.VulkanUtils.throwIfFailed;
+import static org.lwjgl.vulkan.VK10.*;
+
+/**
+ * Splits a frame's draw batches across worker threads, each of which records a secondary command buffer from a
+ * command pool that only it uses, and then executes all of them from the primary command buffer.
+ * <p>
+ * There is a set of pools for every recording slot (e.g. every frame in flight), so a slot's pools can be reset as soon
+ * as the last submission using them has finished, while the other slots' secondary buffers may still be executing or
+ * be kept around to be submitted again.
+ */
+public class ParallelCommandRecorder implements Disposable {
+    private static final int MIN_BATCHES_PER_WORKER = 32;
+
+    private final VkDevice logicalDevice;
+    private final int workerCount;
+    private final int inheritedPipelineStatistics;
+    private final ExecutorService executor;
+    private final VkCommandPool[][] commandPools;
+    private final VkCommandBuffer[][] commandBuffers;
+
+    @FunctionalInterface
+    public interface BatchRecorder {
+        @Nonnull RenderStatistics record(@Nonnull VkCommandBuffer commandBuffer, @Nonnull List<DrawBatch> batches);
+    }
+
+    /**
+     * @param inheritedPipelineStatistics pipeline statistics queried by the primary command buffer around the render
+     *                                    pass, which the secondary ones have to declare
+     */
+    public ParallelCommandRecorder(@Nonnull VkDevice logicalDevice, int queueFamilyIndex, int slots, int workerCount,
+                                   int inheritedPipelineStatistics) {
+        this.logicalDevice = logicalDevice;
+        this.workerCount = workerCount;
+        this.inheritedPipelineStatistics = inheritedPipelineStatistics;
+
+        AtomicInteger threadCounter = new AtomicInteger(0);
+        this.executor = Executors.newFixedThreadPool(workerCount, runnable -> {
+            Thread thread = new Thread(runnable, "command-recorder-" + threadCounter.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        this.commandPools = new VkCommandPool[slots][workerCount];
+        this.commandBuffers = new VkCommandBuffer[slots][workerCount];
+        try (VulkanSession vk = new VulkanSession()) {
+            for (int slot = 0; slot < slots; slot++) {
+                for (int worker = 0; worker < workerCount; worker++) {
+                    VkCommandPool commandPool = createCommandPool(logicalDevice, queueFamilyIndex);
+                    VkCommandBufferAllocateInfo allocateInfo = VkCommandBufferAllocateInfo.calloc(vk.stack())
+                            .sType$Default()
+                            .commandPool(commandPool.address())
+                            .level(VK_COMMAND_BUFFER_LEVEL_SECONDARY)
+                            .commandBufferCount(1);
+                    commandPools[slot][worker] = commandPool;
+                    commandBuffers[slot][worker] = vk.allocateCommandBuffers(logicalDevice, allocateInfo).getFirst();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return how many workers are worth using for the given number of batches, recording on fewer than two workers
+     * should be done inline in the primary command buffer instead
+     */
+    public int workersFor(int batchCount) {
+        return Math.min(workerCount, Math.ceilDiv(batchCount, MIN_BATCHES_PER_WORKER));
+    }
+
+    /**
+     * Records the batches into secondary command buffers on {@code workers} threads and executes them from the
+     * primary command buffer, which has to be inside a render pass begun with secondary command buffer contents.
+     */
+    public @Nonnull RenderStatistics record(int slot,
+                                            @Nonnull VkCommandBuffer primaryCommandBuffer,
+                                            @Nonnull VkRenderPass renderPass,
+                                            @Nonnull VkFramebuffer framebuffer,
+                                            @Nonnull List<DrawBatch> batches,
+                                            int workers,
+                                            @Nonnull BatchRecorder recorder) {
+        assert workers > 0 && workers <= workerCount;
+        int batchesPerWorker = Math.ceilDiv(batches.size(), workers);
+
+        List<Future<RenderStatistics>> futures = new ArrayList<>(workers);
+        for (int worker = 0; worker < workers; worker++) {
+            List<DrawBatch> workerBatches = batches.subList(
+                    Math.min(worker * batchesPerWorker, batches.size()),
+                    Math.min((worker + 1) * batchesPerWorker, batches.size()));
+            VkCommandPool commandPool = commandPools[slot][worker];
+            VkCommandBuffer commandBuffer = commandBuffers[slot][worker];
+            futures.add(executor.submit(() -> recordSecondary(commandPool, commandBuffer, renderPass, framebuffer, workerBatches, recorder)));
+        }
+
+        RenderStatistics statistics = RenderStatistics.EMPTY;
+        try (VulkanSession vk = new VulkanSession()) {
+            PointerBuffer secondaryCommandBuffers = vk.stack().mallocPointer(workers);
+            for (int worker = 0; worker < workers; worker++) {
+                statistics = statistics.plus(awaitRecording(futures.get(worker)));
+                secondaryCommandBuffers.put(worker, commandBuffers[slot][worker]);
+            }
+            vkCmdExecuteCommands(primaryCommandBuffer, secondaryCommandBuffers);
+        }
+        return statistics;
+    }
+
+    @Override
+    public void dispose() {
+        executor.shutdownNow();
+        for (VkCommandPool[] slotPools : commandPools) {
+            for (VkCommandPool commandPool : slotPools) {
+                vkDestroyCommandPool(logicalDevice, commandPool.address(), null);
+            }
+        }
+    }
+
+    private RenderStatistics recordSecondary(VkCommandPool commandPool,
+                                             VkCommandBuffer commandBuffer,
+                                             VkRenderPass renderPass,
+                                             VkFramebuffer framebuffer,
+                                             List<DrawBatch> batches,
+                                             BatchRecorder recorder) {
+        try (VulkanSession vk = new VulkanSession()) {
+            throwIfFailed(vkResetCommandPool(logicalDevice, commandPool.address(), 0));
+
+            VkCommandBufferInheritanceInfo inheritanceInfo = VkCommandBufferInheritanceInfo.calloc(vk.stack())
+                    .sType$Default()
+                    .renderPass(renderPass.address())
+                    .subpass(0)
+                    .framebuffer(framebuffer.address())
+                    .pipelineStatistics(inheritedPipelineStatistics);
+            VkCommandBufferBeginInfo beginInfo = VkCommandBufferBeginInfo.calloc(vk.stack())
+                    .sType$Default()
+                    .flags(VK_COMMAND_BUFFER_USAGE_RENDER_PASS_CONTINUE_BIT)
+                    .pInheritanceInfo(inheritanceInfo);
+
+            throwIfFailed(vkBeginCommandBuffer(commandBuffer, beginInfo));
+            RenderStatistics statistics = recorder.record(commandBuffer, batches);
+            throwIfFailed(vkEndCommandBuffer(commandBuffer));
+            return statistics;
+        }
+    }
+
+    private static RenderStatistics awaitRecording(Future<RenderStatistics> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for command recording", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Failed to record secondary command buffer", e.getCause());
+        }
+    }
+}
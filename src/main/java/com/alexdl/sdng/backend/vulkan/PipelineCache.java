@@ -0,0 +1,165 @@
+package com.alexdl.sdng.backend.vulkan;
+
+import com.alexdl.sdng.backend.Disposable;
+import com.alexdl.sdng.logging.Logger;
+import org.lwjgl.PointerBuffer;
+import org.lwjgl.vulkan.VkDevice;
+import org.lwjgl.vulkan.VkPhysicalDevice;
+import org.lwjgl.vulkan.VkPhysicalDeviceProperties;
+import org.lwjgl.vulkan.VkPipelineCache;
+import org.lwjgl.vulkan.VkPipelineCacheCreateInfo;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.HexFormat;
+
+import static com.alexdl.sdng.backend.vulkan.VulkanUtils.throwIfFailed;
+import static org.lwjgl.system.MemoryUtil.*;
+import static org.lwjgl.vulkan.VK10.*;
+
+/**
+ * A {@link VkPipelineCache} that is loaded from a file in the cache directory on startup and written back on dispose,
+ * so that pipelines compiled by earlier runs don't have to be compiled again.
+ * <p>
+ * The driver is free to ignore data it does not recognize, but some don't handle foreign data gracefully, so the
+ * header is checked against the vendor, device and cache UUID of the physical device before handing it over.
+ */
+public class PipelineCache implements Disposable {
+    private static final int HEADER_SIZE = 16 + VK_UUID_SIZE;
+
+    private final Logger logger = new Logger(PipelineCache.class);
+    private final VkDevice logicalDevice;
+    private final @Nullable Path file;
+    private final VkPipelineCache handle;
+    private final int vendorId;
+    private final int deviceId;
+    private final byte[] cacheUuid;
+    private final boolean warm;
+
+    /**
+     * @param directory where the cache file is kept, or {@code null} for a cache that only lives as long as the process
+     */
+    public PipelineCache(@Nonnull VkPhysicalDevice physicalDevice, @Nonnull VkDevice logicalDevice, @Nullable Path directory) {
+        this.logicalDevice = logicalDevice;
+        try (VulkanSession vk = new VulkanSession()) {
+            VkPhysicalDeviceProperties properties = vk.getPhysicalDeviceProperties(physicalDevice);
+            this.vendorId = properties.vendorID();
+            this.deviceId = properties.deviceID();
+            this.cacheUuid = new byte[VK_UUID_SIZE];
+            properties.pipelineCacheUUID().get(cacheUuid);
+        }
+        // One file per device, so that machines with more than one GPU don't keep throwing each other's data away
+        this.file = directory != null
+                ? directory.resolve(String.format("pipelines-%04x-%04x.bin", vendorId, deviceId))
+                : null;
+
+        ByteBuffer initialData = readValidData();
+        this.warm = initialData != null;
+        try (VulkanSession vk = new VulkanSession()) {
+            VkPipelineCacheCreateInfo createInfo = VkPipelineCacheCreateInfo.calloc(vk.stack())
+                    .sType$Default()
+                    .pInitialData(initialData);
+            LongBuffer pointer = vk.stack().mallocLong(1);
+            throwIfFailed(vkCreatePipelineCache(logicalDevice, createInfo, null, pointer));
+            this.handle = new VkPipelineCache(pointer.get(0));
+        } finally {
+            if (initialData != null) {
+                memFree(initialData);
+            }
+        }
+    }
+
+    public @Nonnull VkPipelineCache handle() {
+        return handle;
+    }
+
+    /**
+     * @return whether the cache started out with valid data from an earlier run
+     */
+    public boolean isWarm() {
+        return warm;
+    }
+
+    /**
+     * Writes the current contents of the cache to the cache file, replacing it atomically.
+     */
+    public void save() {
+        if (file == null) {
+            return;
+        }
+        ByteBuffer data = null;
+        try (VulkanSession vk = new VulkanSession()) {
+            PointerBuffer size = vk.stack().mallocPointer(1);
+            throwIfFailed(vkGetPipelineCacheData(logicalDevice, handle.address(), size, null));
+            data = memAlloc((int) size.get(0));
+            throwIfFailed(vkGetPipelineCacheData(logicalDevice, handle.address(), size, data));
+            data.limit((int) size.get(0));
+
+            Files.createDirectories(file.getParent());
+            Path temporaryFile = file.resolveSibling(file.getFileName() + ".tmp");
+            byte[] bytes = new byte[data.remaining()];
+            data.get(bytes);
+            Files.write(temporaryFile, bytes);
+            Files.move(temporaryFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            logger.info("Saved %d bytes of pipeline cache to '%s'", bytes.length, file);
+        } catch (IOException e) {
+            logger.warn("Failed to save the pipeline cache to '%s': %s", file, e.getMessage());
+        } finally {
+            if (data != null) {
+                memFree(data);
+            }
+        }
+    }
+
+    @Override
+    public void dispose() {
+        save();
+        vkDestroyPipelineCache(logicalDevice, handle.address(), null);
+    }
+
+    private @Nullable ByteBuffer readValidData() {
+        if (file == null || !Files.isRegularFile(file)) {
+            return null;
+        }
+        byte[] bytes;
+        try {
+            bytes = Files.readAllBytes(file);
+        } catch (IOException e) {
+            logger.warn("Failed to read the pipeline cache from '%s': %s", file, e.getMessage());
+            return null;
+        }
+
+        // VkPipelineCacheHeaderVersionOne, written in the byte order of the host
+        ByteBuffer header = ByteBuffer.wrap(bytes).order(ByteOrder.nativeOrder());
+        if (bytes.length < HEADER_SIZE) {
+            logger.warn("Ignoring pipeline cache '%s', it is too short to hold a header", file);
+            return null;
+        }
+        int headerSize = header.getInt(0);
+        int headerVersion = header.getInt(4);
+        int fileVendorId = header.getInt(8);
+        int fileDeviceId = header.getInt(12);
+        byte[] fileCacheUuid = Arrays.copyOfRange(bytes, 16, 16 + VK_UUID_SIZE);
+        if (headerSize < HEADER_SIZE || headerSize > bytes.length || headerVersion != VK_PIPELINE_CACHE_HEADER_VERSION_ONE) {
+            logger.warn("Ignoring pipeline cache '%s', its header is malformed", file);
+            return null;
+        }
+        if (fileVendorId != vendorId || fileDeviceId != deviceId || !Arrays.equals(fileCacheUuid, cacheUuid)) {
+            logger.info("Ignoring pipeline cache '%s', it was written by another device or driver (cache UUID %s)",
+                    file, HexFormat.of().formatHex(fileCacheUuid));
+            return null;
+        }
+
+        ByteBuffer data = memAlloc(bytes.length);
+        data.put(bytes).flip();
+        return data;
+    }
+}
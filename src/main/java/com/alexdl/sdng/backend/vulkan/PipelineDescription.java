@@ -0,0 +1,84 @@
+package com.alexdl.sdng.backend.vulkan;
+
+import org.lwjgl.vulkan.VkRenderPass;
+
+import javax.annotation.Nonnull;
+import java.util.List;
+
+import static org.lwjgl.vulkan.VK10.*;
+
+/**
+ * Everything that goes into a graphics pipeline. Two equal descriptions always produce the same pipeline, which is
+ * what {@link PipelineRegistry} uses to share them.
+ *
+ * @param vertexShader   class path resource of the compiled vertex shader
+ * @param fragmentShader class path resource of the compiled fragment shader
+ * @param cullMode       one of the {@code VK_CULL_MODE_*} flags
+ */
+public record PipelineDescription(
+        @Nonnull String vertexShader,
+        @Nonnull String fragmentShader,
+        @Nonnull VertexLayout vertexLayout,
+        @Nonnull BlendMode blendMode,
+        boolean depthTest,
+        boolean depthWrite,
+        int cullMode,
+        @Nonnull VkRenderPass renderPass
+) {
+    public enum BlendMode {
+        OPAQUE,
+        /** Non-premultiplied alpha blending */
+        ALPHA
+    }
+
+    /**
+     * @param format one of the {@code VK_FORMAT_*} values
+     */
+    public record VertexAttribute(int location, int format, int offset) {
+    }
+
+    public record VertexLayout(int stride, @Nonnull List<VertexAttribute> attributes) {
+        /** The interleaved position, color and uv layout of {@link Vertex} */
+        public static final VertexLayout STANDARD = new VertexLayout(Vertex.BYTES, List.of(
+                new VertexAttribute(0, VK_FORMAT_R32G32B32_SFLOAT, Vertex.POSITION_OFFSET_BYTES),
+                new VertexAttribute(1, VK_FORMAT_R32G32B32_SFLOAT, Vertex.COLOR_OFFSET_BYTES),
+                new VertexAttribute(2, VK_FORMAT_R32G32_SFLOAT, Vertex.UV_OFFSET_BYTES)
+        ));
+
+        public VertexLayout {
+            attributes = List.copyOf(attributes);
+        }
+    }
+
+    /**
+     * The shaders and state that the renderer draws everything with unless a material asks for something else.
+     */
+    public static @Nonnull PipelineDescription standard(@Nonnull VkRenderPass renderPass) {
+        return new PipelineDescription(
+                "shaders/vert.spv",
+                "shaders/frag.spv",
+                VertexLayout.STANDARD,
+                BlendMode.ALPHA,
+                true,
+                true,
+                VK_CULL_MODE_NONE, // TODO: Change back to VK_CULL_MODE_BACK_BIT
+                renderPass
+        );
+    }
+
+    public @Nonnull PipelineDescription withShaders(@Nonnull String vertexShader, @Nonnull String fragmentShader) {
+        return new PipelineDescription(vertexShader, fragmentShader, vertexLayout, blendMode, depthTest, depthWrite, cullMode, renderPass);
+    }
+
+    public @Nonnull PipelineDescription withBlendMode(@Nonnull BlendMode blendMode) {
+        return new PipelineDescription(vertexShader, fragmentShader, vertexLayout, blendMode, depthTest, depthWrite, cullMode, renderPass);
+    }
+
+    public @Nonnull PipelineDescription withDepth(boolean depthTest, boolean depthWrite) {
+        return new PipelineDescription(vertexShader, fragmentShader, vertexLayout, blendMode, depthTest, depthWrite, cullMode, renderPass);
+    }
+
+    public @Nonnull PipelineDescription withCullMode(int cullMode) {
+        return new PipelineDescription(vertexShader, fragmentShader, vertexLayout, blendMode, depthTest, depthWrite, cullMode, renderPass);
+    }
+}
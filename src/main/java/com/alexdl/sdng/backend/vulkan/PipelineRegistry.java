@@ -0,0 +1,105 @@
+package com.alexdl.sdng.backend.vulkan;
+
+import com.alexdl.sdng.backend.Disposable;
+import com.alexdl.sdng.logging.Logger;
+import org.lwjgl.vulkan.VkDevice;
+import org.lwjgl.vulkan.VkPipeline;
+import org.lwjgl.vulkan.VkPipelineLayout;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.alexdl.sdng.backend.vulkan.VulkanUtils.createGraphicsPipeline;
+import static org.lwjgl.vulkan.VK10.vkDestroyPipeline;
+
+/**
+ * Creates graphics pipelines on demand from a {@link PipelineDescription}, on a pool of background threads.
+ * <p>
+ * Every distinct description is compiled once, requesting it again returns the same pipeline (or the same pending
+ * compilation). The render loop uses {@link #getIfReady(PipelineDescription)}, which never waits, and draws with a
+ * fallback pipeline until the one it asked for is done.
+ */
+public class PipelineRegistry implements Disposable {
+    private final Logger logger = new Logger(PipelineRegistry.class);
+    private final VkDevice logicalDevice;
+    private final PipelineCache pipelineCache;
+    private final VkPipelineLayout pipelineLayout;
+    private final Map<PipelineDescription, CompletableFuture<VkPipeline>> pipelines;
+    private final ExecutorService compilers;
+
+    public PipelineRegistry(@Nonnull VkDevice logicalDevice,
+                            @Nonnull PipelineCache pipelineCache,
+                            @Nonnull VkPipelineLayout pipelineLayout,
+                            int compilerThreads) {
+        this.logicalDevice = logicalDevice;
+        this.pipelineCache = pipelineCache;
+        this.pipelineLayout = pipelineLayout;
+        this.pipelines = new ConcurrentHashMap<>();
+        AtomicInteger threadCount = new AtomicInteger();
+        this.compilers = Executors.newFixedThreadPool(compilerThreads, runnable -> {
+            Thread thread = new Thread(runnable, "pipeline-compiler-" + threadCount.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * @return the pipeline for the description, compiled on a background thread unless it was requested before
+     */
+    public @Nonnull CompletableFuture<VkPipeline> request(@Nonnull PipelineDescription description) {
+        return pipelines.computeIfAbsent(description, key -> CompletableFuture.supplyAsync(() -> compile(key), compilers));
+    }
+
+    /**
+     * Requests the pipeline without waiting for it.
+     *
+     * @return the pipeline if it has been compiled already, {@code null} while it is still compiling or if compiling
+     * it failed
+     */
+    public @Nullable VkPipeline getIfReady(@Nonnull PipelineDescription description) {
+        CompletableFuture<VkPipeline> pipeline = request(description);
+        return pipeline.isDone() && !pipeline.isCompletedExceptionally() ? pipeline.join() : null;
+    }
+
+    public int size() {
+        return pipelines.size();
+    }
+
+    @Override
+    public void dispose() {
+        compilers.shutdown();
+        try {
+            if (!compilers.awaitTermination(10, TimeUnit.SECONDS)) {
+                logger.warn("Pipeline compilation did not finish in time");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (CompletableFuture<VkPipeline> pipeline : pipelines.values()) {
+            if (pipeline.isDone() && !pipeline.isCompletedExceptionally()) {
+                vkDestroyPipeline(logicalDevice, pipeline.join().address(), null);
+            }
+        }
+        pipelines.clear();
+    }
+
+    private VkPipeline compile(PipelineDescription description) {
+        long startTime = System.nanoTime();
+        try {
+            VkPipeline pipeline = createGraphicsPipeline(logicalDevice, pipelineCache.handle(), pipelineLayout, description);
+            logger.info("Compiled pipeline for %s + %s in %.1f ms", description.vertexShader(), description.fragmentShader(),
+                    (System.nanoTime() - startTime) / 1_000_000.0);
+            return pipeline;
+        } catch (RuntimeException e) {
+            logger.err("Failed to compile pipeline for %s + %s: %s", description.vertexShader(), description.fragmentShader(), e.getMessage());
+            throw e;
+        }
+    }
+}
@@ -1,7 +1,12 @@
 package com.alexdl.sdng.backend.vulkan;
 
+/**
+ * @param transfer a transfer-only queue family that uploads can run on without competing with rendering, or -1 if
+ *                 the device does not have one
+ */
 public record QueueIndices(
         int graphical,
-        int surfaceSupporting
+        int surfaceSupporting,
+        int transfer
 ) {
 }
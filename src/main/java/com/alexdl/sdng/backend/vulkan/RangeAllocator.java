@@ -0,0 +1,96 @@
+package com.alexdl.sdng.backend.vulkan;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * First-fit free-list allocator for ranges of {@code [0, capacity)}, in whatever unit the caller uses (bytes, vertices,
+ * indices...). Freed ranges are merged with their free neighbours, so unloading meshes does not fragment the space
+ * more than necessary.
+ */
+public class RangeAllocator {
+    public static final long NO_SPACE = -1;
+
+    private final long capacity;
+    // Offset -> size of every free range, ordered by offset so neighbours can be found when freeing
+    private final TreeMap<Long, Long> freeRanges;
+    private long freeSize;
+
+    public RangeAllocator(long capacity) {
+        this.capacity = capacity;
+        this.freeRanges = new TreeMap<>();
+        this.freeRanges.put(0L, capacity);
+        this.freeSize = capacity;
+    }
+
+    /**
+     * @return offset of the allocated range, or {@link #NO_SPACE} if no free range is large enough
+     */
+    public long allocate(long size, long alignment) {
+        assert size > 0 && alignment > 0;
+        for (Map.Entry<Long, Long> freeRange : freeRanges.entrySet()) {
+            long rangeOffset = freeRange.getKey();
+            long rangeSize = freeRange.getValue();
+            long alignedOffset = ceilToMultiple(rangeOffset, alignment);
+            long padding = alignedOffset - rangeOffset;
+            if (padding + size > rangeSize) {
+                continue;
+            }
+
+            freeRanges.remove(rangeOffset);
+            if (padding > 0) {
+                freeRanges.put(rangeOffset, padding);
+            }
+            long remaining = rangeSize - padding - size;
+            if (remaining > 0) {
+                freeRanges.put(alignedOffset + size, remaining);
+            }
+            freeSize -= size;
+            return alignedOffset;
+        }
+        return NO_SPACE;
+    }
+
+    public long allocate(long size) {
+        return allocate(size, 1);
+    }
+
+    public void free(long offset, long size) {
+        assert offset >= 0 && offset + size <= capacity;
+        long start = offset;
+        long end = offset + size;
+
+        Map.Entry<Long, Long> previous = freeRanges.floorEntry(offset);
+        if (previous != null) {
+            assert previous.getKey() + previous.getValue() <= offset : "Range freed twice";
+            if (previous.getKey() + previous.getValue() == offset) {
+                start = previous.getKey();
+                freeRanges.remove(previous.getKey());
+            }
+        }
+        Long nextSize = freeRanges.get(end);
+        if (nextSize != null) {
+            freeRanges.remove(end);
+            end = end + nextSize;
+        }
+
+        freeRanges.put(start, end - start);
+        freeSize += size;
+    }
+
+    public long capacity() {
+        return capacity;
+    }
+
+    public long freeSize() {
+        return freeSize;
+    }
+
+    public boolean isEmpty() {
+        return freeSize == capacity;
+    }
+
+    private static long ceilToMultiple(long value, long multiple) {
+        return Math.ceilDiv(value, multiple) * multiple;
+    }
+}
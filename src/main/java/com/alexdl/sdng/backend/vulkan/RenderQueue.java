@@ -0,0 +1,81 @@
+package com.alexdl.sdng.backend.vulkan;
+
+import org.joml.Matrix4f;
+import org.lwjgl.vulkan.VkPipeline;
+
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Collects the meshes queued for a frame into {@link DrawBatch}es and orders them by pipeline, texture descriptor set
+ * and mesh buffers, so that consecutive draws share as much bound state as possible.
+ */
+public class RenderQueue {
+    private static final Comparator<DrawBatch> STATE_ORDER = Comparator
+            .comparingLong((DrawBatch batch) -> batch.pipeline().address())
+            .thenComparingLong(batch -> batch.texture().descriptorSet().address())
+            .thenComparingLong(batch -> batch.meshData().getVertexBuffer().address())
+            .thenComparingLong(batch -> batch.meshData().getIndexBuffer().address());
+
+    private final Map<BatchKey, DrawBatch> batchesByKey;
+    private final List<DrawBatch> batches;
+    private int instanceCount;
+    private boolean sorted;
+
+    public RenderQueue() {
+        this.batchesByKey = new HashMap<>();
+        this.batches = new ArrayList<>();
+        this.instanceCount = 0;
+        this.sorted = true;
+    }
+
+    /**
+     * @param lod level of detail of the mesh to draw
+     */
+    public void add(@Nonnull VkPipeline pipeline, @Nonnull Texture texture, @Nonnull Mesh mesh, int lod, @Nonnull Matrix4f transform) {
+        MeshData meshData = mesh.data();
+        BatchKey key = new BatchKey(pipeline, texture, meshData, lod);
+        DrawBatch batch = batchesByKey.get(key);
+        if (batch == null) {
+            batch = new DrawBatch(pipeline, texture, meshData, lod, mesh.bounds());
+            batchesByKey.put(key, batch);
+            batches.add(batch);
+            sorted = false;
+        }
+        batch.transforms().add(transform);
+        instanceCount = instanceCount + 1;
+    }
+
+    /**
+     * @return the batches ordered by the state they bind, sorted at most once per frame
+     */
+    public @Nonnull List<DrawBatch> batches() {
+        if (!sorted) {
+            batches.sort(STATE_ORDER);
+            sorted = true;
+        }
+        return batches;
+    }
+
+    public int instanceCount() {
+        return instanceCount;
+    }
+
+    public boolean isEmpty() {
+        return instanceCount == 0;
+    }
+
+    public void clear() {
+        batchesByKey.clear();
+        batches.clear();
+        instanceCount = 0;
+        sorted = true;
+    }
+
+    private record BatchKey(VkPipeline pipeline, Texture texture, MeshData meshData, int lod) {
+    }
+}
@@ -0,0 +1,21 @@
+package com.alexdl.sdng.backend.vulkan;
+
+/**
+ * Counters collected while recording a single frame.
+ *
+ * @param drawCalls    number of draw commands recorded
+ * @param instances    number of mesh instances drawn by those commands
+ * @param bindsIssued  pipeline, descriptor set, vertex and index buffer binds that were recorded
+ * @param bindsSkipped binds that were left out because the same state was already bound
+ */
+public record RenderStatistics(int drawCalls, int instances, int bindsIssued, int bindsSkipped) {
+    public static final RenderStatistics EMPTY = new RenderStatistics(0, 0, 0, 0);
+
+    public RenderStatistics plus(RenderStatistics other) {
+        return new RenderStatistics(
+                drawCalls + other.drawCalls,
+                instances + other.instances,
+                bindsIssued + other.bindsIssued,
+                bindsSkipped + other.bindsSkipped);
+    }
+}
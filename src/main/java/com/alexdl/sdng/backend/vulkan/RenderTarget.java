@@ -0,0 +1,63 @@
+package com.alexdl.sdng.backend.vulkan;
+
+import com.alexdl.sdng.backend.Disposable;
+import org.lwjgl.vulkan.VkExtent2D;
+import org.lwjgl.vulkan.VkImageView;
+import org.lwjgl.vulkan.VkSemaphore;
+import org.lwjgl.vulkan.enums.VkFormat;
+import org.lwjgl.vulkan.enums.VkImageLayout;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.List;
+
+/**
+ * The set of color images the renderer draws into, together with the way they are handed out and presented.
+ */
+public interface RenderTarget extends Disposable {
+    /**
+     * Returned by {@link #acquireNextImage(VkSemaphore)} when the images no longer match the surface and the target
+     * has to be {@link #recreate() recreated} before anything can be rendered.
+     */
+    int OUT_OF_DATE = -1;
+
+    @Nonnull VkFormat colorFormat();
+
+    @Nonnull VkExtent2D extent();
+
+    /**
+     * @return the layout the render pass should leave the color images in once a frame is finished
+     */
+    @Nonnull VkImageLayout finalLayout();
+
+    @Nonnull List<VkImageView> colorImageViews();
+
+    /**
+     * @return whether the images go through a presentation engine, meaning that acquiring and presenting
+     * are synchronized with semaphores
+     */
+    boolean presentable();
+
+    /**
+     * @param imageAvailableSemaphore signaled once the image can be rendered to, only used when {@link #presentable()}
+     * @return the index of the image to render the next frame into, or {@link #OUT_OF_DATE}
+     */
+    int acquireNextImage(@Nonnull VkSemaphore imageAvailableSemaphore);
+
+    /**
+     * @param renderFinishedSemaphore waited on before presenting, only used when {@link #presentable()}
+     * @return whether the target should be {@link #recreate() recreated} before the next frame, e.g. because the
+     * window was resized
+     */
+    boolean present(int imageIndex, @Nonnull VkSemaphore renderFinishedSemaphore);
+
+    /**
+     * Replaces the images with new ones that match the current size of the surface. The old images may still be in use
+     * by frames in flight, so instead of being destroyed right away they are handed back to be disposed once those
+     * frames have finished.
+     *
+     * @return the old images and everything that belongs to them, or {@code null} if nothing can be rendered right now
+     * (e.g. the window is minimized) and the old images were kept
+     */
+    @Nullable Disposable recreate();
+}
@@ -0,0 +1,48 @@
+package com.alexdl.sdng.backend.vulkan;
+
+import java.util.Arrays;
+
+/**
+ * The most recent samples of a measurement, kept to compute rolling averages and percentiles from.
+ */
+class SampleWindow {
+    private final double[] samples;
+    private int count;
+    private int next;
+
+    SampleWindow(int capacity) {
+        this.samples = new double[capacity];
+    }
+
+    void add(double sample) {
+        samples[next] = sample;
+        next = (next + 1) % samples.length;
+        count = Math.min(count + 1, samples.length);
+    }
+
+    int count() {
+        return count;
+    }
+
+    double average() {
+        double sum = 0;
+        for (int i = 0; i < count; i++) {
+            sum = sum + samples[i];
+        }
+        return count > 0 ? sum / count : 0;
+    }
+
+    /**
+     * @return the given percentiles (between 0 and 100) of the samples, using the nearest rank
+     */
+    double[] percentiles(double... percentiles) {
+        double[] sorted = Arrays.copyOf(samples, count);
+        Arrays.sort(sorted);
+        double[] values = new double[percentiles.length];
+        for (int i = 0; i < percentiles.length; i++) {
+            int rank = (int) Math.ceil(percentiles[i] / 100.0 * count);
+            values[i] = count > 0 ? sorted[Math.clamp(rank - 1, 0, count - 1)] : 0;
+        }
+        return values;
+    }
+}
@@ -0,0 +1,194 @@
+package com.alexdl.sdng.backend.vulkan;
+
+import com.alexdl.sdng.backend.Disposable;
+import org.lwjgl.vulkan.VkBuffer;
+import org.lwjgl.vulkan.VkDevice;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.ArrayDeque;
+
+import static com.alexdl.sdng.backend.vulkan.VulkanUtils.*;
+import static org.lwjgl.vulkan.VK10.*;
+
+/**
+ * A persistently mapped, host-visible buffer that staging data is written into before being copied to the device.
+ * <p>
+ * Regions are handed out in a circle and given back with {@link #release(Region)} once the copy that reads them has
+ * finished, which does not have to happen in the order they were acquired. When the ring is full, {@link #acquire(long)}
+ * waits for older copies to finish, while {@link #tryAcquire(long)} gives up. Payloads larger than a quarter of the ring
+ * get a temporary buffer of their own instead, so that a single large texture can't stall everything else.
+ */
+public class StagingRing implements Disposable {
+    /** Offsets are aligned for {@code vkCmdCopyBufferToImage}, which needs a multiple of the texel size and of 4. */
+    private static final long ALIGNMENT = 16;
+
+    private final VkDevice logicalDevice;
+    private final VkBuffer buffer;
+    private final long mappedAddress;
+    private final long capacity;
+    private final ArrayDeque<Region> regions;
+    private long head;
+    private long usedBytes;
+
+    private long temporaryBuffers;
+    private long stalls;
+
+    public static final class Region {
+        private final VkBuffer buffer;
+        private final long offset;
+        private final long size;
+        private final long address;
+        private final boolean temporary;
+        private boolean released;
+
+        private Region(VkBuffer buffer, long offset, long size, long address, boolean temporary) {
+            this.buffer = buffer;
+            this.offset = offset;
+            this.size = size;
+            this.address = address;
+            this.temporary = temporary;
+        }
+
+        public VkBuffer buffer() {
+            return buffer;
+        }
+
+        public long offset() {
+            return offset;
+        }
+
+        public long size() {
+            return size;
+        }
+
+        /**
+         * @return host address that the payload has to be written to
+         */
+        public long address() {
+            return address;
+        }
+    }
+
+    public StagingRing(@Nonnull VkDevice logicalDevice, long capacity) {
+        this.logicalDevice = logicalDevice;
+        this.capacity = capacity;
+        this.buffer = createBuffer(logicalDevice, capacity, VK_BUFFER_USAGE_TRANSFER_SRC_BIT, VK_MEMORY_PROPERTY_HOST_VISIBLE_BIT | VK_MEMORY_PROPERTY_HOST_COHERENT_BIT);
+        this.mappedAddress = getMappedAddress(logicalDevice, buffer);
+        this.regions = new ArrayDeque<>();
+        this.head = 0;
+        this.usedBytes = 0;
+    }
+
+    public synchronized @Nonnull Region acquire(long size) {
+        Region region = tryAcquire(size);
+        if (region != null) {
+            return region;
+        }
+        stalls = stalls + 1;
+        do {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while waiting for staging memory", e);
+            }
+            region = tryAcquire(size);
+        } while (region == null);
+        return region;
+    }
+
+    /**
+     * Like {@link #acquire(long)}, but returns {@code null} instead of waiting when the ring is full. Anyone holding
+     * regions that are not submitted yet has to use this, since waiting could then never end.
+     */
+    public synchronized @Nullable Region tryAcquire(long size) {
+        if (size > capacity / 4) {
+            temporaryBuffers = temporaryBuffers + 1;
+            VkBuffer temporaryBuffer = createBuffer(logicalDevice, size, VK_BUFFER_USAGE_TRANSFER_SRC_BIT, VK_MEMORY_PROPERTY_HOST_VISIBLE_BIT | VK_MEMORY_PROPERTY_HOST_COHERENT_BIT);
+            return new Region(temporaryBuffer, 0, size, getMappedAddress(logicalDevice, temporaryBuffer), true);
+        }
+
+        long alignedSize = alignUp(size);
+        long offset = findSpace(alignedSize);
+        if (offset < 0) {
+            return null;
+        }
+
+        head = offset + alignedSize;
+        usedBytes = usedBytes + alignedSize;
+        Region region = new Region(buffer, offset, alignedSize, mappedAddress + offset, false);
+        regions.addLast(region);
+        return region;
+    }
+
+    /**
+     * Gives a region back once the device no longer reads from it.
+     */
+    public synchronized void release(@Nonnull Region region) {
+        if (region.temporary) {
+            destroyBuffer(logicalDevice, region.buffer);
+            return;
+        }
+        region.released = true;
+        usedBytes = usedBytes - region.size;
+        while (!regions.isEmpty() && regions.peekFirst().released) {
+            regions.removeFirst();
+        }
+        if (regions.isEmpty()) {
+            head = 0;
+        }
+        notifyAll();
+    }
+
+    public long capacity() {
+        return capacity;
+    }
+
+    public synchronized long usedBytes() {
+        return usedBytes;
+    }
+
+    /**
+     * @return how many payloads were too large for the ring and got a buffer of their own
+     */
+    public synchronized long temporaryBuffers() {
+        return temporaryBuffers;
+    }
+
+    /**
+     * @return how many times an upload had to wait for the ring to drain
+     */
+    public synchronized long stalls() {
+        return stalls;
+    }
+
+    @Override
+    public synchronized void dispose() {
+        destroyBuffer(logicalDevice, buffer);
+        regions.clear();
+    }
+
+    private long findSpace(long size) {
+        if (regions.isEmpty()) {
+            return size <= capacity ? 0 : -1;
+        }
+        long tail = regions.peekFirst().offset;
+        if (head > tail) {
+            // Free space is [head, capacity) followed by [0, tail)
+            if (head + size <= capacity) {
+                return head;
+            }
+            return size < tail ? 0 : -1;
+        }
+        // Free space is [head, tail), or nothing at all when the head has caught up with the tail
+        if (head < tail && head + size < tail) {
+            return head;
+        }
+        return -1;
+    }
+
+    private static long alignUp(long size) {
+        return (size + ALIGNMENT - 1) & -ALIGNMENT;
+    }
+}
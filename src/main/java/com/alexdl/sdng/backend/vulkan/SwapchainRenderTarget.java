@@ -0,0 +1,173 @@
+package com.alexdl.sdng.backend.vulkan;
+
+import com.alexdl.sdng.backend.Disposable;
+import org.lwjgl.glfw.GLFWFramebufferSizeCallback;
+import org.lwjgl.vulkan.VkDevice;
+import org.lwjgl.vulkan.VkExtent2D;
+import org.lwjgl.vulkan.VkImageView;
+import org.lwjgl.vulkan.VkPhysicalDevice;
+import org.lwjgl.vulkan.VkPresentInfoKHR;
+import org.lwjgl.vulkan.VkQueue;
+import org.lwjgl.vulkan.VkSemaphore;
+import org.lwjgl.vulkan.VkSurfaceKHR;
+import org.lwjgl.vulkan.VkSwapchainKHR;
+import org.lwjgl.vulkan.enums.VkFormat;
+import org.lwjgl.vulkan.enums.VkImageLayout;
+import org.lwjgl.vulkan.enums.VkPresentModeKHR;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.nio.IntBuffer;
+import java.util.List;
+
+import static com.alexdl.sdng.backend.vulkan.VulkanUtils.*;
+import static org.lwjgl.glfw.GLFW.glfwSetFramebufferSizeCallback;
+import static org.lwjgl.vulkan.KHRSwapchain.*;
+import static org.lwjgl.vulkan.VK10.VK_NULL_HANDLE;
+import static org.lwjgl.vulkan.VK10.VK_SUCCESS;
+import static org.lwjgl.vulkan.VK10.vkDestroyImageView;
+
+public class SwapchainRenderTarget implements RenderTarget {
+    private final VkPhysicalDevice physicalDevice;
+    private final VkDevice logicalDevice;
+    private final VkSurfaceKHR surface;
+    private final long window;
+    private final VkQueue presentQueue;
+    private final VkPresentModeKHR presentationMode;
+    private final GLFWFramebufferSizeCallback framebufferSizeCallback;
+    private volatile boolean resized;
+
+    private SwapchainImageConfig swapchainImageConfig;
+    private VkSwapchainKHR swapchain;
+    private List<SwapchainImage> swapchainImages;
+    private List<VkImageView> swapchainImageViews;
+
+    public SwapchainRenderTarget(@Nonnull VkPhysicalDevice physicalDevice,
+                                 @Nonnull VkDevice logicalDevice,
+                                 @Nonnull VkSurfaceKHR surface,
+                                 long window,
+                                 @Nonnull VkQueue presentQueue,
+                                 @Nonnull VkPresentModeKHR preferredPresentationMode) {
+        this.physicalDevice = physicalDevice;
+        this.logicalDevice = logicalDevice;
+        this.surface = surface;
+        this.window = window;
+        this.presentQueue = presentQueue;
+
+        presentationMode = findBestPresentationMode(physicalDevice, surface, preferredPresentationMode);
+        swapchainImageConfig = findBestSwapchainImageConfig(physicalDevice, surface, window);
+        swapchain = createSwapchain(physicalDevice, logicalDevice, surface, swapchainImageConfig, presentationMode, null);
+        swapchainImages = createSwapchainImageViews(logicalDevice, swapchain, swapchainImageConfig.format());
+        swapchainImageViews = swapchainImages.stream().map(SwapchainImage::view).toList();
+
+        // Not every platform reports a resize through VK_ERROR_OUT_OF_DATE_KHR, so listen for it as well
+        framebufferSizeCallback = GLFWFramebufferSizeCallback.create((handle, width, height) -> resized = true);
+        glfwSetFramebufferSizeCallback(window, framebufferSizeCallback);
+    }
+
+    @Override
+    public @Nonnull VkFormat colorFormat() {
+        return swapchainImageConfig.format();
+    }
+
+    @Override
+    public @Nonnull VkExtent2D extent() {
+        return swapchainImageConfig.extent();
+    }
+
+    @Override
+    public @Nonnull VkImageLayout finalLayout() {
+        return VkImageLayout.VK_IMAGE_LAYOUT_PRESENT_SRC_KHR;
+    }
+
+    @Override
+    public @Nonnull List<VkImageView> colorImageViews() {
+        return swapchainImageViews;
+    }
+
+    public @Nonnull VkPresentModeKHR presentationMode() {
+        return presentationMode;
+    }
+
+    @Override
+    public boolean presentable() {
+        return true;
+    }
+
+    @Override
+    public int acquireNextImage(@Nonnull VkSemaphore imageAvailableSemaphore) {
+        try (VulkanSession vk = new VulkanSession()) {
+            IntBuffer imageIndexPointer = vk.stack().mallocInt(1);
+            int result = vkAcquireNextImageKHR(logicalDevice, swapchain.address(), Long.MAX_VALUE, imageAvailableSemaphore.address(), VK_NULL_HANDLE, imageIndexPointer);
+            if (result == VK_ERROR_OUT_OF_DATE_KHR) {
+                return OUT_OF_DATE;
+            }
+            // A suboptimal image was still acquired and its semaphore will be signaled, so it gets rendered and
+            // presented as usual and present() asks for the recreation
+            if (result == VK_SUBOPTIMAL_KHR) {
+                resized = true;
+            } else {
+                throwIfFailed(result);
+            }
+            return imageIndexPointer.get(0);
+        }
+    }
+
+    @Override
+    public boolean present(int imageIndex, @Nonnull VkSemaphore renderFinishedSemaphore) {
+        try (VulkanSession vk = new VulkanSession()) {
+            VkPresentInfoKHR presentInfo = VkPresentInfoKHR.calloc(vk.stack())
+                    .sType$Default()
+                    .pWaitSemaphores(vk.stack().longs(renderFinishedSemaphore.address()))
+                    .swapchainCount(1)
+                    .pSwapchains(vk.stack().longs(swapchain.address()))
+                    .pImageIndices(vk.stack().ints(imageIndex));
+            int result;
+            synchronized (presentQueue) {
+                result = vkQueuePresentKHR(presentQueue, presentInfo);
+            }
+            if (result != VK_SUCCESS && result != VK_SUBOPTIMAL_KHR && result != VK_ERROR_OUT_OF_DATE_KHR) {
+                throwIfFailed(result);
+            }
+            return result != VK_SUCCESS || resized;
+        }
+    }
+
+    @Override
+    public @Nullable Disposable recreate() {
+        SwapchainImageConfig newImageConfig = findBestSwapchainImageConfig(physicalDevice, surface, window);
+        if (newImageConfig.extent().width() == 0 || newImageConfig.extent().height() == 0) {
+            // Minimized, a swapchain can't have empty images
+            newImageConfig.dispose();
+            return null;
+        }
+        resized = false;
+
+        SwapchainImageConfig oldImageConfig = swapchainImageConfig;
+        VkSwapchainKHR oldSwapchain = swapchain;
+        List<SwapchainImage> oldImages = swapchainImages;
+
+        // Passing the old swapchain lets the presentation engine hand over its images without a visible gap
+        swapchainImageConfig = newImageConfig;
+        swapchain = createSwapchain(physicalDevice, logicalDevice, surface, swapchainImageConfig, presentationMode, oldSwapchain);
+        swapchainImages = createSwapchainImageViews(logicalDevice, swapchain, swapchainImageConfig.format());
+        swapchainImageViews = swapchainImages.stream().map(SwapchainImage::view).toList();
+
+        return () -> destroySwapchain(oldImageConfig, oldSwapchain, oldImages);
+    }
+
+    @Override
+    public void dispose() {
+        glfwSetFramebufferSizeCallback(window, null);
+        framebufferSizeCallback.free();
+        destroySwapchain(swapchainImageConfig, swapchain, swapchainImages);
+    }
+
+    private void destroySwapchain(SwapchainImageConfig imageConfig, VkSwapchainKHR swapchain, List<SwapchainImage> images) {
+        imageConfig.dispose();
+        for (SwapchainImage swapchainImage : images) {
+            vkDestroyImageView(logicalDevice, swapchainImage.view().address(), null);
+        }
+        vkDestroySwapchainKHR(logicalDevice, swapchain.address(), null);
+    }
+}
@@ -2,5 +2,13 @@ package com.alexdl.sdng.backend.vulkan;
 
 import org.lwjgl.vulkan.VkDescriptorSet;
 
-public record Texture(VkDescriptorSet descriptorSet, Image image) {
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * @param residency completes once the pixels have been uploaded and the texture can be sampled
+ */
+public record Texture(VkDescriptorSet descriptorSet, Image image, CompletableFuture<Void> residency) {
+    public boolean isResident() {
+        return residency.isDone() && !residency.isCompletedExceptionally();
+    }
 }
@@ -0,0 +1,112 @@
+package com.alexdl.sdng.backend.vulkan;
+
+import com.alexdl.sdng.backend.Disposable;
+import org.lwjgl.vulkan.VkBuffer;
+import org.lwjgl.vulkan.VkDevice;
+
+import javax.annotation.Nonnull;
+
+import static com.alexdl.sdng.backend.vulkan.VulkanUtils.createBuffer;
+import static com.alexdl.sdng.backend.vulkan.VulkanUtils.destroyBuffer;
+import static com.alexdl.sdng.backend.vulkan.VulkanUtils.getMappedAddress;
+import static org.lwjgl.system.MemoryUtil.memCopy;
+import static org.lwjgl.vulkan.VK10.*;
+
+/**
+ * A persistently mapped, host coherent uniform, storage and indirect buffer that hands out aligned slices for a single
+ * frame.
+ * <p>
+ * Every frame in flight owns its own ring, and the ring is only written to after that frame's fence has been waited on,
+ * so it can be grown (re-created) at any point of the frame without the GPU still reading from the old buffer.
+ * Whoever points descriptors at the ring has to re-write them when {@link #generation()} changes.
+ */
+public class UniformRing implements Disposable {
+    private final VkDevice logicalDevice;
+    private final int alignment;
+
+    private VkBuffer buffer;
+    private long mappedAddress;
+    private long capacity;
+    private long head;
+    private int generation;
+
+    public UniformRing(@Nonnull VkDevice logicalDevice, long initialCapacity, int alignment) {
+        this.logicalDevice = logicalDevice;
+        this.alignment = alignment;
+        this.head = 0;
+        this.generation = 0;
+        createMappedBuffer(alignSize(Math.max(initialCapacity, alignment), alignment));
+    }
+
+    /**
+     * Makes the whole ring available again, should be called once at the start of every frame.
+     */
+    public void reset() {
+        head = 0;
+    }
+
+    /**
+     * @return the offset of a slice of {@code size} bytes, aligned so that it can be used as a dynamic offset
+     */
+    public int allocate(int size) {
+        long offset = alignSize(head, alignment);
+        if (offset + size > capacity) {
+            grow(offset + size);
+        }
+        head = offset + size;
+        return (int) offset;
+    }
+
+    public long address(long offset) {
+        return mappedAddress + offset;
+    }
+
+    public @Nonnull VkBuffer buffer() {
+        return buffer;
+    }
+
+    public int generation() {
+        return generation;
+    }
+
+    public long capacity() {
+        return capacity;
+    }
+
+    public long usedBytes() {
+        return head;
+    }
+
+    @Override
+    public void dispose() {
+        destroyMappedBuffer(buffer);
+    }
+
+    private void grow(long requiredCapacity) {
+        long newCapacity = capacity;
+        while (newCapacity < requiredCapacity) {
+            newCapacity *= 2;
+        }
+
+        VkBuffer oldBuffer = buffer;
+        long oldMappedAddress = mappedAddress;
+        createMappedBuffer(newCapacity);
+        memCopy(oldMappedAddress, mappedAddress, head);
+        destroyMappedBuffer(oldBuffer);
+        generation = generation + 1;
+    }
+
+    private void createMappedBuffer(long size) {
+        buffer = createBuffer(logicalDevice, size, VK_BUFFER_USAGE_UNIFORM_BUFFER_BIT | VK_BUFFER_USAGE_STORAGE_BUFFER_BIT | VK_BUFFER_USAGE_INDIRECT_BUFFER_BIT, VK_MEMORY_PROPERTY_HOST_VISIBLE_BIT | VK_MEMORY_PROPERTY_HOST_COHERENT_BIT);
+        mappedAddress = getMappedAddress(logicalDevice, buffer);
+        capacity = size;
+    }
+
+    private void destroyMappedBuffer(VkBuffer mappedBuffer) {
+        destroyBuffer(logicalDevice, mappedBuffer);
+    }
+
+    private static long alignSize(long size, int alignment) {
+        return (size + alignment - 1) & -alignment;
+    }
+}
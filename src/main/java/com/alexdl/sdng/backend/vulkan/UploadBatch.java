@@ -0,0 +1,110 @@
+package com.alexdl.sdng.backend.vulkan;
+
+import org.lwjgl.vulkan.VkBuffer;
+import org.lwjgl.vulkan.VkImage;
+
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.lwjgl.system.MemoryUtil.memCopy;
+
+/**
+ * Collects buffer and image uploads so that they are recorded into one command buffer and submitted with a single
+ * fence, instead of paying for a submission per resource.
+ * <p>
+ * The payload of every upload is copied to staging memory right away, so the source memory can be freed as soon as the
+ * call returns. If the staging ring runs out of space, the uploads collected so far are submitted early and the batch
+ * goes on with a new submission; {@link #completion()} still only completes once all of them have finished.
+ * <p>
+ * A batch is meant to be filled by a single thread.
+ */
+public class UploadBatch {
+    private final UploadService uploadService;
+    private final List<UploadService.Operation> operations;
+    private final List<CompletableFuture<Void>> submissions;
+    private final CompletableFuture<Void> completion;
+    private boolean submitted;
+
+    UploadBatch(@Nonnull UploadService uploadService) {
+        this.uploadService = uploadService;
+        this.operations = new ArrayList<>();
+        this.submissions = new ArrayList<>();
+        this.completion = new CompletableFuture<>();
+        this.submitted = false;
+    }
+
+    /**
+     * Copies {@code size} bytes from host memory into {@code dstBuffer} at {@code dstOffset}.
+     *
+     * @param dstStageMask  pipeline stages on the graphics queue that will read the uploaded range
+     * @param dstAccessMask kind of reads those stages will do, e.g. {@code VK_ACCESS_VERTEX_ATTRIBUTE_READ_BIT}
+     */
+    public @Nonnull UploadBatch uploadBuffer(long srcAddress, long size, @Nonnull VkBuffer dstBuffer, long dstOffset, int dstStageMask, int dstAccessMask) {
+        checkNotSubmitted();
+        if (size > 0) {
+            StagingRing.Region staging = stage(srcAddress, size);
+            operations.add(uploadService.bufferCopy(staging, size, dstBuffer, dstOffset, dstStageMask, dstAccessMask));
+        }
+        return this;
+    }
+
+    /**
+     * Copies tightly packed RGBA8 pixels into a single-level color image, leaving it in
+     * {@code VK_IMAGE_LAYOUT_SHADER_READ_ONLY_OPTIMAL} for the fragment shader.
+     */
+    public @Nonnull UploadBatch uploadImage(long srcAddress, long size, @Nonnull VkImage dstImage, int width, int height) {
+        checkNotSubmitted();
+        StagingRing.Region staging = stage(srcAddress, size);
+        operations.add(uploadService.imageCopy(staging, size, dstImage, width, height));
+        return this;
+    }
+
+    /**
+     * @return a future that completes once everything in this batch has been uploaded, available before the batch is
+     * submitted so that resources can hand it out as their residency
+     */
+    public @Nonnull CompletableFuture<Void> completion() {
+        return completion;
+    }
+
+    public @Nonnull CompletableFuture<Void> submit() {
+        checkNotSubmitted();
+        submitted = true;
+        flush();
+        CompletableFuture.allOf(submissions.toArray(CompletableFuture[]::new)).whenComplete((result, error) -> {
+            if (error == null) {
+                completion.complete(null);
+            } else {
+                completion.completeExceptionally(error);
+            }
+        });
+        return completion;
+    }
+
+    private StagingRing.Region stage(long srcAddress, long size) {
+        StagingRing stagingRing = uploadService.stagingRing();
+        StagingRing.Region staging = stagingRing.tryAcquire(size);
+        if (staging == null) {
+            // Waiting while holding unsubmitted regions could wait forever, so submit them first
+            flush();
+            staging = stagingRing.acquire(size);
+        }
+        memCopy(srcAddress, staging.address(), size);
+        return staging;
+    }
+
+    private void flush() {
+        if (!operations.isEmpty()) {
+            submissions.add(uploadService.submit(List.copyOf(operations)));
+            operations.clear();
+        }
+    }
+
+    private void checkNotSubmitted() {
+        if (submitted) {
+            throw new IllegalStateException("Upload batch was already submitted");
+        }
+    }
+}
@@ -0,0 +1,389 @@
+package com.alexdl.sdng.backend.vulkan;
+
+import com.alexdl.sdng.backend.Disposable;
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.vulkan.*;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import static com.alexdl.sdng.backend.vulkan.VulkanUtils.*;
+import static org.lwjgl.vulkan.VK10.*;
+
+/**
+ * Uploads buffer and image data without waiting for the queue to go idle.
+ * <p>
+ * When the device has a dedicated transfer queue family, the copy runs there and ends with a queue family ownership
+ * release, and a small command buffer on the graphics queue acquires the resource once a semaphore says the copy is
+ * done. Otherwise, everything is recorded into one command buffer on the graphics queue. Either way, the returned
+ * future completes from a background thread once the fence of the last submission signals, that is when the resource
+ * can be used for rendering.
+ * <p>
+ * Payloads are staged in a {@link StagingRing} whose regions are recycled as the fences signal, so a steady stream of
+ * uploads does not allocate any memory.
+ * <p>
+ * Queues have to be externally synchronized, so every submission to a queue is done while holding the lock of its
+ * {@link VkQueue} object, and anyone else submitting to the same queue has to do the same.
+ */
+public class UploadService implements Disposable {
+    private static final long STAGING_RING_SIZE = 32L * 1024 * 1024;
+
+    private final VkDevice logicalDevice;
+    private final VkQueue graphicsQueue;
+    private final int graphicsFamily;
+    private final VkQueue transferQueue;
+    private final int transferFamily;
+    private final boolean dedicatedTransfer;
+
+    private final StagingRing stagingRing;
+    private final VkCommandPool transferCommandPool;
+    private final @Nullable VkCommandPool acquireCommandPool;
+
+    private final BlockingQueue<PendingUpload> pendingUploads;
+    private final Thread completionThread;
+    private volatile boolean running;
+
+    private final Object statisticsLock = new Object();
+    private long completedUploads;
+    private long completedBytes;
+    private long busyNanos;
+    private long busySince;
+    private int uploadsInFlight;
+
+    private record PendingUpload(VkFence fence,
+                                 @Nullable VkSemaphore semaphore,
+                                 List<StagingRing.Region> stagingRegions,
+                                 VkCommandBuffer transferCommandBuffer,
+                                 @Nullable VkCommandBuffer acquireCommandBuffer,
+                                 CompletableFuture<Void> future,
+                                 long size) {
+    }
+
+    /**
+     * A single copy of a batch, with its payload already written to staging memory.
+     */
+    record Operation(StagingRing.Region staging,
+                     long size,
+                     int dstStageMask,
+                     CommandRecorder transferRecorder,
+                     CommandRecorder acquireRecorder) {
+    }
+
+    @FunctionalInterface
+    interface CommandRecorder {
+        void record(VkCommandBuffer commandBuffer, MemoryStack stack);
+    }
+
+    /**
+     * @param transferQueue  a queue of a dedicated transfer family, or {@code null} to upload on the graphics queue
+     * @param transferFamily family of the transfer queue, ignored without one
+     */
+    public UploadService(@Nonnull VkDevice logicalDevice,
+                         @Nonnull VkQueue graphicsQueue,
+                         int graphicsFamily,
+                         @Nullable VkQueue transferQueue,
+                         int transferFamily) {
+        this.logicalDevice = logicalDevice;
+        this.graphicsQueue = graphicsQueue;
+        this.graphicsFamily = graphicsFamily;
+        this.dedicatedTransfer = transferQueue != null && transferFamily != graphicsFamily;
+        this.transferQueue = dedicatedTransfer ? transferQueue : graphicsQueue;
+        this.transferFamily = dedicatedTransfer ? transferFamily : graphicsFamily;
+
+        this.stagingRing = new StagingRing(logicalDevice, STAGING_RING_SIZE);
+        this.transferCommandPool = createCommandPool(logicalDevice, this.transferFamily);
+        this.acquireCommandPool = dedicatedTransfer ? createCommandPool(logicalDevice, graphicsFamily) : null;
+
+        this.pendingUploads = new LinkedBlockingQueue<>();
+        this.running = true;
+        this.completionThread = new Thread(this::completeUploads, "upload-completion");
+        this.completionThread.setDaemon(true);
+        this.completionThread.start();
+    }
+
+    public boolean usesDedicatedTransferQueue() {
+        return dedicatedTransfer;
+    }
+
+    public @Nonnull UploadStatistics statistics() {
+        synchronized (statisticsLock) {
+            long busy = uploadsInFlight > 0 ? busyNanos + (System.nanoTime() - busySince) : busyNanos;
+            return new UploadStatistics(completedUploads, completedBytes, busy,
+                    stagingRing.temporaryBuffers(), stagingRing.stalls(),
+                    stagingRing.capacity(), stagingRing.usedBytes());
+        }
+    }
+
+    /**
+     * Starts collecting uploads that will be submitted together, see {@link UploadBatch}.
+     */
+    public @Nonnull UploadBatch beginBatch() {
+        return new UploadBatch(this);
+    }
+
+    /**
+     * Copies {@code size} bytes from host memory into {@code dstBuffer} at {@code dstOffset} in a submission of its own.
+     *
+     * @see UploadBatch#uploadBuffer(long, long, VkBuffer, long, int, int)
+     */
+    public @Nonnull CompletableFuture<Void> uploadBuffer(long srcAddress, long size, @Nonnull VkBuffer dstBuffer, long dstOffset, int dstStageMask, int dstAccessMask) {
+        return beginBatch().uploadBuffer(srcAddress, size, dstBuffer, dstOffset, dstStageMask, dstAccessMask).submit();
+    }
+
+    /**
+     * Copies tightly packed RGBA8 pixels into a single-level color image in a submission of its own.
+     *
+     * @see UploadBatch#uploadImage(long, long, VkImage, int, int)
+     */
+    public @Nonnull CompletableFuture<Void> uploadImage(long srcAddress, long size, @Nonnull VkImage dstImage, int width, int height) {
+        return beginBatch().uploadImage(srcAddress, size, dstImage, width, height).submit();
+    }
+
+    StagingRing stagingRing() {
+        return stagingRing;
+    }
+
+    Operation bufferCopy(StagingRing.Region staging, long size, VkBuffer dstBuffer, long dstOffset, int dstStageMask, int dstAccessMask) {
+        return new Operation(staging, size, dstStageMask,
+                (commandBuffer, stack) -> {
+                    VkBufferCopy.Buffer bufferRegionCopy = VkBufferCopy.calloc(1, stack)
+                            .srcOffset(staging.offset())
+                            .dstOffset(dstOffset)
+                            .size(size);
+                    vkCmdCopyBuffer(commandBuffer, staging.buffer().address(), dstBuffer.address(), bufferRegionCopy);
+
+                    // Either the release half of the ownership transfer, or a plain barrier when there is only one queue
+                    VkBufferMemoryBarrier.Buffer barrier = VkBufferMemoryBarrier.calloc(1, stack)
+                            .sType$Default()
+                            .srcAccessMask(VK_ACCESS_TRANSFER_WRITE_BIT)
+                            .dstAccessMask(dedicatedTransfer ? 0 : dstAccessMask)
+                            .srcQueueFamilyIndex(dedicatedTransfer ? transferFamily : VK_QUEUE_FAMILY_IGNORED)
+                            .dstQueueFamilyIndex(dedicatedTransfer ? graphicsFamily : VK_QUEUE_FAMILY_IGNORED)
+                            .buffer(dstBuffer.address())
+                            .offset(dstOffset)
+                            .size(size);
+                    vkCmdPipelineBarrier(commandBuffer, VK_PIPELINE_STAGE_TRANSFER_BIT,
+                            dedicatedTransfer ? VK_PIPELINE_STAGE_BOTTOM_OF_PIPE_BIT : dstStageMask,
+                            0, null, barrier, null);
+                },
+                (commandBuffer, stack) -> {
+                    VkBufferMemoryBarrier.Buffer barrier = VkBufferMemoryBarrier.calloc(1, stack)
+                            .sType$Default()
+                            .srcAccessMask(0)
+                            .dstAccessMask(dstAccessMask)
+                            .srcQueueFamilyIndex(transferFamily)
+                            .dstQueueFamilyIndex(graphicsFamily)
+                            .buffer(dstBuffer.address())
+                            .offset(dstOffset)
+                            .size(size);
+                    vkCmdPipelineBarrier(commandBuffer, VK_PIPELINE_STAGE_TOP_OF_PIPE_BIT, dstStageMask, 0, null, barrier, null);
+                });
+    }
+
+    Operation imageCopy(StagingRing.Region staging, long size, VkImage dstImage, int width, int height) {
+        return new Operation(staging, size, VK_PIPELINE_STAGE_FRAGMENT_SHADER_BIT,
+                (commandBuffer, stack) -> {
+                    VkImageMemoryBarrier.Buffer toTransferDst = colorImageBarrier(stack, dstImage,
+                            VK_IMAGE_LAYOUT_UNDEFINED, VK_IMAGE_LAYOUT_TRANSFER_DST_OPTIMAL,
+                            0, VK_ACCESS_TRANSFER_WRITE_BIT,
+                            VK_QUEUE_FAMILY_IGNORED, VK_QUEUE_FAMILY_IGNORED);
+                    vkCmdPipelineBarrier(commandBuffer, VK_PIPELINE_STAGE_TOP_OF_PIPE_BIT, VK_PIPELINE_STAGE_TRANSFER_BIT, 0, null, null, toTransferDst);
+
+                    VkBufferImageCopy.Buffer bufferImageCopy = VkBufferImageCopy.calloc(1, stack);
+                    bufferImageCopy.get(0)
+                            .bufferOffset(staging.offset())
+                            .bufferRowLength(0)
+                            .bufferImageHeight(0);
+                    bufferImageCopy.get(0).imageSubresource()
+                            .aspectMask(VK_IMAGE_ASPECT_COLOR_BIT)
+                            .mipLevel(0)
+                            .baseArrayLayer(0)
+                            .layerCount(1);
+                    bufferImageCopy.get(0).imageOffset().set(0, 0, 0);
+                    bufferImageCopy.get(0).imageExtent().set(width, height, 1);
+                    vkCmdCopyBufferToImage(commandBuffer, staging.buffer().address(), dstImage.address(), VK_IMAGE_LAYOUT_TRANSFER_DST_OPTIMAL, bufferImageCopy);
+
+                    // The layout transition is part of the release when the ownership is transferred
+                    VkImageMemoryBarrier.Buffer toShaderRead = colorImageBarrier(stack, dstImage,
+                            VK_IMAGE_LAYOUT_TRANSFER_DST_OPTIMAL, VK_IMAGE_LAYOUT_SHADER_READ_ONLY_OPTIMAL,
+                            VK_ACCESS_TRANSFER_WRITE_BIT, dedicatedTransfer ? 0 : VK_ACCESS_SHADER_READ_BIT,
+                            dedicatedTransfer ? transferFamily : VK_QUEUE_FAMILY_IGNORED,
+                            dedicatedTransfer ? graphicsFamily : VK_QUEUE_FAMILY_IGNORED);
+                    vkCmdPipelineBarrier(commandBuffer, VK_PIPELINE_STAGE_TRANSFER_BIT,
+                            dedicatedTransfer ? VK_PIPELINE_STAGE_BOTTOM_OF_PIPE_BIT : VK_PIPELINE_STAGE_FRAGMENT_SHADER_BIT,
+                            0, null, null, toShaderRead);
+                },
+                (commandBuffer, stack) -> {
+                    VkImageMemoryBarrier.Buffer acquire = colorImageBarrier(stack, dstImage,
+                            VK_IMAGE_LAYOUT_TRANSFER_DST_OPTIMAL, VK_IMAGE_LAYOUT_SHADER_READ_ONLY_OPTIMAL,
+                            0, VK_ACCESS_SHADER_READ_BIT,
+                            transferFamily, graphicsFamily);
+                    vkCmdPipelineBarrier(commandBuffer, VK_PIPELINE_STAGE_TOP_OF_PIPE_BIT, VK_PIPELINE_STAGE_FRAGMENT_SHADER_BIT, 0, null, null, acquire);
+                });
+    }
+
+    @Override
+    public void dispose() {
+        running = false;
+        completionThread.interrupt();
+        try {
+            completionThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // Whatever the completion thread did not get to, the device is idle by now
+        PendingUpload upload;
+        while ((upload = pendingUploads.poll()) != null) {
+            vkWaitForFences(logicalDevice, upload.fence().address(), true, Long.MAX_VALUE);
+            release(upload);
+        }
+        stagingRing.dispose();
+        vkDestroyCommandPool(logicalDevice, transferCommandPool.address(), null);
+        if (acquireCommandPool != null) {
+            vkDestroyCommandPool(logicalDevice, acquireCommandPool.address(), null);
+        }
+    }
+
+    /**
+     * Records all operations into one command buffer per queue and submits them with a single fence.
+     */
+    CompletableFuture<Void> submit(List<Operation> operations) {
+        List<StagingRing.Region> stagingRegions = new ArrayList<>(operations.size());
+        long size = 0;
+        int dstStageMask = 0;
+        for (Operation operation : operations) {
+            stagingRegions.add(operation.staging());
+            size = size + operation.size();
+            dstStageMask = dstStageMask | operation.dstStageMask();
+        }
+
+        try (VulkanSession vk = new VulkanSession()) {
+            VkCommandBuffer transferCommandBuffer;
+            VkCommandBuffer acquireCommandBuffer = null;
+            // Command pools are not thread safe either
+            synchronized (this) {
+                transferCommandBuffer = beginCommandBuffer(logicalDevice, transferCommandPool);
+                for (Operation operation : operations) {
+                    operation.transferRecorder().record(transferCommandBuffer, vk.stack());
+                }
+                vk.endCommandBuffer(transferCommandBuffer);
+
+                if (dedicatedTransfer) {
+                    assert acquireCommandPool != null;
+                    acquireCommandBuffer = beginCommandBuffer(logicalDevice, acquireCommandPool);
+                    for (Operation operation : operations) {
+                        operation.acquireRecorder().record(acquireCommandBuffer, vk.stack());
+                    }
+                    vk.endCommandBuffer(acquireCommandBuffer);
+                }
+            }
+
+            VkFence fence = vk.createFence(logicalDevice, 0);
+            VkSemaphore semaphore = null;
+            if (dedicatedTransfer) {
+                semaphore = vk.createSemaphore(logicalDevice);
+                VkSubmitInfo transferSubmitInfo = VkSubmitInfo.calloc(vk.stack())
+                        .sType$Default()
+                        .pCommandBuffers(vk.stack().pointers(transferCommandBuffer))
+                        .pSignalSemaphores(vk.stack().longs(semaphore.address()));
+                synchronized (transferQueue) {
+                    throwIfFailed(vkQueueSubmit(transferQueue, transferSubmitInfo, VK_NULL_HANDLE));
+                }
+
+                VkSubmitInfo acquireSubmitInfo = VkSubmitInfo.calloc(vk.stack())
+                        .sType$Default()
+                        .waitSemaphoreCount(1)
+                        .pWaitSemaphores(vk.stack().longs(semaphore.address()))
+                        .pWaitDstStageMask(vk.stack().ints(dstStageMask))
+                        .pCommandBuffers(vk.stack().pointers(acquireCommandBuffer));
+                synchronized (graphicsQueue) {
+                    throwIfFailed(vkQueueSubmit(graphicsQueue, acquireSubmitInfo, fence.address()));
+                }
+            } else {
+                VkSubmitInfo submitInfo = VkSubmitInfo.calloc(vk.stack())
+                        .sType$Default()
+                        .pCommandBuffers(vk.stack().pointers(transferCommandBuffer));
+                synchronized (graphicsQueue) {
+                    throwIfFailed(vkQueueSubmit(graphicsQueue, submitInfo, fence.address()));
+                }
+            }
+
+            CompletableFuture<Void> future = new CompletableFuture<>();
+            synchronized (statisticsLock) {
+                if (uploadsInFlight == 0) {
+                    busySince = System.nanoTime();
+                }
+                uploadsInFlight = uploadsInFlight + 1;
+                pendingUploads.add(new PendingUpload(fence, semaphore, stagingRegions, transferCommandBuffer, acquireCommandBuffer, future, size));
+            }
+            return future;
+        }
+    }
+
+    private void completeUploads() {
+        while (running) {
+            PendingUpload upload;
+            try {
+                upload = pendingUploads.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            int result = vkWaitForFences(logicalDevice, upload.fence().address(), true, Long.MAX_VALUE);
+            release(upload);
+            synchronized (statisticsLock) {
+                completedUploads = completedUploads + 1;
+                completedBytes = completedBytes + upload.size();
+                uploadsInFlight = uploadsInFlight - 1;
+                if (uploadsInFlight == 0) {
+                    busyNanos = busyNanos + (System.nanoTime() - busySince);
+                }
+            }
+            if (result == VK_SUCCESS) {
+                upload.future().complete(null);
+            } else {
+                upload.future().completeExceptionally(new VulkanRuntimeException(result, "Failed to wait for an upload to finish"));
+            }
+        }
+    }
+
+    private void release(PendingUpload upload) {
+        vkDestroyFence(logicalDevice, upload.fence().address(), null);
+        if (upload.semaphore() != null) {
+            vkDestroySemaphore(logicalDevice, upload.semaphore().address(), null);
+        }
+        upload.stagingRegions().forEach(stagingRing::release);
+        synchronized (this) {
+            vkFreeCommandBuffers(logicalDevice, transferCommandPool.address(), upload.transferCommandBuffer());
+            if (upload.acquireCommandBuffer() != null && acquireCommandPool != null) {
+                vkFreeCommandBuffers(logicalDevice, acquireCommandPool.address(), upload.acquireCommandBuffer());
+            }
+        }
+    }
+
+    private static VkImageMemoryBarrier.Buffer colorImageBarrier(MemoryStack stack, VkImage image,
+                                                                 int oldLayout, int newLayout,
+                                                                 int srcAccessMask, int dstAccessMask,
+                                                                 int srcQueueFamily, int dstQueueFamily) {
+        VkImageMemoryBarrier.Buffer barrier = VkImageMemoryBarrier.calloc(1, stack)
+                .sType$Default()
+                .oldLayout(oldLayout)
+                .newLayout(newLayout)
+                .srcAccessMask(srcAccessMask)
+                .dstAccessMask(dstAccessMask)
+                .srcQueueFamilyIndex(srcQueueFamily)
+                .dstQueueFamilyIndex(dstQueueFamily)
+                .image(image.address());
+        barrier.get(0).subresourceRange()
+                .aspectMask(VK_IMAGE_ASPECT_COLOR_BIT)
+                .baseMipLevel(0)
+                .levelCount(1)
+                .baseArrayLayer(0)
+                .layerCount(1);
+        return barrier;
+    }
+}
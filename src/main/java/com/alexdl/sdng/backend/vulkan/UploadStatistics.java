@@ -0,0 +1,23 @@
+package com.alexdl.sdng.backend.vulkan;
+
+/**
+ * Counters of an {@link UploadService} since it was created.
+ *
+ * @param uploads          number of finished submissions, a batch counts once
+ * @param bytes            payload bytes of those submissions
+ * @param busyNanos        wall time during which at least one upload was in flight
+ * @param temporaryBuffers staging buffers that had to be created because the payload did not fit in the staging ring
+ * @param stalls           times an upload had to wait for staging ring space
+ * @param stagingCapacity  size of the staging ring in bytes
+ * @param stagingUsed      bytes of the staging ring held by uploads in flight
+ */
+public record UploadStatistics(long uploads, long bytes, long busyNanos,
+                               long temporaryBuffers, long stalls,
+                               long stagingCapacity, long stagingUsed) {
+    /**
+     * @return bytes uploaded per second of busy time
+     */
+    public double bytesPerSecond() {
+        return busyNanos > 0 ? bytes * 1_000_000_000.0 / busyNanos : 0;
+    }
+}
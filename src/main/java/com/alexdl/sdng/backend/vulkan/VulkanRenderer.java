@@ -2,45 +2,59 @@ package com.alexdl.sdng.backend.vulkan;
 
 import com.alexdl.sdng.Configuration;
 import com.alexdl.sdng.File;
+import com.alexdl.sdng.PresentMode;
 import com.alexdl.sdng.Renderer;
-import com.alexdl.sdng.backend.vulkan.structs.MemoryBlockBuffer;
+import com.alexdl.sdng.backend.Disposable;
 import com.alexdl.sdng.backend.vulkan.structs.ModelDataStruct;
 import com.alexdl.sdng.backend.vulkan.structs.PushConstantStruct;
 import com.alexdl.sdng.backend.vulkan.structs.SceneDataStruct;
+import com.alexdl.sdng.logging.Logger;
+import com.alexdl.sdng.occlusion.Occluder;
+import com.alexdl.sdng.profiling.FrameEvent;
+import com.alexdl.sdng.profiling.FramePhase;
+import com.alexdl.sdng.profiling.FrameProfiler;
 import org.joml.Matrix4f;
+import org.joml.Matrix4fc;
 import org.joml.Vector3f;
 import org.lwjgl.BufferUtils;
 import org.lwjgl.glfw.GlfwWindow;
 import org.lwjgl.vulkan.*;
 import org.lwjgl.vulkan.enums.VkFormat;
-import org.lwjgl.vulkan.enums.VkImageLayout;
 import org.lwjgl.vulkan.enums.VkImageTiling;
 import org.lwjgl.vulkan.enums.VkPresentModeKHR;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import javax.inject.Inject;
 import java.nio.ByteBuffer;
 import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Base64;
-import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Set;
+import java.util.Map;
+import java.util.function.BiConsumer;
 
+import static com.alexdl.sdng.backend.vulkan.SizeConstants.MATRIX_4F_SIZE_BYTES;
 import static com.alexdl.sdng.backend.vulkan.VulkanUtils.*;
 import static org.lwjgl.stb.STBImage.*;
 import static org.lwjgl.system.MemoryUtil.memAddress;
 import static org.lwjgl.system.MemoryUtil.memCopy;
+import static org.lwjgl.system.MemoryUtil.memGetLong;
 import static org.lwjgl.vulkan.EXTDebugUtils.vkDestroyDebugUtilsMessengerEXT;
 import static org.lwjgl.vulkan.KHRSurface.vkDestroySurfaceKHR;
-import static org.lwjgl.vulkan.KHRSwapchain.*;
 import static org.lwjgl.vulkan.VK10.*;
 
 public class VulkanRenderer implements Renderer {
-    private static final int MAX_CONCURRENT_FRAME_DRAWS = 2;
-    private static final int MAX_OBJECTS = 10;
+    private final Logger logger = new Logger(VulkanRenderer.class);
+    private static final int MAX_TEXTURES = 10;
+    private static final int INITIAL_UNIFORM_RING_INSTANCES = 64;
+    private static final int MAX_RECORDING_WORKERS = 8;
+    private static final int MAX_PIPELINE_COMPILER_THREADS = 4;
     private final VkInstance instance;
-    private final VkSurfaceKHR surface;
+    private final @Nullable VkSurfaceKHR surface;
     private final Long debugMessengerPointer;
 
     private final VkDevice logicalDevice;
@@ -48,27 +62,55 @@ public class VulkanRenderer implements Renderer {
     private final PushConstantStruct pushConstant;
 
     private final VkQueue graphicsQueue;
-    private final VkQueue presentQueue;
 
-    private final SwapchainImageConfig swapchainImageConfig;
-    private final VkSwapchainKHR swapchain;
+    private final RenderTarget renderTarget;
 
     private final VkDescriptorSetLayout descriptorSetLayout;
     private final VkDescriptorPool descriptorPool;
     private final VkPipelineLayout pipelineLayout;
     private final VkRenderPass renderPass;
-    private final VkPipeline graphicsPipeline;
+    private final PipelineCache pipelineCache;
+    private final PipelineRegistry pipelineRegistry;
+    private final PipelineDescription standardPipeline;
+    private final VkPipeline fallbackPipeline;
     private final VkCommandPool graphicsCommandPool;
+    private final int graphicsQueueFamily;
+    private final int recordingWorkers;
+    private ParallelCommandRecorder commandRecorder;
+    private final UploadService uploadService;
+    private final GeometryPool geometryPool;
+    private final GpuProfiler gpuProfiler;
+    private final Map<String, GpuPass> gpuPasses;
+    private int gpuPassesVersion;
+
+    // For each render target image, replaced whenever the render target is recreated
+    private Image depthBufferImage;
+    private List<VkFramebuffer> framebuffers;
+    private boolean renderTargetOutOfDate;
+
+    // For each render target image and frame pair, see commandSlot
+    private List<VkCommandBuffer> commandBuffers;
+    private List<CommandSignature> recordedSignatures;
+    private RenderStatistics[] recordedStatistics;
+    private final CommandSignature frameSignature;
+
+    /**
+     * Records commands of a pass the renderer does not know about into a frame's command buffer, outside the render
+     * pass. The recorded commands are reused by later frames until the passes change, so they must only refer to state
+     * that stays valid, like buffers whose contents are updated in place.
+     */
+    @FunctionalInterface
+    public interface GpuPass {
+        void record(@Nonnull VkCommandBuffer commandBuffer);
+    }
 
-    // For each swapchain image
-    private final Image depthBufferImage;
-    private final List<SwapchainImage> swapchainImages;
-    private final List<VkFramebuffer> swapchainFramebuffers;
-    private final List<VkCommandBuffer> swapchainCommandBuffers;
-    private final List<VkBuffer> sceneUniformBuffers;
-    private final List<VkBuffer> modelUniformBuffers;
-    private final MemoryBlockBuffer<ModelDataStruct> modelUniformTransferSpace;
-    private final List<VkDescriptorSet> descriptorSets;
+    // Resources replaced while frames that use them may still be in flight, see retire
+    private record RetiredResources(long lastFrame, Disposable resources) {
+    }
+    private final ArrayDeque<RetiredResources> retiredResources;
+    private final long[] frameNumbers;
+    private long submittedFrames;
+    private int lastDrawnImage = -1;
 
     // Assets
     private final SceneDataStruct sceneData;
@@ -78,93 +120,195 @@ public class VulkanRenderer implements Renderer {
     private final VkDescriptorPool samplerDescriptorPool;
     private final VkSampler sampler;
 
-    private final Set<Model> modelsToDraw;
+    private final List<Model> queuedModels;
+    private final FrustumCuller frustumCuller;
+    private final OcclusionCuller occlusionCuller;
+    private final LodSelector lodSelector;
+    private final @Nullable GpuCuller gpuCuller;
+    private final Matrix4f viewProjection;
+    private final Matrix4f objectTransform;
+    private final RenderQueue renderQueue;
+    private RenderStatistics renderStatistics;
 
     // For each frame
+    private final List<UniformRing> uniformRings;
+    private final List<VkDescriptorSet> descriptorSets;
+    private final int[] descriptorSetRingGenerations;
     private final List<VkFence> frameDrawFences;
     private final List<VkSemaphore> frameImageAvailableSemaphores;
     private final List<VkSemaphore> frameDrawSemaphores;
 
     private final Texture defaultTexture;
 
+    private final ModelDataStruct modelDataFactory;
+
+    // Indirect drawing
+    private final boolean indirectDrawing;
+    private final boolean multiDrawIndirect;
+    private final int maxDrawIndirectCount;
+    private int indirectCommandsOffset;
+
+    // Pacing and latency
+    private final int framesInFlight;
+    private final FramePacer framePacer;
+    private final FrameLatencyTracker frameLatencyTracker;
+    private final FrameProfiler frameProfiler;
+    private long frameStartTime;
+
     private int currentFrame = 0;
 
+    /**
+     * @param window the window to present to, or {@code null} to render into offscreen color images sized by the
+     *               configuration instead, without any surface or swapchain (e.g. on machines with only lavapipe)
+     */
     @Inject
-    public VulkanRenderer(GlfwWindow window, Configuration configuration) {
-        modelsToDraw = new HashSet<>();
-        instance = createInstance(configuration.debuggingEnabled());
-        surface = createSurface(instance, window.address());
+    public VulkanRenderer(@Nullable GlfwWindow window, Configuration configuration, FrameProfiler frameProfiler) {
+        long startTime = System.nanoTime();
+        this.frameProfiler = frameProfiler;
+        queuedModels = new ArrayList<>();
+        frustumCuller = new FrustumCuller();
+        lodSelector = new LodSelector(configuration.lodPixelError());
+        viewProjection = new Matrix4f();
+        renderQueue = new RenderQueue();
+        gpuPasses = new LinkedHashMap<>();
+        renderStatistics = RenderStatistics.EMPTY;
+        framesInFlight = configuration.framesInFlight();
+        instance = createInstance(configuration.debuggingEnabled(), window != null ? getAllGlfwExtensions() : List.of());
+        surface = window != null ? createSurface(instance, window.address()) : null;
         debugMessengerPointer = configuration.debuggingEnabled() ? createDebugMessenger(instance) : null;
 
         VkPhysicalDevice physicalDevice = findFirstSuitablePhysicalDevice(instance, surface);
         logicalDevice = createLogicalDevice(physicalDevice, surface);
 
-        VkPresentModeKHR presentationMode = findBestPresentationMode(physicalDevice, surface);
-        swapchainImageConfig = findBestSwapchainImageConfig(physicalDevice, surface, window.address());
-        swapchain = createSwapchain(physicalDevice, logicalDevice, surface, swapchainImageConfig, presentationMode);
-        swapchainImages = createSwapchainImageViews(logicalDevice, swapchain, swapchainImageConfig.format());
-
         QueueIndices queueIndices = findQueueIndices(physicalDevice, surface);
         graphicsQueue = findFirstQueueByFamily(logicalDevice, queueIndices.graphical());
-        presentQueue = findFirstQueueByFamily(logicalDevice, queueIndices.surfaceSupporting());
+
+        if (window != null && surface != null) {
+            // The same VkQueue object has to be used for both, since it is also what submissions synchronize on
+            VkQueue presentQueue = queueIndices.surfaceSupporting() == queueIndices.graphical()
+                    ? graphicsQueue
+                    : findFirstQueueByFamily(logicalDevice, queueIndices.surfaceSupporting());
+            SwapchainRenderTarget swapchainRenderTarget = new SwapchainRenderTarget(physicalDevice, logicalDevice, surface,
+                    window.address(), presentQueue, toPresentModeKHR(configuration.presentMode()));
+            logger.info("Presenting with %s, %d frames in flight", swapchainRenderTarget.presentationMode(), framesInFlight);
+            renderTarget = swapchainRenderTarget;
+        } else {
+            renderTarget = new OffscreenRenderTarget(logicalDevice, configuration.width(), configuration.height(), framesInFlight);
+        }
+        VkExtent2D extent = renderTarget.extent();
 
         pushConstant = new PushConstantStruct();
-        depthBufferImage = createDepthBufferImage(logicalDevice, swapchainImageConfig.extent().width(), swapchainImageConfig.extent().height());
+        objectTransform = pushConstant.transform();
 
         descriptorSetLayout = createDescriptorSetLayout(logicalDevice);
         samplerSetLayout = createSamplerSetLayout(logicalDevice);
         pipelineLayout = createPipelineLayout(logicalDevice, List.of(descriptorSetLayout, samplerSetLayout));
-        renderPass = createRenderPass(logicalDevice, swapchainImageConfig.format(), depthBufferImage.format());
-        graphicsPipeline = createGraphicsPipeline(logicalDevice, swapchainImageConfig.extent(), pipelineLayout, renderPass);
-        graphicsCommandPool = createCommandPool(logicalDevice, queueIndices.graphical());
-
-        swapchainFramebuffers = createFramebuffers(logicalDevice, renderPass, swapchainImageConfig, swapchainImages, depthBufferImage);
-        swapchainCommandBuffers = createCommandBuffers(logicalDevice, graphicsCommandPool, swapchainFramebuffers);
+        renderPass = createRenderPass(logicalDevice, renderTarget.colorFormat(), findDepthBufferFormat(logicalDevice), renderTarget.finalLayout());
+        pipelineCache = new PipelineCache(physicalDevice, logicalDevice,
+                configuration.cacheDirectory() != null ? configuration.cacheDirectory().resolve("vulkan") : null);
+        int compilerThreads = Math.clamp(Runtime.getRuntime().availableProcessors() / 2, 1, MAX_PIPELINE_COMPILER_THREADS);
+        pipelineRegistry = new PipelineRegistry(logicalDevice, pipelineCache, pipelineLayout, compilerThreads);
+        standardPipeline = PipelineDescription.standard(renderPass);
+        // Everything else can compile in the background, but this is what is drawn with in the meantime
+        long pipelineStartTime = System.nanoTime();
+        fallbackPipeline = pipelineRegistry.request(standardPipeline).join();
+        long pipelineTime = System.nanoTime() - pipelineStartTime;
+        graphicsQueueFamily = queueIndices.graphical();
+        graphicsCommandPool = createCommandPool(logicalDevice, graphicsQueueFamily);
+        VkQueue transferQueue = queueIndices.transfer() >= 0 ? findFirstQueueByFamily(logicalDevice, queueIndices.transfer()) : null;
+        uploadService = new UploadService(logicalDevice, graphicsQueue, queueIndices.graphical(), transferQueue, queueIndices.transfer());
+        logger.info("Uploading resources on the %s queue", uploadService.usesDedicatedTransferQueue() ? "dedicated transfer" : "graphics");
+        geometryPool = new GeometryPool(logicalDevice, uploadService, this::retire);
+        gpuProfiler = new GpuProfiler(physicalDevice, logicalDevice, graphicsQueueFamily, framesInFlight, configuration.pipelineStatistics());
+        if (!gpuProfiler.timestampsSupported()) {
+            logger.warn("The graphics queue does not support timestamps, GPU timings will not be available");
+        }
 
-        Matrix4f projection = new Matrix4f()
-                .perspective(
-                        (float) Math.toRadians(45.0f),
-                        (float) swapchainImageConfig.extent().width() / (float) swapchainImageConfig.extent().height(),
-                        0.01f,
-                        100.0f);
-        projection.set(1, 1, projection.getRowColumn(1, 1) * -1);
+        frameSignature = new CommandSignature();
+        recordingWorkers = Math.clamp(Runtime.getRuntime().availableProcessors() - 1, 1, MAX_RECORDING_WORKERS);
+        // Rasterizing happens before recording starts, so the same number of threads can be busy with it
+        occlusionCuller = new OcclusionCuller(recordingWorkers);
+        retiredResources = new ArrayDeque<>();
+        frameNumbers = new long[framesInFlight];
+        submittedFrames = 0;
+        commandBuffers = List.of();
+        createRenderTargetResources();
 
         sceneData = new SceneDataStruct()
-                .projection(projection)
+                .projection(createProjection(extent))
                 .view(new Matrix4f().lookAt(
                         new Vector3f(0.0f, 0.0f, 10.0f),
                         new Vector3f(0.0f, 0.0f, 0.0f),
                         new Vector3f(0.0f, 1.0f, 0.0f)));
 
-        int minUniformBufferOffsetAlignment;
+        int ringAlignment;
+        boolean gpuCulling;
         try (VulkanSession vk = new VulkanSession()) {
-            minUniformBufferOffsetAlignment = (int) vk.getPhysicalDeviceProperties(physicalDevice).limits().minUniformBufferOffsetAlignment();
+            VkPhysicalDeviceFeatures features = vk.getPhysicalDeviceFeatures(physicalDevice);
+            VkPhysicalDeviceLimits limits = vk.getPhysicalDeviceProperties(physicalDevice).limits();
+            // Every batch draws from its own instance range, which an indirect command can only express with firstInstance
+            indirectDrawing = configuration.indirectDrawing() && features.drawIndirectFirstInstance();
+            if (configuration.indirectDrawing() && !indirectDrawing) {
+                logger.warn("Indirect drawing requested, but drawIndirectFirstInstance is not supported, using direct draws");
+            }
+            multiDrawIndirect = features.multiDrawIndirect();
+            // The culling pass only writes instance counts, so it relies on indirect draws to pick them up
+            boolean graphicsQueueComputes = (vk.getPhysicalDeviceQueueFamilyProperties(physicalDevice).get(graphicsQueueFamily).queueFlags() & VK_QUEUE_COMPUTE_BIT) != 0;
+            gpuCulling = configuration.gpuCulling() && indirectDrawing && graphicsQueueComputes;
+            if (configuration.gpuCulling() && !gpuCulling) {
+                logger.warn("GPU culling requested, but it needs indirect drawing and compute on the graphics queue, culling on the CPU");
+            }
+            maxDrawIndirectCount = limits.maxDrawIndirectCount();
+
+            // All of these are powers of two, so the largest one satisfies the others. Aligning to a whole matrix
+            // lets the instance slice offset be turned into a firstInstance index.
+            ringAlignment = (int) Math.max(Math.max(limits.minUniformBufferOffsetAlignment(), limits.minStorageBufferOffsetAlignment()), MATRIX_4F_SIZE_BYTES);
         }
 
-        modelUniformTransferSpace = new MemoryBlockBuffer<>(MAX_OBJECTS, new ModelDataStruct(), minUniformBufferOffsetAlignment);
-        sceneUniformBuffers = createUniformBuffers(logicalDevice, swapchainImages.size(), sceneData.size());
-        modelUniformBuffers = createUniformBuffers(logicalDevice, swapchainImages.size(), modelUniformTransferSpace.size());
-        descriptorPool = createDescriptorPool(logicalDevice, sceneUniformBuffers.size(), modelUniformBuffers.size(), swapchainImages.size());
-        samplerDescriptorPool = createSamplerDescriptorPool(logicalDevice, MAX_OBJECTS, MAX_OBJECTS);
-        descriptorSets = createDescriptorSets(logicalDevice, descriptorPool, descriptorSetLayout, swapchainImages.size());
-        connectDescriptorSetsToUniformBuffers(logicalDevice, descriptorSets, sceneUniformBuffers, sceneData.size(), modelUniformBuffers, modelUniformTransferSpace.elementSize());
+        modelDataFactory = new ModelDataStruct();
+        gpuCuller = gpuCulling ? new GpuCuller(logicalDevice, pipelineCache.handle(), descriptorSetLayout, framesInFlight) : null;
+
+        // The scene data lives at the start of each ring and the instance transforms are laid out after it
+        uniformRings = new ArrayList<>(framesInFlight);
+        for (int i = 0; i < framesInFlight; i++) {
+            long initialCapacity = sceneData.size() + ringAlignment + (long) INITIAL_UNIFORM_RING_INSTANCES * MATRIX_4F_SIZE_BYTES;
+            uniformRings.add(i, new UniformRing(logicalDevice, initialCapacity, ringAlignment));
+        }
+        descriptorPool = createDescriptorPool(logicalDevice, framesInFlight, framesInFlight, framesInFlight);
+        samplerDescriptorPool = createSamplerDescriptorPool(logicalDevice, MAX_TEXTURES, MAX_TEXTURES);
+        descriptorSets = createDescriptorSets(logicalDevice, descriptorPool, descriptorSetLayout, framesInFlight);
+        descriptorSetRingGenerations = new int[framesInFlight];
+        for (int i = 0; i < framesInFlight; i++) {
+            connectDescriptorSetToUniformRing(i);
+        }
 
         images = new ArrayList<>(10);
         sampler = createTextureSampler(logicalDevice);
 
-        frameDrawFences = new ArrayList<>(MAX_CONCURRENT_FRAME_DRAWS);
-        frameImageAvailableSemaphores = new ArrayList<>(MAX_CONCURRENT_FRAME_DRAWS);
-        frameDrawSemaphores = new ArrayList<>(MAX_CONCURRENT_FRAME_DRAWS);
+        frameDrawFences = new ArrayList<>(framesInFlight);
+        frameImageAvailableSemaphores = new ArrayList<>(framesInFlight);
+        frameDrawSemaphores = new ArrayList<>(framesInFlight);
         try (VulkanSession vk = new VulkanSession()) {
-            for (int i = 0; i < MAX_CONCURRENT_FRAME_DRAWS; i++) {
+            for (int i = 0; i < framesInFlight; i++) {
                 frameDrawFences.add(i, vk.createFence(logicalDevice, VK_FENCE_CREATE_SIGNALED_BIT));
                 frameImageAvailableSemaphores.add(i, vk.createSemaphore(logicalDevice));
                 frameDrawSemaphores.add(i, vk.createSemaphore(logicalDevice));
             }
         }
+        framePacer = new FramePacer(configuration.targetFrameRate());
+        frameLatencyTracker = new FrameLatencyTracker(logicalDevice, frameDrawFences);
 
         byte[] defaultTextureData = Base64.getDecoder().decode("iVBORw0KGgoAAAANSUhEUgAAABAAAAAQCAMAAAAoLQ9TAAAAAXNSR0IArs4c6QAAAANQTFRF////p8QbyAAAAA1JREFUGJVjYBgFyAAAARAAATPJ8WoAAAAASUVORK5CYII=");
         defaultTexture = createTexture(new File(null, BufferUtils.createByteBuffer(defaultTextureData.length).put(defaultTextureData).flip()));
+        // Stands in for every texture that is still uploading, so it has to be resident before the first frame
+        defaultTexture.residency().join();
+
+        logger.info("Renderer started in %.1f ms, of which %.1f ms creating pipelines with a %s pipeline cache",
+                (System.nanoTime() - startTime) / 1_000_000.0, pipelineTime / 1_000_000.0, pipelineCache.isWarm() ? "warm" : "cold");
+    }
+
+    public VulkanRenderer(Configuration configuration, FrameProfiler frameProfiler) {
+        this(null, configuration, frameProfiler);
     }
 
     public VkQueue getGraphicsQueue() {
@@ -175,60 +319,262 @@ public class VulkanRenderer implements Renderer {
         return graphicsCommandPool;
     }
 
+    public GeometryPool getGeometryPool() {
+        return geometryPool;
+    }
+
+    public PipelineRegistry getPipelineRegistry() {
+        return pipelineRegistry;
+    }
+
+    /**
+     * @return the description of the pipeline that is used by default, to derive the pipelines of materials from
+     */
+    public PipelineDescription getStandardPipeline() {
+        return standardPipeline;
+    }
+
+    public @Nonnull List<DeviceMemoryAllocator.HeapUsage> getMemoryUsage() {
+        return DeviceMemoryAllocator.forDevice(logicalDevice).heapUsage();
+    }
+
+    public void logMemoryUsage() {
+        for (DeviceMemoryAllocator.HeapUsage heap : getMemoryUsage()) {
+            logger.info("Memory heap %d: %d KiB used of %d KiB in %d blocks by %d resources, heap size %d MiB",
+                    heap.heapIndex(), heap.usedBytes() / 1024, heap.blockBytes() / 1024, heap.blockCount(), heap.resourceCount(), heap.heapSize() / (1024 * 1024));
+        }
+    }
+
+    /**
+     * @return a batch that uploads of a whole model can be collected in, so that they are submitted together
+     */
+    public @Nonnull UploadBatch beginUploadBatch() {
+        return uploadService.beginBatch();
+    }
+
+    public @Nonnull UploadStatistics getUploadStatistics() {
+        return uploadService.statistics();
+    }
+
+    public void logUploadStatistics() {
+        UploadStatistics uploads = getUploadStatistics();
+        logger.info("Uploads: %d finished, %d KiB at %.1f MiB/s, %d temporary staging buffers, %d staging stalls",
+                uploads.uploads(), uploads.bytes() / 1024, uploads.bytesPerSecond() / (1024 * 1024),
+                uploads.temporaryBuffers(), uploads.stalls());
+    }
+
     @Override
     public void updatePushConstant(@Nonnull Matrix4f transform) {
         pushConstant.transform(transform);
+        objectTransform.set(transform);
+    }
+
+    /**
+     * Copies the most recently drawn frame into host memory, waiting for the GPU to finish it first. Only available
+     * when rendering offscreen, where the images aren't handed to a presentation engine.
+     */
+    public @Nonnull FramePixels readFrame() {
+        if (!(renderTarget instanceof OffscreenRenderTarget offscreenRenderTarget)) {
+            throw new IllegalStateException("Frames can only be read back when rendering offscreen");
+        }
+        if (lastDrawnImage < 0) {
+            throw new IllegalStateException("No frame was drawn yet");
+        }
+        Image image = offscreenRenderTarget.colorImages().get(lastDrawnImage);
+        VkExtent2D extent = renderTarget.extent();
+        long size = (long) extent.width() * extent.height() * 4;
+        VkBuffer readbackBuffer = createBuffer(logicalDevice, size, VK_BUFFER_USAGE_TRANSFER_DST_BIT,
+                VK_MEMORY_PROPERTY_HOST_VISIBLE_BIT | VK_MEMORY_PROPERTY_HOST_COHERENT_BIT);
+        try {
+            copyColorImageToBuffer(logicalDevice, graphicsQueue, graphicsCommandPool, image.image(),
+                    renderTarget.finalLayout(), readbackBuffer, extent.width(), extent.height());
+            ByteBuffer pixels = BufferUtils.createByteBuffer((int) size);
+            memCopy(getMappedAddress(logicalDevice, readbackBuffer), memAddress(pixels), size);
+            return new FramePixels(extent.width(), extent.height(), image.format(), pixels);
+        } finally {
+            destroyBuffer(logicalDevice, readbackBuffer);
+        }
+    }
+
+    /**
+     * @return the draw and bind counters of the most recently recorded frame
+     */
+    public @Nonnull RenderStatistics getRenderStatistics() {
+        return renderStatistics;
+    }
+
+    /**
+     * @return time from the CPU starting on a frame until the GPU finished it, over the recent frames
+     */
+    public @Nonnull FrameLatency getFrameLatency() {
+        return frameLatencyTracker.latency();
+    }
+
+    /**
+     * @return GPU timings of the recent frames, read back a few frames after they were rendered
+     */
+    public @Nonnull GpuProfile getGpuProfile() {
+        return gpuProfiler.profile();
+    }
+
+    /**
+     * Adds a pass that is recorded before the render pass of every frame, in the order the passes were added, and
+     * whose GPU time shows up in {@link #getGpuProfile} under the scope's name. Adding a pass with the name of an
+     * existing one replaces it.
+     */
+    public void addGpuPass(@Nonnull String scope, @Nonnull GpuPass pass) {
+        gpuPasses.put(scope, pass);
+        gpuPassesVersion = gpuPassesVersion + 1;
+    }
+
+    public void removeGpuPass(@Nonnull String scope) {
+        if (gpuPasses.remove(scope) != null) {
+            gpuPassesVersion = gpuPassesVersion + 1;
+        }
+    }
+
+    public void logGpuProfile() {
+        GpuProfile profile = getGpuProfile();
+        for (GpuTiming timing : profile.timings()) {
+            logger.info("GPU %s: %.3f ms average, %.3f ms median, %.3f ms p95, %.3f ms p99, %.3f ms max over %d frames",
+                    timing.scope(), timing.averageMillis(), timing.medianMillis(), timing.p95Millis(),
+                    timing.p99Millis(), timing.maxMillis(), timing.samples());
+        }
+        GpuPipelineStatistics statistics = profile.pipelineStatistics();
+        if (statistics != null) {
+            logger.info("GPU pipeline statistics per frame: %.0f vertices, %.0f vertex shader invocations, %.0f primitives, %.0f fragment shader invocations",
+                    statistics.inputAssemblyVertices(), statistics.vertexShaderInvocations(),
+                    statistics.clippingPrimitives(), statistics.fragmentShaderInvocations());
+        }
     }
 
     @Override
     public void queueModel(@Nonnull Model model) {
-        modelsToDraw.add(model);
+        // Only culled once the frame is drawn, since the camera and object transform may still change until then
+        queuedModels.add(model);
+    }
+
+    @Override
+    public void queueOccluder(@Nonnull Occluder occluder, @Nonnull Matrix4fc transform) {
+        occlusionCuller.queueOccluder(occluder, transform);
+    }
+
+    /**
+     * @return how many of the models and meshes queued for the most recently drawn frame were culled, always none
+     * when culling on the GPU, whose results are never read back
+     */
+    public @Nonnull CullingStatistics getCullingStatistics() {
+        return frustumCuller.statistics();
+    }
+
+    /**
+     * @return how many of the models and meshes inside the frustum in the most recently drawn frame were occluded
+     */
+    public @Nonnull CullingStatistics getOcclusionStatistics() {
+        return occlusionCuller.statistics();
     }
 
     @Override
     public void draw() {
+        FrameEvent frameEvent = new FrameEvent();
+        frameEvent.begin();
         try (VulkanSession vk = new VulkanSession()) {
+            frameLatencyTracker.poll();
+            if (renderTargetOutOfDate && !recreateRenderTarget()) {
+                // Nothing to draw into, e.g. while the window is minimized
+                clearQueue();
+                return;
+            }
+
             // Wait for previous frame
-            vkWaitForFences(logicalDevice, frameDrawFences.get(currentFrame).address(), true, Integer.MAX_VALUE);
-            vkResetFences(logicalDevice, frameDrawFences.get(currentFrame).address());
+            long phaseTime = System.nanoTime();
+            vkWaitForFences(logicalDevice, frameDrawFences.get(currentFrame).address(), true, Long.MAX_VALUE);
+            phaseTime = frameProfiler.lap(FramePhase.FENCE_WAIT, phaseTime);
+            frameLatencyTracker.poll();
+            gpuProfiler.collect(currentFrame);
+            disposeRetiredResources(frameNumbers[currentFrame]);
 
             // Get next image
-            IntBuffer imageIndexPointer = vk.stack().mallocInt(1);
-            vkAcquireNextImageKHR(logicalDevice, swapchain.address(), Long.MAX_VALUE, frameImageAvailableSemaphores.get(currentFrame).address(), VK_NULL_HANDLE, imageIndexPointer);
-            int imageIndex = imageIndexPointer.get(0);
+            int imageIndex = renderTarget.acquireNextImage(frameImageAvailableSemaphores.get(currentFrame));
+            phaseTime = frameProfiler.lap(FramePhase.IMAGE_ACQUIRE, phaseTime);
+            if (imageIndex == RenderTarget.OUT_OF_DATE) {
+                // The fence is only reset once an image was acquired, so that it is still signaled for the next try
+                renderTargetOutOfDate = true;
+                clearQueue();
+                return;
+            }
+            vkResetFences(logicalDevice, frameDrawFences.get(currentFrame).address());
 
+            sceneData.projection().mul(sceneData.view(), viewProjection);
+            occlusionCuller.rasterize(viewProjection, objectTransform);
+            phaseTime = frameProfiler.lap(FramePhase.OCCLUSION, phaseTime);
+            lodSelector.begin(sceneData.view(), sceneData.projection(), renderTarget.extent().height());
+            BiConsumer<Model, Mesh> unoccluded = occlusionCuller.cull(viewProjection, objectTransform, this::queueMesh);
+            if (gpuCuller != null) {
+                // Every instance is tested against the frustum by the culling pass instead
+                frustumCuller.skip(queuedModels, unoccluded);
+            } else {
+                frustumCuller.cull(queuedModels, viewProjection, objectTransform, unoccluded);
+            }
+            phaseTime = frameProfiler.lap(FramePhase.CULLING, phaseTime);
+            updateUniforms();
+            phaseTime = frameProfiler.lap(FramePhase.UNIFORM_UPLOAD, phaseTime);
             recordCommands(imageIndex);
-            updateUniforms(imageIndex);
+            phaseTime = frameProfiler.lap(FramePhase.COMMAND_RECORDING, phaseTime);
 
             // Submit
             VkSubmitInfo submitInfo = VkSubmitInfo.calloc(vk.stack())
                     .sType$Default()
-                    .waitSemaphoreCount(1)
-                    .pWaitSemaphores(vk.stack().longs(frameImageAvailableSemaphores.get(currentFrame).address()))
-                    .pWaitDstStageMask(vk.stack().ints(VK_PIPELINE_STAGE_COLOR_ATTACHMENT_OUTPUT_BIT))
-                    .pCommandBuffers(vk.stack().pointers(swapchainCommandBuffers.get(imageIndex)))
-                    .pSignalSemaphores(vk.stack().longs(frameDrawSemaphores.get(currentFrame).address()));
-            throwIfFailed(vkQueueSubmit(graphicsQueue, submitInfo, frameDrawFences.get(currentFrame).address()));
+                    .pCommandBuffers(vk.stack().pointers(commandBuffers.get(commandSlot(imageIndex))));
+            if (renderTarget.presentable()) {
+                submitInfo
+                        .waitSemaphoreCount(1)
+                        .pWaitSemaphores(vk.stack().longs(frameImageAvailableSemaphores.get(currentFrame).address()))
+                        .pWaitDstStageMask(vk.stack().ints(VK_PIPELINE_STAGE_COLOR_ATTACHMENT_OUTPUT_BIT))
+                        .pSignalSemaphores(vk.stack().longs(frameDrawSemaphores.get(currentFrame).address()));
+            }
+            synchronized (graphicsQueue) {
+                throwIfFailed(vkQueueSubmit(graphicsQueue, submitInfo, frameDrawFences.get(currentFrame).address()));
+            }
+            submittedFrames = submittedFrames + 1;
+            frameNumbers[currentFrame] = submittedFrames;
+            lastDrawnImage = imageIndex;
+            gpuProfiler.submitted(currentFrame);
+            frameLatencyTracker.submitted(currentFrame, frameStartTime != 0 ? frameStartTime : System.nanoTime());
+            phaseTime = frameProfiler.lap(FramePhase.SUBMIT, phaseTime);
 
             // Present
-            VkPresentInfoKHR presentInfo = VkPresentInfoKHR.calloc(vk.stack())
-                    .sType$Default()
-                    .pWaitSemaphores(vk.stack().longs(frameDrawSemaphores.get(currentFrame).address()))
-                    .swapchainCount(1)
-                    .pSwapchains(vk.stack().longs(swapchain.address()))
-                    .pImageIndices(vk.stack().ints(imageIndex));
-            throwIfFailed(vkQueuePresentKHR(presentQueue, presentInfo));
+            if (renderTarget.present(imageIndex, frameDrawSemaphores.get(currentFrame))) {
+                renderTargetOutOfDate = true;
+            }
+            frameProfiler.lap(FramePhase.PRESENT, phaseTime);
+            if (frameEvent.shouldCommit()) {
+                commitFrameEvent(frameEvent);
+            }
 
             // Increment current frame
-            currentFrame = (currentFrame + 1) % MAX_CONCURRENT_FRAME_DRAWS;
+            currentFrame = (currentFrame + 1) % framesInFlight;
+
+            clearQueue();
 
-            modelsToDraw.clear();
+            // The game starts preparing the next frame once this returns, which is where its latency begins
+            framePacer.waitForNextFrame();
+            frameStartTime = System.nanoTime();
         }
     }
 
     @Override
     public void dispose() {
         throwIfFailed(vkDeviceWaitIdle(logicalDevice));
+        disposeRetiredResources(submittedFrames);
+        frameLatencyTracker.poll();
+        FrameLatency latency = frameLatencyTracker.latency();
+        for (int frame = 0; frame < framesInFlight; frame++) {
+            gpuProfiler.collect(frame);
+        }
+        logGpuProfile();
+        logger.info("Frame latency over the last %d frames: %.2f ms average, %.2f ms worst",
+                latency.frames(), latency.averageMillis(), latency.maxMillis());
 
         vkDestroyDescriptorPool(logicalDevice, samplerDescriptorPool.address(), null);
         vkDestroyDescriptorSetLayout(logicalDevice, samplerSetLayout.address(), null);
@@ -236,48 +582,44 @@ public class VulkanRenderer implements Renderer {
         vkDestroySampler(logicalDevice, sampler.address(), null);
 
         for (Image image : images) {
-            vkDestroyImageView(logicalDevice, image.view().address(), null);
-            vkDestroyImage(logicalDevice, image.image().address(), null);
-            vkFreeMemory(logicalDevice, image.memory().address(), null);
+            destroyImage(logicalDevice, image);
         }
 
-        vkDestroyImageView(logicalDevice, depthBufferImage.view().address(), null);
-        vkDestroyImage(logicalDevice, depthBufferImage.image().address(), null);
-        vkFreeMemory(logicalDevice, depthBufferImage.memory().address(), null);
+        destroyImage(logicalDevice, depthBufferImage);
 
-        modelUniformTransferSpace.dispose();
+        modelDataFactory.dispose();
         sceneData.dispose();
 
         vkDestroyDescriptorPool(logicalDevice, descriptorPool.address(), null);
         vkDestroyDescriptorSetLayout(logicalDevice, descriptorSetLayout.address(), null);
-        for (VkBuffer buffer : modelUniformBuffers) {
-            vkDestroyBuffer(logicalDevice, buffer.address(), null);
-            if (buffer.memory() != null) {
-                vkFreeMemory(logicalDevice, buffer.memory().address(), null);
-            }
-        }
-        for (VkBuffer buffer : sceneUniformBuffers) {
-            vkDestroyBuffer(logicalDevice, buffer.address(), null);
-            if (buffer.memory() != null) {
-                vkFreeMemory(logicalDevice, buffer.memory().address(), null);
-            }
-        }
+        uniformRings.forEach(UniformRing::dispose);
         frameDrawFences.forEach(fence -> vkDestroyFence(logicalDevice, fence.address(), null));
         frameImageAvailableSemaphores.forEach(semaphore -> vkDestroySemaphore(logicalDevice, semaphore.address(), null));
         frameDrawSemaphores.forEach(semaphore -> vkDestroySemaphore(logicalDevice, semaphore.address(), null));
+        commandRecorder.dispose();
+        occlusionCuller.dispose();
+        if (gpuCuller != null) {
+            logger.info("GPU culling uploaded %d instance transforms and reused %d", gpuCuller.uploadedInstances(), gpuCuller.reusedInstances());
+            gpuCuller.dispose();
+        }
+        gpuProfiler.dispose();
+        geometryPool.dispose();
+        logUploadStatistics();
+        uploadService.dispose();
         vkDestroyCommandPool(logicalDevice, graphicsCommandPool.address(), null);
-        for (VkFramebuffer framebuffer : swapchainFramebuffers) {
+        for (VkFramebuffer framebuffer : framebuffers) {
             vkDestroyFramebuffer(logicalDevice, framebuffer.address(), null);
         }
-        swapchainImageConfig.dispose();
-        vkDestroyPipeline(logicalDevice, graphicsPipeline.address(), null);
+        pipelineRegistry.dispose();
+        pipelineCache.dispose();
         vkDestroyPipelineLayout(logicalDevice, pipelineLayout.address(), null);
         vkDestroyRenderPass(logicalDevice, renderPass.address(), null);
-        for (SwapchainImage swapchainImage : swapchainImages) {
-            vkDestroyImageView(logicalDevice, swapchainImage.view().address(), null);
+        renderTarget.dispose();
+        if (surface != null) {
+            vkDestroySurfaceKHR(instance, surface.address(), null);
         }
-        vkDestroySwapchainKHR(logicalDevice, swapchain.address(), null);
-        vkDestroySurfaceKHR(instance, surface.address(), null);
+        logMemoryUsage();
+        DeviceMemoryAllocator.disposeForDevice(logicalDevice);
         vkDestroyDevice(logicalDevice, null);
         if (debugMessengerPointer != null) {
             vkDestroyDebugUtilsMessengerEXT(instance, debugMessengerPointer, null);
@@ -285,34 +627,251 @@ public class VulkanRenderer implements Renderer {
         vkDestroyInstance(instance, null);
     }
 
-    private void updateUniforms(int imageIndex) {
-        try (VulkanSession vk = new VulkanSession()) {
-            VkDeviceMemory sceneMemory = sceneUniformBuffers.get(imageIndex).memory();
-            assert sceneMemory != null;
-            long sceneTarget = vk.mapMemoryPointer(logicalDevice, sceneMemory, 0, sceneData.size(), 0);
-            memCopy(sceneData.address(), sceneTarget, sceneData.size());
-            vk.unmapMemory(logicalDevice, sceneMemory);
-
-            int modelCounter = 0;
-            for (Model model : modelsToDraw) {
-                modelUniformTransferSpace.get(modelCounter).transform(model.transform());
-                modelCounter = modelCounter + 1;
+    /**
+     * Rebuilds everything that depends on the size or the images of the render target, without waiting for the device
+     * to go idle: whatever the frames in flight still use is retired instead of destroyed.
+     *
+     * @return whether the render target could be recreated, it can't while the window is minimized
+     */
+    private boolean recreateRenderTarget() {
+        Disposable oldRenderTarget = renderTarget.recreate();
+        if (oldRenderTarget == null) {
+            return false;
+        }
+        // The old framebuffers reference the old images, so they have to go first
+        Image oldDepthBufferImage = depthBufferImage;
+        List<VkFramebuffer> oldFramebuffers = framebuffers;
+        retire(() -> {
+            for (VkFramebuffer framebuffer : oldFramebuffers) {
+                vkDestroyFramebuffer(logicalDevice, framebuffer.address(), null);
+            }
+            destroyImage(logicalDevice, oldDepthBufferImage);
+            oldRenderTarget.dispose();
+        });
+
+        createRenderTargetResources();
+        VkExtent2D extent = renderTarget.extent();
+        sceneData.projection(createProjection(extent));
+        renderTargetOutOfDate = false;
+        logger.info("Recreated the render target at %dx%d with %d images", extent.width(), extent.height(), framebuffers.size());
+        return true;
+    }
+
+    /**
+     * Creates the depth buffer, framebuffers and command buffers for the current images of the render target. Command
+     * buffers are only reallocated if the number of images changed, but none of them are reused as they are, since
+     * they reference the old framebuffers.
+     */
+    private void createRenderTargetResources() {
+        VkExtent2D extent = renderTarget.extent();
+        depthBufferImage = createDepthBufferImage(logicalDevice, extent.width(), extent.height());
+        framebuffers = createFramebuffers(logicalDevice, renderPass, extent, renderTarget.colorImageViews(), depthBufferImage);
+
+        int commandSlots = framebuffers.size() * framesInFlight;
+        if (commandBuffers.size() != commandSlots) {
+            if (!commandBuffers.isEmpty()) {
+                List<VkCommandBuffer> oldCommandBuffers = commandBuffers;
+                ParallelCommandRecorder oldCommandRecorder = commandRecorder;
+                retire(() -> {
+                    try (VulkanSession vk = new VulkanSession()) {
+                        oldCommandBuffers.forEach(commandBuffer -> vk.freeCommandBuffers(logicalDevice, graphicsCommandPool, commandBuffer));
+                    }
+                    oldCommandRecorder.dispose();
+                });
+            }
+            commandBuffers = createCommandBuffers(logicalDevice, graphicsCommandPool, commandSlots);
+            recordedSignatures = new ArrayList<>(commandSlots);
+            for (int i = 0; i < commandSlots; i++) {
+                recordedSignatures.add(i, new CommandSignature());
+            }
+            commandRecorder = new ParallelCommandRecorder(logicalDevice, graphicsQueueFamily, commandSlots, recordingWorkers,
+                    gpuProfiler.inheritedPipelineStatistics());
+        }
+        recordedStatistics = new RenderStatistics[commandSlots];
+    }
+
+    /**
+     * Disposes of the resources once every frame submitted until now has finished.
+     */
+    private void retire(Disposable resources) {
+        // Meshes may be disposed of from other threads than the one drawing
+        synchronized (retiredResources) {
+            retiredResources.addLast(new RetiredResources(submittedFrames, resources));
+        }
+    }
+
+    /**
+     * @param finishedFrame number of a frame whose fence has been waited on, frames finish in the order they were
+     *                      submitted so every earlier frame is done as well
+     */
+    private void disposeRetiredResources(long finishedFrame) {
+        while (true) {
+            RetiredResources retired;
+            synchronized (retiredResources) {
+                if (retiredResources.isEmpty() || retiredResources.peekFirst().lastFrame() > finishedFrame) {
+                    return;
+                }
+                retired = retiredResources.removeFirst();
+            }
+            retired.resources().dispose();
+        }
+    }
+
+    private static VkPresentModeKHR toPresentModeKHR(PresentMode presentMode) {
+        return switch (presentMode) {
+            case FIFO -> VkPresentModeKHR.VK_PRESENT_MODE_FIFO_KHR;
+            case MAILBOX -> VkPresentModeKHR.VK_PRESENT_MODE_MAILBOX_KHR;
+            case IMMEDIATE -> VkPresentModeKHR.VK_PRESENT_MODE_IMMEDIATE_KHR;
+        };
+    }
+
+    private static Matrix4f createProjection(VkExtent2D extent) {
+        Matrix4f projection = new Matrix4f()
+                .perspective(
+                        (float) Math.toRadians(45.0f),
+                        (float) extent.width() / (float) extent.height(),
+                        0.01f,
+                        100.0f);
+        projection.set(1, 1, projection.getRowColumn(1, 1) * -1);
+        return projection;
+    }
+
+    private void updateUniforms() {
+        UniformRing uniformRing = uniformRings.get(currentFrame);
+        uniformRing.reset();
+
+        int sceneOffset = uniformRing.allocate(sceneData.size());
+        memCopy(sceneData.address(), uniformRing.address(sceneOffset), sceneData.size());
+
+        // The commands only depend on the batches, so placing them before the instances keeps their offset, and with
+        // it the recorded command buffers, unchanged when only the number of instances changes
+        if (indirectDrawing && !renderQueue.isEmpty()) {
+            indirectCommandsOffset = uniformRing.allocate(renderQueue.batches().size() * VkDrawIndexedIndirectCommand.SIZEOF);
+            if (gpuCuller != null) {
+                gpuCuller.allocateParameters(uniformRing, currentFrame);
+            }
+        }
+
+        if (!renderQueue.isEmpty() && gpuCuller != null) {
+            // Filled with the visible transforms by the culling pass
+            int instanceOffset = uniformRing.allocate(renderQueue.instanceCount() * MATRIX_4F_SIZE_BYTES);
+            int instanceIndex = instanceOffset / MATRIX_4F_SIZE_BYTES;
+            for (DrawBatch batch : renderQueue.batches()) {
+                batch.firstInstance(instanceIndex);
+                instanceIndex = instanceIndex + batch.instanceCount();
+            }
+        } else if (!renderQueue.isEmpty()) {
+            int instanceOffset = uniformRing.allocate(renderQueue.instanceCount() * MATRIX_4F_SIZE_BYTES);
+            int instanceIndex = instanceOffset / MATRIX_4F_SIZE_BYTES;
+            for (DrawBatch batch : renderQueue.batches()) {
+                batch.firstInstance(instanceIndex);
+                for (Matrix4f transform : batch.transforms()) {
+                    modelDataFactory.createAt(uniformRing.address((long) instanceIndex * MATRIX_4F_SIZE_BYTES)).transform(transform);
+                    instanceIndex = instanceIndex + 1;
+                }
+            }
+        }
+
+        if (indirectDrawing && !renderQueue.isEmpty()) {
+            List<DrawBatch> batches = renderQueue.batches();
+            VkDrawIndexedIndirectCommand.Buffer indirectCommands = VkDrawIndexedIndirectCommand.create(uniformRing.address(indirectCommandsOffset), batches.size());
+            for (int i = 0; i < batches.size(); i++) {
+                DrawBatch batch = batches.get(i);
+                batch.drawIndex(i);
+                indirectCommands.get(i)
+                        .indexCount(batch.indexCount())
+                        // The culling pass counts the visible instances itself
+                        .instanceCount(gpuCuller != null ? 0 : batch.instanceCount())
+                        .firstIndex(batch.firstIndex())
+                        .vertexOffset(batch.meshData().getVertexOffset())
+                        .firstInstance(batch.firstInstance());
+            }
+            if (gpuCuller != null) {
+                gpuCuller.upload(uniformRing, currentFrame, batches, renderQueue.instanceCount(), indirectCommandsOffset,
+                        viewProjection, objectTransform);
+            }
+        }
+
+        if (descriptorSetRingGenerations[currentFrame] != uniformRing.generation()) {
+            connectDescriptorSetToUniformRing(currentFrame);
+        }
+    }
+
+    private void connectDescriptorSetToUniformRing(int frame) {
+        UniformRing uniformRing = uniformRings.get(frame);
+        connectDescriptorSetsToBuffers(logicalDevice,
+                List.of(descriptorSets.get(frame)),
+                List.of(uniformRing.buffer()), sceneData.size(),
+                List.of(uniformRing.buffer()));
+        descriptorSetRingGenerations[frame] = uniformRing.generation();
+    }
+
+    /**
+     * Command buffers are kept per image and frame pair: the image decides the framebuffer and the frame decides the
+     * descriptor set and uniform ring, and a slot is only ever reused after its frame's fence was waited on.
+     */
+    private int commandSlot(int imageIndex) {
+        return imageIndex * framesInFlight + currentFrame;
+    }
+
+    private void buildFrameSignature(int imageIndex) {
+        frameSignature.clear();
+        frameSignature
+                .add(framebuffers.get(imageIndex).address())
+                .add(descriptorSets.get(currentFrame).address())
+                .add(uniformRings.get(currentFrame).generation())
+                .add(gpuPassesVersion);
+        // Push constants are recorded by value
+        for (int offset = 0; offset < PushConstantStruct.SIZE; offset += Long.BYTES) {
+            frameSignature.add(memGetLong(pushConstant.address() + offset));
+        }
+        if (indirectDrawing) {
+            // The counts are read from the ring when the commands execute, so only the bound state is baked in
+            frameSignature.add(indirectCommandsOffset);
+            if (gpuCuller != null && !renderQueue.isEmpty()) {
+                frameSignature.add(gpuCuller.parametersOffset(currentFrame));
+            }
+            for (DrawBatch batch : renderQueue.batches()) {
+                frameSignature
+                        .add(batch.pipeline().address())
+                        .add(batch.texture().descriptorSet().address())
+                        .add(batch.meshData().getVertexBuffer().address())
+                        .add(batch.meshData().getIndexBuffer().address());
+            }
+        } else {
+            for (DrawBatch batch : renderQueue.batches()) {
+                frameSignature
+                        .add(batch.pipeline().address())
+                        .add(batch.texture().descriptorSet().address())
+                        .add(batch.meshData().getVertexBuffer().address())
+                        .add(batch.meshData().getIndexBuffer().address())
+                        .add(batch.indexCount())
+                        .add(batch.firstIndex())
+                        .add(batch.meshData().getVertexOffset())
+                        .add(batch.instanceCount())
+                        .add(batch.firstInstance());
             }
-            VkDeviceMemory modelMemory = modelUniformBuffers.get(imageIndex).memory();
-            assert modelMemory != null;
-            long modelBufferSizeBytes = modelUniformTransferSpace.size();
-            long modelTarget = vk.mapMemoryPointer(logicalDevice, modelMemory, 0, modelBufferSizeBytes, 0);
-            memCopy(modelUniformTransferSpace.address(), modelTarget, modelBufferSizeBytes);
-            vk.unmapMemory(logicalDevice, modelMemory);
         }
     }
 
+    /**
+     * Re-records the command buffer of the current image and frame only if something that is baked into it changed,
+     * the transforms themselves live in the uniform ring and are re-written every frame anyway.
+     */
     private void recordCommands(int imageIndex) {
+        int commandSlot = commandSlot(imageIndex);
+        buildFrameSignature(imageIndex);
+        CommandSignature recordedSignature = recordedSignatures.get(commandSlot);
+        if (recordedStatistics[commandSlot] != null && recordedSignature.matches(frameSignature)) {
+            renderStatistics = recordedStatistics[commandSlot];
+            return;
+        }
+
         try (VulkanSession vk = new VulkanSession()) {
             VkCommandBufferBeginInfo commandBufferBeginInfo = VkCommandBufferBeginInfo.calloc(vk.stack())
                     .sType$Default();
 
-            VkClearValue.Buffer clearValues = VkClearValue.calloc(2);
+            VkClearValue.Buffer clearValues = VkClearValue.calloc(2, vk.stack());
             clearValues.get(0).color()
                     .float32(0, 0.0f)
                     .float32(1, 0.0f)
@@ -324,63 +883,224 @@ public class VulkanRenderer implements Renderer {
                     .sType$Default()
                     .renderPass(renderPass.address())
                     .pClearValues(clearValues);
-            renderPassBeginInfo.renderArea().extent(swapchainImageConfig.extent()).offset().set(0, 0);
-            renderPassBeginInfo.framebuffer(swapchainFramebuffers.get(imageIndex).address());
+            renderPassBeginInfo.renderArea().extent(renderTarget.extent()).offset().set(0, 0);
+            renderPassBeginInfo.framebuffer(framebuffers.get(imageIndex).address());
 
-            VkCommandBuffer commandBuffer = swapchainCommandBuffers.get(imageIndex);
+            VkCommandBuffer commandBuffer = commandBuffers.get(commandSlot);
 
             throwIfFailed(vkBeginCommandBuffer(commandBuffer, commandBufferBeginInfo));
-            vkCmdBeginRenderPass(commandBuffer, renderPassBeginInfo, VK_SUBPASS_CONTENTS_INLINE);
-            vkCmdBindPipeline(commandBuffer, VK_PIPELINE_BIND_POINT_GRAPHICS, graphicsPipeline.address());
-            nvkCmdPushConstants(commandBuffer, pipelineLayout.address(), VK_SHADER_STAGE_VERTEX_BIT, 0, PushConstantStruct.SIZE, pushConstant.address());
-
-            int modelIndex = 0;
-            int meshIndex = 0;
-            for (Model model : modelsToDraw) {
-                int dynamicOffset = modelIndex * modelUniformTransferSpace.elementSize();
-                for (Mesh mesh : model.meshes()) {
-                    vkCmdBindVertexBuffers(
-                            commandBuffer,
-                            0,
-                            vk.stack().longs(mesh.data().getVertexBuffer().address()),
-                            vk.stack().longs(0)
-                    );
-                    vkCmdBindIndexBuffer(
-                            commandBuffer,
-                            mesh.data().getIndexBuffer().address(),
-                            0,
-                            VK_INDEX_TYPE_UINT32
-                    );
+            gpuProfiler.reset(commandBuffer, currentFrame);
+            if (gpuCuller != null && !renderQueue.isEmpty()) {
+                int cullingScope = gpuProfiler.begin(commandBuffer, currentFrame, "culling");
+                gpuCuller.record(commandBuffer, currentFrame, descriptorSets.get(currentFrame), uniformRings.get(currentFrame).buffer());
+                gpuProfiler.end(commandBuffer, currentFrame, cullingScope);
+            }
+            for (Map.Entry<String, GpuPass> gpuPass : gpuPasses.entrySet()) {
+                int passScope = gpuProfiler.begin(commandBuffer, currentFrame, gpuPass.getKey());
+                gpuPass.getValue().record(commandBuffer);
+                gpuProfiler.end(commandBuffer, currentFrame, passScope);
+            }
+            int renderPassScope = gpuProfiler.begin(commandBuffer, currentFrame, "render pass");
+            gpuProfiler.beginStatistics(commandBuffer, currentFrame);
+            List<DrawBatch> batches = renderQueue.batches();
+            int workers = commandRecorder.workersFor(batches.size());
+            if (workers > 1) {
+                vkCmdBeginRenderPass(commandBuffer, renderPassBeginInfo, VK_SUBPASS_CONTENTS_SECONDARY_COMMAND_BUFFERS);
+                renderStatistics = commandRecorder.record(commandSlot, commandBuffer, renderPass, framebuffers.get(imageIndex), batches, workers, this::recordBatches);
+            } else {
+                vkCmdBeginRenderPass(commandBuffer, renderPassBeginInfo, VK_SUBPASS_CONTENTS_INLINE);
+                renderStatistics = recordBatches(commandBuffer, batches);
+            }
+            vkCmdEndRenderPass(commandBuffer);
+            gpuProfiler.endStatistics(commandBuffer, currentFrame);
+            gpuProfiler.end(commandBuffer, currentFrame, renderPassScope);
+            throwIfFailed(vkEndCommandBuffer(commandBuffer));
+        }
+        recordedSignature.copyFrom(frameSignature);
+        recordedStatistics[commandSlot] = renderStatistics;
+    }
 
+    /**
+     * Records the given batches into a command buffer that is already inside the render pass, either the primary one
+     * or a secondary one on a recording worker thread, so it must not touch any shared mutable state.
+     */
+    private RenderStatistics recordBatches(VkCommandBuffer commandBuffer, List<DrawBatch> batches) {
+        try (VulkanSession vk = new VulkanSession()) {
+            int drawCalls = 0;
+            int instances = 0;
+            int bindsIssued = 0;
+            int bindsSkipped = 0;
+            LongBuffer handle = vk.stack().mallocLong(1);
+            LongBuffer zeroOffset = vk.stack().longs(0);
+
+            // The scene set stays bound for the whole command buffer, since every pipeline shares the same layout
+            vkCmdBindDescriptorSets(
+                    commandBuffer,
+                    VK_PIPELINE_BIND_POINT_GRAPHICS,
+                    pipelineLayout.address(),
+                    0,
+                    handle.put(0, descriptorSets.get(currentFrame).address()),
+                    null
+            );
+            nvkCmdPushConstants(commandBuffer, pipelineLayout.address(), VK_SHADER_STAGE_VERTEX_BIT, 0, PushConstantStruct.SIZE, pushConstant.address());
+            bindsIssued = bindsIssued + 1;
+
+            // Dynamic in every pipeline, and secondary command buffers don't inherit it from the primary one
+            VkExtent2D extent = renderTarget.extent();
+            VkViewport.Buffer viewport = VkViewport.calloc(1, vk.stack())
+                    .x(0)
+                    .y(0)
+                    .width(extent.width())
+                    .height(extent.height())
+                    .minDepth(0)
+                    .maxDepth(1);
+            vkCmdSetViewport(commandBuffer, 0, viewport);
+            VkRect2D.Buffer scissor = VkRect2D.calloc(1, vk.stack());
+            scissor.get(0).extent(extent).offset().set(0, 0);
+            vkCmdSetScissor(commandBuffer, 0, scissor);
+
+            long boundPipeline = VK_NULL_HANDLE;
+            long boundTextureSet = VK_NULL_HANDLE;
+            long boundVertexBuffer = VK_NULL_HANDLE;
+            long boundIndexBuffer = VK_NULL_HANDLE;
+            int batchIndex = 0;
+            while (batchIndex < batches.size()) {
+                DrawBatch batch = batches.get(batchIndex);
+                long pipeline = batch.pipeline().address();
+                if (pipeline != boundPipeline) {
+                    vkCmdBindPipeline(commandBuffer, VK_PIPELINE_BIND_POINT_GRAPHICS, pipeline);
+                    boundPipeline = pipeline;
+                    bindsIssued = bindsIssued + 1;
+                } else {
+                    bindsSkipped = bindsSkipped + 1;
+                }
 
-                    Texture diffuseTexture = mesh.material().diffuse();
-                    if(diffuseTexture == null) {
-                        diffuseTexture = defaultTexture;
-                    }
+                long textureSet = batch.texture().descriptorSet().address();
+                if (textureSet != boundTextureSet) {
                     vkCmdBindDescriptorSets(
                             commandBuffer,
                             VK_PIPELINE_BIND_POINT_GRAPHICS,
                             pipelineLayout.address(),
-                            0,
-                            vk.stack().longs(
-                                    descriptorSets.get(imageIndex).address(),
-                                    diffuseTexture.descriptorSet().address()
-                            ),
-                            vk.stack().ints(dynamicOffset)
+                            1,
+                            handle.put(0, textureSet),
+                            null
                     );
+                    boundTextureSet = textureSet;
+                    bindsIssued = bindsIssued + 1;
+                } else {
+                    bindsSkipped = bindsSkipped + 1;
+                }
+
+                long vertexBuffer = batch.meshData().getVertexBuffer().address();
+                if (vertexBuffer != boundVertexBuffer) {
+                    vkCmdBindVertexBuffers(commandBuffer, 0, handle.put(0, vertexBuffer), zeroOffset);
+                    boundVertexBuffer = vertexBuffer;
+                    bindsIssued = bindsIssued + 1;
+                } else {
+                    bindsSkipped = bindsSkipped + 1;
+                }
 
-                    vkCmdDrawIndexed(commandBuffer, mesh.data().getIndexCount(), 1, 0, 0, 0);
-                    meshIndex = meshIndex + 1;
+                long indexBuffer = batch.meshData().getIndexBuffer().address();
+                if (indexBuffer != boundIndexBuffer) {
+                    vkCmdBindIndexBuffer(commandBuffer, indexBuffer, 0, VK_INDEX_TYPE_UINT32);
+                    boundIndexBuffer = indexBuffer;
+                    bindsIssued = bindsIssued + 1;
+                } else {
+                    bindsSkipped = bindsSkipped + 1;
+                }
+
+                if (indirectDrawing) {
+                    // Every following batch that binds exactly the same state belongs to the same bucket
+                    int bucketEnd = batchIndex + 1;
+                    while (bucketEnd < batches.size() && sameBoundState(batch, batches.get(bucketEnd))) {
+                        bucketEnd = bucketEnd + 1;
+                    }
+                    long commandOffset = indirectCommandsOffset + (long) batch.drawIndex() * VkDrawIndexedIndirectCommand.SIZEOF;
+                    long indirectBuffer = uniformRings.get(currentFrame).buffer().address();
+                    int bucketSize = bucketEnd - batchIndex;
+                    if (multiDrawIndirect) {
+                        for (int drawn = 0; drawn < bucketSize; drawn += maxDrawIndirectCount) {
+                            int drawCount = Math.min(bucketSize - drawn, maxDrawIndirectCount);
+                            vkCmdDrawIndexedIndirect(commandBuffer, indirectBuffer, commandOffset + (long) drawn * VkDrawIndexedIndirectCommand.SIZEOF, drawCount, VkDrawIndexedIndirectCommand.SIZEOF);
+                            drawCalls = drawCalls + 1;
+                        }
+                    } else {
+                        for (int drawn = 0; drawn < bucketSize; drawn++) {
+                            vkCmdDrawIndexedIndirect(commandBuffer, indirectBuffer, commandOffset + (long) drawn * VkDrawIndexedIndirectCommand.SIZEOF, 1, VkDrawIndexedIndirectCommand.SIZEOF);
+                            drawCalls = drawCalls + 1;
+                        }
+                    }
+                    for (int i = batchIndex; i < bucketEnd; i++) {
+                        instances = instances + batches.get(i).instanceCount();
+                    }
+                    batchIndex = bucketEnd;
+                } else {
+                    vkCmdDrawIndexed(commandBuffer, batch.indexCount(), batch.instanceCount(), batch.firstIndex(), batch.meshData().getVertexOffset(), batch.firstInstance());
+                    drawCalls = drawCalls + 1;
+                    instances = instances + batch.instanceCount();
+                    batchIndex = batchIndex + 1;
                 }
-                modelIndex = modelIndex + 1;
             }
+            return new RenderStatistics(drawCalls, instances, bindsIssued, bindsSkipped);
+        }
+    }
 
-            vkCmdEndRenderPass(commandBuffer);
-            throwIfFailed(vkEndCommandBuffer(commandBuffer));
+    private void queueMesh(Model model, Mesh mesh) {
+        Texture diffuseTexture = mesh.material().diffuse();
+        if (!mesh.data().isResident()) {
+            return;
         }
+        if (diffuseTexture == null || !diffuseTexture.isResident()) {
+            diffuseTexture = defaultTexture;
+        }
+        PipelineDescription pipelineDescription = mesh.material().pipeline();
+        VkPipeline pipeline = pipelineDescription != null ? pipelineRegistry.getIfReady(pipelineDescription) : fallbackPipeline;
+        if (pipeline == null) {
+            pipeline = fallbackPipeline;
+        }
+        int lod = lodSelector.select(model, mesh, objectTransform);
+        renderQueue.add(pipeline, diffuseTexture, mesh, lod, model.transform());
     }
 
-    private Image createTextureImage(ByteBuffer file) {
+    private void clearQueue() {
+        queuedModels.clear();
+        occlusionCuller.clearQueue();
+        renderQueue.clear();
+    }
+
+    private void commitFrameEvent(FrameEvent frameEvent) {
+        frameEvent.frameNumber = submittedFrames;
+        frameEvent.eventPolling = frameProfiler.lastLap(FramePhase.EVENT_POLLING);
+        frameEvent.update = frameProfiler.lastLap(FramePhase.UPDATE);
+        frameEvent.fenceWait = frameProfiler.lastLap(FramePhase.FENCE_WAIT);
+        frameEvent.imageAcquire = frameProfiler.lastLap(FramePhase.IMAGE_ACQUIRE);
+        frameEvent.occlusion = frameProfiler.lastLap(FramePhase.OCCLUSION);
+        frameEvent.culling = frameProfiler.lastLap(FramePhase.CULLING);
+        frameEvent.uniformUpload = frameProfiler.lastLap(FramePhase.UNIFORM_UPLOAD);
+        frameEvent.commandRecording = frameProfiler.lastLap(FramePhase.COMMAND_RECORDING);
+        frameEvent.submit = frameProfiler.lastLap(FramePhase.SUBMIT);
+        frameEvent.present = frameProfiler.lastLap(FramePhase.PRESENT);
+        frameEvent.drawCalls = renderStatistics.drawCalls();
+        frameEvent.instances = renderStatistics.instances();
+        frameEvent.bindsIssued = renderStatistics.bindsIssued();
+        frameEvent.bindsSkipped = renderStatistics.bindsSkipped();
+        CullingStatistics cullingStatistics = frustumCuller.statistics();
+        CullingStatistics occlusionStatistics = occlusionCuller.statistics();
+        frameEvent.meshesDrawn = cullingStatistics.meshesDrawn() - occlusionStatistics.meshesCulled();
+        frameEvent.meshesCulled = cullingStatistics.meshesCulled();
+        frameEvent.meshesOccluded = occlusionStatistics.meshesCulled();
+        frameEvent.meshesSimplified = lodSelector.meshesSimplified();
+        frameEvent.commit();
+    }
+
+    private static boolean sameBoundState(DrawBatch a, DrawBatch b) {
+        return a.pipeline().address() == b.pipeline().address() &&
+               a.texture().descriptorSet().address() == b.texture().descriptorSet().address() &&
+               a.meshData().getVertexBuffer().address() == b.meshData().getVertexBuffer().address() &&
+               a.meshData().getIndexBuffer().address() == b.meshData().getIndexBuffer().address();
+    }
+
+    private Texture loadTexture(ByteBuffer file, UploadBatch uploadBatch) {
         try (VulkanSession vk = new VulkanSession()) {
             IntBuffer widthBuffer = vk.stack().mallocInt(1);
             IntBuffer heightBuffer = vk.stack().mallocInt(1);
@@ -394,14 +1114,6 @@ public class VulkanRenderer implements Renderer {
             int height = heightBuffer.get(0);
             int imageDataSize = width * height * STBI_rgb_alpha;
 
-            VkBuffer imageStagingBuffer = createBuffer(logicalDevice, imageDataSize, VK_BUFFER_USAGE_TRANSFER_SRC_BIT, VK_MEMORY_PROPERTY_HOST_VISIBLE_BIT | VK_MEMORY_PROPERTY_HOST_COHERENT_BIT);
-            assert imageStagingBuffer.memory() != null;
-            long stagingBufferMappedMemoryAddress = vk.mapMemoryPointer(logicalDevice, imageStagingBuffer.memory(), 0, imageDataSize, 0);
-            memCopy(memAddress(imageData), stagingBufferMappedMemoryAddress, imageDataSize);
-            vk.unmapMemory(logicalDevice, imageStagingBuffer.memory());
-
-            stbi_image_free(imageData);
-
             Image image = createImage(
                     logicalDevice,
                     width, height,
@@ -412,14 +1124,12 @@ public class VulkanRenderer implements Renderer {
                     new VkImageAspectFlags(VK_IMAGE_ASPECT_COLOR_BIT)
             );
 
-            transitionImageLayout(logicalDevice, graphicsQueue, graphicsCommandPool, image.image(), VkImageLayout.VK_IMAGE_LAYOUT_UNDEFINED, VkImageLayout.VK_IMAGE_LAYOUT_TRANSFER_DST_OPTIMAL);
-            copyColorImageBuffer(logicalDevice, graphicsQueue, graphicsCommandPool, imageStagingBuffer, image.image(), width, height);
-            transitionImageLayout(logicalDevice, graphicsQueue, graphicsCommandPool, image.image(), VkImageLayout.VK_IMAGE_LAYOUT_TRANSFER_DST_OPTIMAL, VkImageLayout.VK_IMAGE_LAYOUT_SHADER_READ_ONLY_OPTIMAL);
-
-            vk.destroyBuffer(logicalDevice, imageStagingBuffer, null);
-            vk.freeMemory(logicalDevice, imageStagingBuffer.memory(), null);
+            // The pixels are copied into a staging buffer right away, so they can be freed before the upload finishes
+            uploadBatch.uploadImage(memAddress(imageData), imageDataSize, image.image(), width, height);
+            stbi_image_free(imageData);
 
-            return image;
+            images.add(image);
+            return new Texture(createTextureDescriptor(image.view()), image, uploadBatch.completion());
         }
     }
 
@@ -451,13 +1161,17 @@ public class VulkanRenderer implements Renderer {
     }
 
     public @Nonnull Texture createTexture(@Nonnull File file) {
-        Image image = createTextureImage(file.dataBuffer());
-        images.add(image);
-        VkDescriptorSet descriptorSet = createTextureDescriptor(image.view());
-        return new Texture(
-                descriptorSet,
-                image
-        );
+        UploadBatch uploadBatch = uploadService.beginBatch();
+        Texture texture = loadTexture(file.dataBuffer(), uploadBatch);
+        uploadBatch.submit();
+        return texture;
     }
 
+    /**
+     * Like {@link #createTexture(File)}, but the upload becomes part of {@code uploadBatch} and the texture only becomes
+     * resident once the batch has been submitted and completed.
+     */
+    public @Nonnull Texture createTexture(@Nonnull File file, @Nonnull UploadBatch uploadBatch) {
+        return loadTexture(file.dataBuffer(), uploadBatch);
+    }
 }
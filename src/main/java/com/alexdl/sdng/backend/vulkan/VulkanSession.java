@@ -280,6 +280,17 @@ public class VulkanSession implements AutoCloseable {
         return pipelines;
     }
 
+    public @Nonnull List<VkPipeline> createComputePipelines(@Nonnull VkDevice logicalDevice, @Nullable VkPipelineCache pipelineCache, @Nonnull VkComputePipelineCreateInfo.Buffer createInfos, @Nullable VkAllocationCallbacks allocator) {
+        LongBuffer pointers = stack.mallocLong(createInfos.limit());
+        long pipelineCacheAddress = pipelineCache != null ? pipelineCache.address() : VK_NULL_HANDLE;
+        throwIfFailed(vkCreateComputePipelines(logicalDevice, pipelineCacheAddress, createInfos, allocator, pointers));
+        List<VkPipeline> pipelines = new ArrayList<>(pointers.limit());
+        for (int i = 0; i < pointers.limit(); i++) {
+            pipelines.add(i, new VkPipeline(pointers.get(i)));
+        }
+        return pipelines;
+    }
+
     public void destroyShaderModule(@Nonnull VkDevice logicalDevice, @Nonnull VkShaderModule fragmentShaderModule, @Nullable VkAllocationCallbacks allocator) {
         vkDestroyShaderModule(logicalDevice, fragmentShaderModule.address(), allocator);
     }
@@ -335,6 +346,11 @@ public class VulkanSession implements AutoCloseable {
         cmdCopyBufferToImage(commandBuffer, srcBuffer, dstImage, dstImageLayout, buffer);
     }
 
+    public void cmdCopyImageToBuffer(@Nonnull VkCommandBuffer commandBuffer, @Nonnull VkImage srcImage, @Nonnull VkImageLayout srcImageLayout, @Nonnull VkBuffer dstBuffer, @Nonnull VkBufferImageCopy region) {
+        VkBufferImageCopy.Buffer buffer = new VkBufferImageCopy.Buffer(region.address(), 1);
+        vkCmdCopyImageToBuffer(commandBuffer, srcImage.address(), srcImageLayout.getValue(), dstBuffer.address(), buffer);
+    }
+
     public void cmdPipelineBarrier(@Nonnull VkCommandBuffer commandBuffer,
                                    @Nullable VkPipelineStageFlags srcStageMask,
                                    @Nullable VkPipelineStageFlags dstStageMask,
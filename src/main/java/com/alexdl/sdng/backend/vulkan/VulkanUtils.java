@@ -1,7 +1,6 @@
 package com.alexdl.sdng.backend.vulkan;
 
 import com.alexdl.sdng.backend.vulkan.structs.PushConstantStruct;
-import com.alexdl.sdng.backend.vulkan.structs.VertexDataStruct;
 import org.lwjgl.BufferUtils;
 import org.lwjgl.PointerBuffer;
 import org.lwjgl.system.MemoryStack;
@@ -14,6 +13,7 @@ import org.lwjgl.vulkan.enums.VkPresentModeKHR;
 import org.lwjgl.vulkan.enums.VkSharingMode;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
@@ -138,27 +138,32 @@ public class VulkanUtils {
                     .sharingMode(VK_SHARING_MODE_EXCLUSIVE);
             VkBuffer buffer = vk.createBuffer(logicalDevice, bufferCreateInfo);
 
-            var memoryRequirements = vk.getBufferMemoryRequirements(logicalDevice, buffer);
-            var memoryProperties = vk.getPhysicalDeviceMemoryProperties(logicalDevice.getPhysicalDevice());
-            int memoryTypeIndex = -1;
-            for (int i = 0; i < memoryProperties.memoryTypeCount(); i++) {
-                if ((memoryRequirements.memoryTypeBits() & (1 << i)) != 0 &&
-                    (memoryProperties.memoryTypes(i).propertyFlags() & memoryFlags) == memoryFlags) {
-                    memoryTypeIndex = i;
-                    break;
-                }
-            }
+            DeviceMemoryAllocator.Allocation allocation = DeviceMemoryAllocator.forDevice(logicalDevice).allocateForBuffer(buffer, memoryFlags);
 
-            var memoryAllocateInfo = VkMemoryAllocateInfo.calloc(vk.stack())
-                    .sType$Default()
-                    .allocationSize(memoryRequirements.size())
-                    .memoryTypeIndex(memoryTypeIndex);
-            VkDeviceMemory bufferMemory = vk.allocateMemory(logicalDevice, memoryAllocateInfo);
-
-            vk.bindBufferMemory(logicalDevice, buffer, bufferMemory, 0);
+            return new VkBuffer(buffer.address(), allocation.memory());
+        }
+    }
 
-            return new VkBuffer(buffer.address(), bufferMemory);
+    /**
+     * @return address the buffer's memory is persistently mapped at, the buffer has to be created as host visible
+     */
+    public static long getMappedAddress(VkDevice logicalDevice, VkBuffer buffer) {
+        long mappedAddress = DeviceMemoryAllocator.forDevice(logicalDevice).allocationOf(buffer.address()).mappedAddress();
+        if (mappedAddress == 0) {
+            throw new RuntimeException("Buffer memory is not host visible");
         }
+        return mappedAddress;
+    }
+
+    public static void destroyBuffer(VkDevice logicalDevice, VkBuffer buffer) {
+        vkDestroyBuffer(logicalDevice, buffer.address(), null);
+        DeviceMemoryAllocator.forDevice(logicalDevice).free(buffer.address());
+    }
+
+    public static void destroyImage(VkDevice logicalDevice, Image image) {
+        vkDestroyImageView(logicalDevice, image.view().address(), null);
+        vkDestroyImage(logicalDevice, image.image().address(), null);
+        DeviceMemoryAllocator.forDevice(logicalDevice).free(image.image().address());
     }
 
     public static VkCommandBuffer beginCommandBuffer(VkDevice logicalDevice, VkCommandPool commandPool) {
@@ -186,63 +191,26 @@ public class VulkanUtils {
             VkSubmitInfo submitInfo = VkSubmitInfo.calloc(vk.stack())
                     .sType$Default()
                     .pCommandBuffers(vk.stack().pointers(commandBuffer));
-            vk.queueSubmit(queue, submitInfo, null);
-
-            vk.queueWaitIdle(queue);
+            synchronized (queue) {
+                vk.queueSubmit(queue, submitInfo, null);
+                vk.queueWaitIdle(queue);
+            }
             vk.freeCommandBuffers(logicalDevice, commandPool, commandBuffer);
         }
     }
 
-    public static VkBuffer createVertexBuffer(VertexDataStruct.Buffer vertexData, VkQueue transferQueue, VkCommandPool transferCommandPool) {
-        try (VulkanSession vk = new VulkanSession()) {
-            long bufferSize = vertexData.size();
-            VkDevice logicalDevice = transferQueue.getDevice();
-            VkBuffer stagingBuffer = createBuffer(logicalDevice, bufferSize, VK_BUFFER_USAGE_TRANSFER_SRC_BIT, VK_MEMORY_PROPERTY_HOST_VISIBLE_BIT | VK_MEMORY_PROPERTY_HOST_COHERENT_BIT);
-            assert stagingBuffer.memory() != null;
-
-            long stagingBufferMappedMemoryAddress = vk.mapMemoryPointer(logicalDevice, stagingBuffer.memory(), 0, bufferSize, 0);
-            memCopy(vertexData.address(), stagingBufferMappedMemoryAddress, bufferSize);
-            vk.unmapMemory(logicalDevice, stagingBuffer.memory());
-
-            VkBuffer vertexBuffer = createBuffer(logicalDevice, bufferSize, VK_BUFFER_USAGE_TRANSFER_DST_BIT | VK_BUFFER_USAGE_VERTEX_BUFFER_BIT, VK_MEMORY_PROPERTY_DEVICE_LOCAL_BIT);
-
-            copyBuffer(transferQueue, transferCommandPool, stagingBuffer, vertexBuffer, bufferSize);
-            vk.destroyBuffer(logicalDevice, stagingBuffer, null);
-            vk.freeMemory(logicalDevice, stagingBuffer.memory(), null);
-
-            return vertexBuffer;
-        }
-    }
-
-    public static VkBuffer createIndexBuffer(IntBuffer indexData, VkQueue transferQueue, VkCommandPool transferCommandPool) {
-        try (VulkanSession vk = new VulkanSession()) {
-            long bufferSize = (long) Integer.BYTES * indexData.limit();
-            VkDevice logicalDevice = transferQueue.getDevice();
-            VkBuffer stagingBuffer = createBuffer(logicalDevice, bufferSize, VK_BUFFER_USAGE_TRANSFER_SRC_BIT, VK_MEMORY_PROPERTY_HOST_VISIBLE_BIT | VK_MEMORY_PROPERTY_HOST_COHERENT_BIT);
-            assert stagingBuffer.memory() != null;
-
-            long stagingBufferMappedMemoryAddress = vk.mapMemoryPointer(logicalDevice, stagingBuffer.memory(), 0, bufferSize, 0);
-            memCopy(memAddress(indexData), stagingBufferMappedMemoryAddress, bufferSize);
-            vk.unmapMemory(logicalDevice, stagingBuffer.memory());
-
-            VkBuffer indexBuffer = createBuffer(logicalDevice, bufferSize, VK_BUFFER_USAGE_TRANSFER_DST_BIT | VK_BUFFER_USAGE_INDEX_BUFFER_BIT, VK_MEMORY_PROPERTY_DEVICE_LOCAL_BIT);
-
-            copyBuffer(transferQueue, transferCommandPool, stagingBuffer, indexBuffer, bufferSize);
-            vk.destroyBuffer(logicalDevice, stagingBuffer, null);
-            vk.freeMemory(logicalDevice, stagingBuffer.memory(), null);
-
-            return indexBuffer;
-        }
+    public static void copyBuffer(VkQueue transferQueue, VkCommandPool transferCommandPool, VkBuffer srcBuffer, VkBuffer dstBuffer, long bufferSize) {
+        copyBuffer(transferQueue, transferCommandPool, srcBuffer, dstBuffer, 0, bufferSize);
     }
 
-    public static void copyBuffer(VkQueue transferQueue, VkCommandPool transferCommandPool, VkBuffer srcBuffer, VkBuffer dstBuffer, long bufferSize) {
+    public static void copyBuffer(VkQueue transferQueue, VkCommandPool transferCommandPool, VkBuffer srcBuffer, VkBuffer dstBuffer, long dstOffset, long bufferSize) {
         try (VulkanSession vk = new VulkanSession()) {
             VkDevice logicalDevice = transferQueue.getDevice();
             VkCommandBuffer transferCommandBuffer = beginCommandBuffer(logicalDevice, transferCommandPool);
 
             VkBufferCopy.Buffer bufferRegionCopy = VkBufferCopy.calloc(1, vk.stack())
                     .srcOffset(0)
-                    .dstOffset(0)
+                    .dstOffset(dstOffset)
                     .size(bufferSize);
             vk.cmdCopyBuffer(transferCommandBuffer, srcBuffer, dstBuffer, bufferRegionCopy);
 
@@ -266,15 +234,15 @@ public class VulkanUtils {
         }
     }
 
-    public static VkDescriptorPool createDescriptorPool(VkDevice logicalDevice, int sceneDescriptorCount, int modelDescriptorCount, int maxSets) {
+    public static VkDescriptorPool createDescriptorPool(VkDevice logicalDevice, int sceneDescriptorCount, int instanceDescriptorCount, int maxSets) {
         try (VulkanSession vk = new VulkanSession()) {
             VkDescriptorPoolSize.Buffer poolSizes = VkDescriptorPoolSize.calloc(2, vk.stack());
             poolSizes.get(0)
                     .type(VK_DESCRIPTOR_TYPE_UNIFORM_BUFFER)
                     .descriptorCount(sceneDescriptorCount);
             poolSizes.get(1)
-                    .type(VK_DESCRIPTOR_TYPE_UNIFORM_BUFFER_DYNAMIC)
-                    .descriptorCount(modelDescriptorCount);
+                    .type(VK_DESCRIPTOR_TYPE_STORAGE_BUFFER)
+                    .descriptorCount(instanceDescriptorCount);
             VkDescriptorPoolCreateInfo descriptorPoolCreateInfo = VkDescriptorPoolCreateInfo.calloc(vk.stack())
                     .sType$Default()
                     .maxSets(maxSets)
@@ -341,9 +309,13 @@ public class VulkanUtils {
         return -1;
     }
 
-    public static Image createDepthBufferImage(VkDevice logicalDevice, int width, int height) {
+    public static VkFormat findDepthBufferFormat(VkDevice logicalDevice) {
         Set<VkFormat> allowedFormats = Set.of(VkFormat.VK_FORMAT_D32_SFLOAT_S8_UINT, VkFormat.VK_FORMAT_D32_SFLOAT, VkFormat.VK_FORMAT_D24_UNORM_S8_UINT, VkFormat.VK_FORMAT_D16_UNORM_S8_UINT);
-        VkFormat format = findBestImageFormat(logicalDevice, allowedFormats, VkImageTiling.VK_IMAGE_TILING_OPTIMAL, new VkFormatFeatureFlags(VK_FORMAT_FEATURE_DEPTH_STENCIL_ATTACHMENT_BIT));
+        return findBestImageFormat(logicalDevice, allowedFormats, VkImageTiling.VK_IMAGE_TILING_OPTIMAL, new VkFormatFeatureFlags(VK_FORMAT_FEATURE_DEPTH_STENCIL_ATTACHMENT_BIT));
+    }
+
+    public static Image createDepthBufferImage(VkDevice logicalDevice, int width, int height) {
+        VkFormat format = findDepthBufferFormat(logicalDevice);
         return createImage(logicalDevice, width, height, format,
                 VkImageTiling.VK_IMAGE_TILING_OPTIMAL,
                 new VkImageUsageFlags(VK_IMAGE_USAGE_DEPTH_STENCIL_ATTACHMENT_BIT),
@@ -371,20 +343,15 @@ public class VulkanUtils {
                     .initialLayout(VK_IMAGE_LAYOUT_UNDEFINED);
             VkImage image = vk.createImage(logicalDevice, imageCreateInfo, null);
 
-            VkMemoryRequirements memoryRequirements = vk.getImageMemoryRequirements(logicalDevice, image);
-            VkMemoryAllocateInfo memoryAllocateInfo = VkMemoryAllocateInfo.calloc(vk.stack())
-                    .sType$Default()
-                    .allocationSize(memoryRequirements.size())
-                    .memoryTypeIndex(findMemoryTypeIndex(logicalDevice.getPhysicalDevice(), memoryRequirements.memoryTypeBits(), memoryFlags));
-            VkDeviceMemory deviceMemory = vk.allocateMemory(logicalDevice, memoryAllocateInfo);
-            vk.bindImageMemory(logicalDevice, image, deviceMemory, 0);
+            DeviceMemoryAllocator.Allocation allocation = DeviceMemoryAllocator.forDevice(logicalDevice)
+                    .allocateForImage(image, memoryFlags.value(), VkImageTiling.VK_IMAGE_TILING_LINEAR.equals(tiling));
 
             VkImageView imageView = createImageView(logicalDevice, image, format, imageAspectFlags);
 
             return new Image(
                     format,
                     image,
-                    deviceMemory,
+                    allocation.memory(),
                     imageView
             );
         }
@@ -427,6 +394,39 @@ public class VulkanUtils {
         }
     }
 
+    /**
+     * Copies a color image that rendering finished writing to, waiting for earlier submissions to the queue first.
+     */
+    public static void copyColorImageToBuffer(VkDevice logicalDevice, VkQueue queue, VkCommandPool commandPool, VkImage srcImage, VkImageLayout srcImageLayout, VkBuffer dstBuffer, int width, int height) {
+        try (VulkanSession vk = new VulkanSession()) {
+            VkCommandBuffer commandBuffer = beginCommandBuffer(logicalDevice, commandPool);
+
+            VkMemoryBarrier.Buffer memoryBarrier = VkMemoryBarrier.calloc(1, vk.stack())
+                    .sType$Default()
+                    .srcAccessMask(VK_ACCESS_COLOR_ATTACHMENT_WRITE_BIT)
+                    .dstAccessMask(VK_ACCESS_TRANSFER_READ_BIT);
+            vk.cmdPipelineBarrier(commandBuffer,
+                    new VkPipelineStageFlags(VK_PIPELINE_STAGE_COLOR_ATTACHMENT_OUTPUT_BIT),
+                    new VkPipelineStageFlags(VK_PIPELINE_STAGE_TRANSFER_BIT),
+                    null, memoryBarrier, null, null);
+
+            VkBufferImageCopy bufferImageCopy = VkBufferImageCopy.calloc(vk.stack())
+                    .bufferOffset(0)
+                    .bufferRowLength(0)
+                    .bufferImageHeight(0)
+                    .imageSubresource(VkImageSubresourceLayers.calloc(vk.stack())
+                            .aspectMask(VK_IMAGE_ASPECT_COLOR_BIT)
+                            .mipLevel(0)
+                            .baseArrayLayer(0)
+                            .layerCount(1))
+                    .imageOffset(VkOffset3D.calloc(vk.stack()).set(0, 0, 0))
+                    .imageExtent(VkExtent3D.calloc(vk.stack()).set(width, height, 1));
+            vk.cmdCopyImageToBuffer(commandBuffer, srcImage, srcImageLayout, dstBuffer, bufferImageCopy);
+
+            endAndSubmitCommandBuffer(logicalDevice, commandPool, queue, commandBuffer);
+        }
+    }
+
     public static void transitionImageLayout(VkDevice logicalDevice, VkQueue queue, VkCommandPool commandPool, VkImage image, VkImageLayout currentLayout, VkImageLayout targetLayout) {
         try (VulkanSession vk = new VulkanSession()) {
             VkCommandBuffer commandBuffer = beginCommandBuffer(logicalDevice, commandPool);
@@ -480,7 +480,7 @@ public class VulkanUtils {
         return glfwExtensions;
     }
 
-    public static @Nonnull VkPhysicalDevice findFirstSuitablePhysicalDevice(VkInstance instance, VkSurfaceKHR surface) {
+    public static @Nonnull VkPhysicalDevice findFirstSuitablePhysicalDevice(VkInstance instance, @Nullable VkSurfaceKHR surface) {
         try (VulkanSession vk = new VulkanSession()) {
             PointerBuffer physicalDevices = vk.enumeratePhysicalDevices(instance);
             if (physicalDevices.limit() == 0) {
@@ -497,10 +497,16 @@ public class VulkanUtils {
         throw new RuntimeException("Could not find a suitable physical device");
     }
 
-    public static boolean isSuitableDevice(VkPhysicalDevice physicalDevice, VkSurfaceKHR surface) {
+    public static boolean isSuitableDevice(VkPhysicalDevice physicalDevice, @Nullable VkSurfaceKHR surface) {
         try (VulkanSession vk = new VulkanSession()) {
             VkPhysicalDeviceFeatures deviceFeatures = vk.getPhysicalDeviceFeatures(physicalDevice);
 
+            // Without a surface there is nothing to present to, so only the graphics capabilities matter
+            if (surface == null) {
+                return findQueueIndices(physicalDevice, null).graphical() >= 0 &&
+                       deviceFeatures.samplerAnisotropy();
+            }
+
             IntBuffer surfaceFormatCountBuffer = vk.stack().mallocInt(1);
             vkGetPhysicalDeviceSurfaceFormatsKHR(physicalDevice, surface.address(), surfaceFormatCountBuffer, null);
             int surfaceFormatCount = surfaceFormatCountBuffer.get(0);
@@ -538,12 +544,13 @@ public class VulkanUtils {
         }
     }
 
-    public static QueueIndices findQueueIndices(VkPhysicalDevice physicalDevice, VkSurfaceKHR surface) {
+    public static QueueIndices findQueueIndices(VkPhysicalDevice physicalDevice, @Nullable VkSurfaceKHR surface) {
         try (VulkanSession vk = new VulkanSession()) {
             VkQueueFamilyProperties.Buffer queueFamilies = vk.getPhysicalDeviceQueueFamilyProperties(physicalDevice);
             List<Integer> graphicalQueueIndices = new ArrayList<>(1);
             List<Integer> surfaceSupportingQueueIndices = new ArrayList<>(1);
-            for (int i = 0; i < queueFamilies.queueCount(); i++) {
+            int transferQueueIndex = -1;
+            for (int i = 0; i < queueFamilies.limit(); i++) {
                 VkQueueFamilyProperties queueFamily = queueFamilies.get(i);
                 if (queueFamily.queueCount() <= 0) {
                     continue;
@@ -553,6 +560,19 @@ public class VulkanUtils {
                     graphicalQueueIndices.add(i);
                 }
 
+                // Prefer a pure transfer family (usually backed by a DMA engine) over one that can also compute
+                int flags = queueFamily.queueFlags();
+                if ((flags & VK_QUEUE_TRANSFER_BIT) != 0 && (flags & VK_QUEUE_GRAPHICS_BIT) == 0) {
+                    boolean pureTransfer = (flags & VK_QUEUE_COMPUTE_BIT) == 0;
+                    if (transferQueueIndex < 0 || (pureTransfer && (queueFamilies.get(transferQueueIndex).queueFlags() & VK_QUEUE_COMPUTE_BIT) != 0)) {
+                        transferQueueIndex = i;
+                    }
+                }
+
+                if (surface == null) {
+                    continue;
+                }
+
                 IntBuffer supportSurfacePointer = vk.stack().mallocInt(1);
                 vkGetPhysicalDeviceSurfaceSupportKHR(physicalDevice, i, surface.address(), supportSurfacePointer);
 
@@ -562,12 +582,13 @@ public class VulkanUtils {
             }
             return new QueueIndices(
                     graphicalQueueIndices.isEmpty() ? -1 : graphicalQueueIndices.getFirst(),
-                    surfaceSupportingQueueIndices.isEmpty() ? -1 : surfaceSupportingQueueIndices.getFirst()
+                    surfaceSupportingQueueIndices.isEmpty() ? -1 : surfaceSupportingQueueIndices.getFirst(),
+                    transferQueueIndex
             );
         }
     }
 
-    public static VkInstance createInstance(boolean enableDebugging) {
+    public static VkInstance createInstance(boolean enableDebugging, List<String> requiredExtensionNames) {
         try (VulkanSession vk = new VulkanSession()) {
             // Info about the app itself
             VkApplicationInfo applicationInfo = VkApplicationInfo.malloc(vk.stack())
@@ -583,7 +604,7 @@ public class VulkanUtils {
             int flags = 0;
 
             // Extension list
-            HashSet<String> requiredExtensions = new HashSet<>(getAllGlfwExtensions());
+            HashSet<String> requiredExtensions = new HashSet<>(requiredExtensionNames);
             HashSet<String> availableExtensions = vk.enumerateInstanceExtensionProperties().stream().map(VkExtensionProperties::extensionNameString).collect(Collectors.toCollection(HashSet::new));
             for (String requiredExtension : requiredExtensions) {
                 if (!availableExtensions.contains(requiredExtension)) {
@@ -697,7 +718,7 @@ public class VulkanUtils {
         return vk.stack().pointers(requiredLayerNames.stream().map(vk.stack()::UTF8).toArray(ByteBuffer[]::new));
     }
 
-    public static VkDevice createLogicalDevice(VkPhysicalDevice physicalDevice, VkSurfaceKHR surface) {
+    public static VkDevice createLogicalDevice(VkPhysicalDevice physicalDevice, @Nullable VkSurfaceKHR surface) {
         try (VulkanSession vk = new VulkanSession()) {
             QueueIndices queueIndices = findQueueIndices(physicalDevice, surface);
             // Queues
@@ -708,7 +729,7 @@ public class VulkanUtils {
                     .flags(0)
                     .queueFamilyIndex(queueIndices.graphical())
                     .pQueuePriorities(vk.stack().floats(1.0f)));
-            if (queueIndices.graphical() != queueIndices.surfaceSupporting()) {
+            if (surface != null && queueIndices.graphical() != queueIndices.surfaceSupporting()) {
                 queueCreateInfos.add(VkDeviceQueueCreateInfo.malloc(vk.stack())
                         .sType$Default()
                         .pNext(NULL)
@@ -716,14 +737,29 @@ public class VulkanUtils {
                         .queueFamilyIndex(queueIndices.surfaceSupporting())
                         .pQueuePriorities(vk.stack().floats(1.0f)));
             }
+            // Every family may only be listed once, even when the transfer queue shares it with presentation
+            if (queueIndices.transfer() >= 0 && queueIndices.transfer() != queueIndices.graphical()
+                    && (surface == null || queueIndices.transfer() != queueIndices.surfaceSupporting())) {
+                queueCreateInfos.add(VkDeviceQueueCreateInfo.malloc(vk.stack())
+                        .sType$Default()
+                        .pNext(NULL)
+                        .flags(0)
+                        .queueFamilyIndex(queueIndices.transfer())
+                        .pQueuePriorities(vk.stack().floats(1.0f)));
+            }
             VkDeviceQueueCreateInfo.Buffer queueCreateInfosBuffer = VkDeviceQueueCreateInfo.malloc(queueCreateInfos.size());
             for (int i = 0; i < queueCreateInfos.size(); i++) {
                 queueCreateInfosBuffer.put(i, queueCreateInfos.get(i));
             }
 
-            // Features
+            // Features, the indirect drawing and profiling ones are optional and only enabled when available
+            VkPhysicalDeviceFeatures supportedFeatures = vk.getPhysicalDeviceFeatures(physicalDevice);
             VkPhysicalDeviceFeatures deviceFeatures = VkPhysicalDeviceFeatures.calloc(vk.stack())
-                    .samplerAnisotropy(true);
+                    .samplerAnisotropy(true)
+                    .multiDrawIndirect(supportedFeatures.multiDrawIndirect())
+                    .drawIndirectFirstInstance(supportedFeatures.drawIndirectFirstInstance())
+                    .pipelineStatisticsQuery(supportedFeatures.pipelineStatisticsQuery())
+                    .inheritedQueries(supportedFeatures.inheritedQueries());
 
             // Extensions
             VkExtensionProperties.Buffer availableExtensions = vk.enumerateDeviceExtensionProperties(physicalDevice);
@@ -731,7 +767,9 @@ public class VulkanUtils {
                     .map(VkExtensionProperties::extensionNameString)
                     .toList();
             List<String> requiredExtensionNames = new ArrayList<>();
-            requiredExtensionNames.add(VK_KHR_SWAPCHAIN_EXTENSION_NAME);
+            if (surface != null) {
+                requiredExtensionNames.add(VK_KHR_SWAPCHAIN_EXTENSION_NAME);
+            }
             for (String availableDeviceExtensionName : availableExtensionNames) {
                 if (Objects.equals(availableDeviceExtensionName, "VK_KHR_portability_subset")) {
                     requiredExtensionNames.add("VK_KHR_portability_subset");
@@ -764,11 +802,11 @@ public class VulkanUtils {
         }
     }
 
-    public static VkPresentModeKHR findBestPresentationMode(VkPhysicalDevice physicalDevice, VkSurfaceKHR surface) {
+    public static VkPresentModeKHR findBestPresentationMode(VkPhysicalDevice physicalDevice, VkSurfaceKHR surface, VkPresentModeKHR preferredMode) {
         try (VulkanSession vk = new VulkanSession()) {
             List<VkPresentModeKHR> presentationModes = vk.getPhysicalDeviceSurfacePresentModesKHR(physicalDevice, surface);
             for (VkPresentModeKHR presentationMode : presentationModes) {
-                if (presentationMode == VkPresentModeKHR.VK_PRESENT_MODE_MAILBOX_KHR) {
+                if (presentationMode == preferredMode) {
                     return presentationMode;
                 }
             }
@@ -820,7 +858,7 @@ public class VulkanUtils {
 
     public static VkSwapchainKHR createSwapchain(VkPhysicalDevice physicalDevice, VkDevice logicalDevice,
                                                   VkSurfaceKHR surface, SwapchainImageConfig swapchainImageConfig,
-                                                  VkPresentModeKHR presentationMode) {
+                                                  VkPresentModeKHR presentationMode, @Nullable VkSwapchainKHR oldSwapchain) {
         try (VulkanSession vk = new VulkanSession()) {
             VkSurfaceCapabilitiesKHR surfaceCapabilities = vk.getPhysicalDeviceSurfaceCapabilitiesKHR(physicalDevice, surface);
 
@@ -834,10 +872,10 @@ public class VulkanUtils {
             QueueIndices queueIndices = findQueueIndices(physicalDevice, surface);
             if (queueIndices.graphical() == queueIndices.surfaceSupporting()) {
                 sharingMode = VkSharingMode.VK_SHARING_MODE_EXCLUSIVE;
-                queueIndexBuffer = vk.stack().ints(queueIndices.graphical(), queueIndices.surfaceSupporting());
+                queueIndexBuffer = vk.stack().ints(queueIndices.graphical());
             } else {
                 sharingMode = VkSharingMode.VK_SHARING_MODE_CONCURRENT;
-                queueIndexBuffer = vk.stack().ints(queueIndices.graphical());
+                queueIndexBuffer = vk.stack().ints(queueIndices.graphical(), queueIndices.surfaceSupporting());
             }
 
             VkSwapchainCreateInfoKHR swapchainCreateInfo = VkSwapchainCreateInfoKHR.calloc(vk.stack())
@@ -856,7 +894,7 @@ public class VulkanUtils {
                     .compositeAlpha(VK_COMPOSITE_ALPHA_OPAQUE_BIT_KHR)
                     .presentMode(presentationMode.getValue())
                     .clipped(true)
-                    .oldSwapchain(NULL);
+                    .oldSwapchain(oldSwapchain != null ? oldSwapchain.address() : NULL);
             LongBuffer swapchainPointer = vk.stack().mallocLong(1);
             throwIfFailed(vkCreateSwapchainKHR(logicalDevice, swapchainCreateInfo, null, swapchainPointer));
             return new VkSwapchainKHR(swapchainPointer.get(0));
@@ -916,7 +954,7 @@ public class VulkanUtils {
         }
     }
 
-    public static VkRenderPass createRenderPass(VkDevice logicalDevice, VkFormat colorFormat, VkFormat depthBufferFormat) {
+    public static VkRenderPass createRenderPass(VkDevice logicalDevice, VkFormat colorFormat, VkFormat depthBufferFormat, VkImageLayout colorFinalLayout) {
         try (VulkanSession vk = new VulkanSession()) {
             VkAttachmentDescription.Buffer attachments = VkAttachmentDescription.calloc(2, vk.stack());
             // Color Attachment
@@ -929,7 +967,7 @@ public class VulkanUtils {
                     .stencilLoadOp(VK_ATTACHMENT_LOAD_OP_DONT_CARE)
                     .stencilStoreOp(VK_ATTACHMENT_STORE_OP_DONT_CARE)
                     .initialLayout(VK_IMAGE_LAYOUT_UNDEFINED)
-                    .finalLayout(VK_IMAGE_LAYOUT_PRESENT_SRC_KHR);
+                    .finalLayout(colorFinalLayout.getValue());
             // Depth Buffer Attachment
             // noinspection resource
             attachments.get(1)
@@ -1017,9 +1055,10 @@ public class VulkanUtils {
                     .pImmutableSamplers(null);
             descriptorSetLayoutBindings.get(1)
                     .binding(1)
-                    .descriptorType(VK_DESCRIPTOR_TYPE_UNIFORM_BUFFER_DYNAMIC)
+                    .descriptorType(VK_DESCRIPTOR_TYPE_STORAGE_BUFFER)
                     .descriptorCount(1)
-                    .stageFlags(VK_SHADER_STAGE_VERTEX_BIT)
+                    // The culling pass writes the visible instances through the same binding
+                    .stageFlags(VK_SHADER_STAGE_VERTEX_BIT | VK_SHADER_STAGE_COMPUTE_BIT)
                     .pImmutableSamplers(null);
 
             VkDescriptorSetLayoutCreateInfo descriptorSetLayoutCreateInfo = VkDescriptorSetLayoutCreateInfo.calloc(vk.stack())
@@ -1048,9 +1087,13 @@ public class VulkanUtils {
         }
     }
 
-    public static void connectDescriptorSetsToUniformBuffers(VkDevice logicalDevice, List<VkDescriptorSet> descriptorSets, List<VkBuffer> sceneUniformBuffers, long sceneUniformSize, List<VkBuffer> modelUniformBuffers, long modelUniformElementSize) {
+    /**
+     * Points binding 0 at the scene uniform data and binding 1 at the whole instance storage buffer,
+     * which the vertex shader indexes with {@code gl_InstanceIndex}.
+     */
+    public static void connectDescriptorSetsToBuffers(VkDevice logicalDevice, List<VkDescriptorSet> descriptorSets, List<VkBuffer> sceneUniformBuffers, long sceneUniformSize, List<VkBuffer> instanceStorageBuffers) {
         assert descriptorSets.size() == sceneUniformBuffers.size();
-        assert descriptorSets.size() == modelUniformBuffers.size();
+        assert descriptorSets.size() == instanceStorageBuffers.size();
         try (VulkanSession vk = new VulkanSession()) {
             for (int i = 0; i < descriptorSets.size(); i++) {
                 VkWriteDescriptorSet.Buffer setWrites = VkWriteDescriptorSet.calloc(2, vk.stack());
@@ -1067,28 +1110,74 @@ public class VulkanUtils {
                         .descriptorCount(1)
                         .descriptorType(VK_DESCRIPTOR_TYPE_UNIFORM_BUFFER)
                         .pBufferInfo(sceneDescriptorBufferInfos);
-                VkDescriptorBufferInfo.Buffer modelDescriptorBufferInfos = VkDescriptorBufferInfo.calloc(1, vk.stack())
-                        .buffer(modelUniformBuffers.get(i).address())
+                VkDescriptorBufferInfo.Buffer instanceDescriptorBufferInfos = VkDescriptorBufferInfo.calloc(1, vk.stack())
+                        .buffer(instanceStorageBuffers.get(i).address())
                         .offset(0)
-                        .range(modelUniformElementSize);
+                        .range(VK_WHOLE_SIZE);
                 setWrites.get(1)
                         .sType$Default()
                         .dstSet(descriptorSets.get(i).address())
                         .dstBinding(1)
                         .dstArrayElement(0)
                         .descriptorCount(1)
-                        .descriptorType(VK_DESCRIPTOR_TYPE_UNIFORM_BUFFER_DYNAMIC)
-                        .pBufferInfo(modelDescriptorBufferInfos);
+                        .descriptorType(VK_DESCRIPTOR_TYPE_STORAGE_BUFFER)
+                        .pBufferInfo(instanceDescriptorBufferInfos);
 
                 vk.updateDescriptorSets(logicalDevice, setWrites, null);
             }
         }
     }
 
-    public static VkPipeline createGraphicsPipeline(VkDevice logicalDevice, VkExtent2D extent, VkPipelineLayout pipelineLayout, VkRenderPass renderPass) {
+    /**
+     * @param pushConstantSize size of the push constants the compute shader reads, 0 for none
+     */
+    public static VkPipelineLayout createComputePipelineLayout(VkDevice logicalDevice, List<VkDescriptorSetLayout> descriptorSetLayouts, int pushConstantSize) {
         try (VulkanSession vk = new VulkanSession()) {
-            ByteBuffer vertexShader = readBinaryResource("shaders/vert.spv");
-            ByteBuffer fragmentShader = readBinaryResource("shaders/frag.spv");
+            LongBuffer descriptorSetLayoutsBuffer = toAddressBuffer(descriptorSetLayouts, vk.stack(), VkDescriptorSetLayout::address);
+
+            VkPipelineLayoutCreateInfo pipelineLayoutCreateInfo = VkPipelineLayoutCreateInfo.calloc(vk.stack())
+                    .sType$Default()
+                    .pSetLayouts(descriptorSetLayoutsBuffer);
+            if (pushConstantSize > 0) {
+                VkPushConstantRange.Buffer pushConstantRange = VkPushConstantRange.calloc(1, vk.stack())
+                        .stageFlags(VK_SHADER_STAGE_COMPUTE_BIT)
+                        .offset(0)
+                        .size(pushConstantSize);
+                pipelineLayoutCreateInfo.pPushConstantRanges(pushConstantRange);
+            }
+
+            return vk.createPipelineLayout(logicalDevice, pipelineLayoutCreateInfo, null);
+        }
+    }
+
+    public static VkPipeline createComputePipeline(VkDevice logicalDevice, @Nullable VkPipelineCache pipelineCache, VkPipelineLayout pipelineLayout, String computeShaderPath) {
+        try (VulkanSession vk = new VulkanSession()) {
+            VkShaderModule computeShaderModule = createShaderModule(logicalDevice, readBinaryResource(computeShaderPath));
+
+            VkComputePipelineCreateInfo.Buffer computePipelineCreateInfos = VkComputePipelineCreateInfo.calloc(1, vk.stack());
+            computePipelineCreateInfos.get(0)
+                    .sType$Default()
+                    .layout(pipelineLayout.address())
+                    .basePipelineHandle(VK_NULL_HANDLE)
+                    .basePipelineIndex(-1)
+                    .stage()
+                    .sType$Default()
+                    .stage(VK_SHADER_STAGE_COMPUTE_BIT)
+                    .module(computeShaderModule.address())
+                    .pName(vk.stack().UTF8("main"));
+
+            List<VkPipeline> pipelines = vk.createComputePipelines(logicalDevice, pipelineCache, computePipelineCreateInfos, null);
+
+            vk.destroyShaderModule(logicalDevice, computeShaderModule, null);
+
+            return pipelines.getFirst();
+        }
+    }
+
+    public static VkPipeline createGraphicsPipeline(VkDevice logicalDevice, @Nullable VkPipelineCache pipelineCache, VkPipelineLayout pipelineLayout, PipelineDescription description) {
+        try (VulkanSession vk = new VulkanSession()) {
+            ByteBuffer vertexShader = readBinaryResource(description.vertexShader());
+            ByteBuffer fragmentShader = readBinaryResource(description.fragmentShader());
 
             VkShaderModule vertexShaderModule = createShaderModule(logicalDevice, vertexShader);
             VkShaderModule fragmentShaderModule = createShaderModule(logicalDevice, fragmentShader);
@@ -1112,27 +1201,21 @@ public class VulkanUtils {
                     .pName(main);
 
             ////// VERTEX LAYOUT & SHADER LOCATIONS //////
+            PipelineDescription.VertexLayout vertexLayout = description.vertexLayout();
             VkVertexInputBindingDescription.Buffer vertexInputBindingDescriptions = VkVertexInputBindingDescription.calloc(1, vk.stack())
                     .binding(0)
-                    .stride(Vertex.BYTES)
+                    .stride(vertexLayout.stride())
                     .inputRate(VK_VERTEX_INPUT_RATE_VERTEX);
 
-            VkVertexInputAttributeDescription.Buffer vertexInputAttributeDescriptions = VkVertexInputAttributeDescription.calloc(3, vk.stack());
-            vertexInputAttributeDescriptions.get(0)
-                    .location(0)
-                    .binding(0)
-                    .format(VK_FORMAT_R32G32B32_SFLOAT)
-                    .offset(Vertex.POSITION_OFFSET_BYTES);
-            vertexInputAttributeDescriptions.get(1)
-                    .location(1)
-                    .binding(0)
-                    .format(VK_FORMAT_R32G32B32_SFLOAT)
-                    .offset(Vertex.COLOR_OFFSET_BYTES);
-            vertexInputAttributeDescriptions.get(2)
-                    .location(2)
-                    .binding(0)
-                    .format(VK_FORMAT_R32G32_SFLOAT)
-                    .offset(Vertex.UV_OFFSET_BYTES);
+            List<PipelineDescription.VertexAttribute> attributes = vertexLayout.attributes();
+            VkVertexInputAttributeDescription.Buffer vertexInputAttributeDescriptions = VkVertexInputAttributeDescription.calloc(attributes.size(), vk.stack());
+            for (int i = 0; i < attributes.size(); i++) {
+                vertexInputAttributeDescriptions.get(i)
+                        .location(attributes.get(i).location())
+                        .binding(0)
+                        .format(attributes.get(i).format())
+                        .offset(attributes.get(i).offset());
+            }
 
             VkPipelineVertexInputStateCreateInfo vertexInputStateCreateInfo = VkPipelineVertexInputStateCreateInfo.calloc(vk.stack())
                     .sType$Default()
@@ -1145,34 +1228,22 @@ public class VulkanUtils {
                     .topology(VK_PRIMITIVE_TOPOLOGY_TRIANGLE_LIST)
                     .primitiveRestartEnable(false);
 
-            VkViewport.Buffer viewports = VkViewport.calloc(1);
-            //noinspection resource
-            viewports.get(0)
-                    .x(0)
-                    .y(0)
-                    .width(extent.width())
-                    .height(extent.height())
-                    .minDepth(0)
-                    .maxDepth(1);
-
-            VkRect2D.Buffer scissors = VkRect2D.calloc(1);
-            scissors.get(0)
-                    .offset(VkOffset2D.malloc(vk.stack()).set(0, 0))
-                    .extent(extent);
-
+            // The viewport and scissor are set while recording, so that the pipeline outlives swapchain resizes
             VkPipelineViewportStateCreateInfo viewportStateCreateInfo = VkPipelineViewportStateCreateInfo.calloc(vk.stack())
                     .sType$Default()
-                    .viewportCount(viewports.limit())
-                    .pViewports(viewports)
-                    .scissorCount(scissors.limit())
-                    .pScissors(scissors);
+                    .viewportCount(1)
+                    .scissorCount(1);
+
+            VkPipelineDynamicStateCreateInfo dynamicStateCreateInfo = VkPipelineDynamicStateCreateInfo.calloc(vk.stack())
+                    .sType$Default()
+                    .pDynamicStates(vk.stack().ints(VK_DYNAMIC_STATE_VIEWPORT, VK_DYNAMIC_STATE_SCISSOR));
 
             VkPipelineRasterizationStateCreateInfo rasterizationStateCreateInfo = VkPipelineRasterizationStateCreateInfo.calloc(vk.stack())
                     .sType$Default()
                     .depthClampEnable(false)
                     .rasterizerDiscardEnable(false)
                     .polygonMode(VK_POLYGON_MODE_FILL)
-                    .cullMode(VK_CULL_MODE_NONE) // TODO: Change back to VK_CULL_MODE_BACK_BIT
+                    .cullMode(description.cullMode())
                     .frontFace(VK_FRONT_FACE_COUNTER_CLOCKWISE)
                     .depthBiasEnable(false)
                     .lineWidth(1);
@@ -1187,7 +1258,7 @@ public class VulkanUtils {
                     .alphaToOneEnable(false);
 
             VkPipelineColorBlendAttachmentState.Buffer colorBlendAttachmentState = VkPipelineColorBlendAttachmentState.calloc(1)
-                    .blendEnable(true)
+                    .blendEnable(description.blendMode() == PipelineDescription.BlendMode.ALPHA)
                     .srcColorBlendFactor(VK_BLEND_FACTOR_SRC_ALPHA)
                     .dstColorBlendFactor(VK_BLEND_FACTOR_ONE_MINUS_SRC_ALPHA)
                     .colorBlendOp(VK_BLEND_OP_ADD)
@@ -1207,8 +1278,8 @@ public class VulkanUtils {
 
             VkPipelineDepthStencilStateCreateInfo depthStencilStateCreateInfo = VkPipelineDepthStencilStateCreateInfo.calloc(vk.stack())
                     .sType$Default()
-                    .depthTestEnable(true)
-                    .depthWriteEnable(true)
+                    .depthTestEnable(description.depthTest())
+                    .depthWriteEnable(description.depthWrite())
                     .depthCompareOp(VK_COMPARE_OP_LESS)
                     .depthBoundsTestEnable(false)
                     .stencilTestEnable(false);
@@ -1226,14 +1297,14 @@ public class VulkanUtils {
                     .pMultisampleState(multisampleStateCreateInfo)
                     .pDepthStencilState(depthStencilStateCreateInfo)
                     .pColorBlendState(colorBlendStateCreateInfo)
-                    .pDynamicState(null)
+                    .pDynamicState(dynamicStateCreateInfo)
                     .layout(pipelineLayout.address())
-                    .renderPass(renderPass.address())
+                    .renderPass(description.renderPass().address())
                     .subpass(0)
                     .basePipelineHandle(VK_NULL_HANDLE)
                     .basePipelineIndex(-1);
 
-            List<VkPipeline> pipelines = vk.createGraphicsPipelines(logicalDevice, null, graphicsPipelineCreateInfos, null);
+            List<VkPipeline> pipelines = vk.createGraphicsPipelines(logicalDevice, pipelineCache, graphicsPipelineCreateInfos, null);
 
             vk.destroyShaderModule(logicalDevice, fragmentShaderModule, null);
             vk.destroyShaderModule(logicalDevice, vertexShaderModule, null);
@@ -1257,17 +1328,17 @@ public class VulkanUtils {
         }
     }
 
-    public static List<VkFramebuffer> createFramebuffers(VkDevice logicalDevice, VkRenderPass renderPass, SwapchainImageConfig imageConfig, List<SwapchainImage> swapchainImages, Image depthBufferImage) {
+    public static List<VkFramebuffer> createFramebuffers(VkDevice logicalDevice, VkRenderPass renderPass, VkExtent2D extent, List<VkImageView> colorImageViews, Image depthBufferImage) {
         try (VulkanSession vk = new VulkanSession()) {
-            List<VkFramebuffer> framebuffers = new ArrayList<>(swapchainImages.size());
-            for (int i = 0; i < swapchainImages.size(); i++) {
-                LongBuffer attachments = vk.stack().longs(swapchainImages.get(i).view().address(), depthBufferImage.view().address());
+            List<VkFramebuffer> framebuffers = new ArrayList<>(colorImageViews.size());
+            for (int i = 0; i < colorImageViews.size(); i++) {
+                LongBuffer attachments = vk.stack().longs(colorImageViews.get(i).address(), depthBufferImage.view().address());
                 VkFramebufferCreateInfo framebufferCreateInfo = VkFramebufferCreateInfo.calloc(vk.stack())
                         .sType$Default()
                         .renderPass(renderPass.address())
                         .pAttachments(attachments)
-                        .width(imageConfig.extent().width())
-                        .height(imageConfig.extent().height())
+                        .width(extent.width())
+                        .height(extent.height())
                         .layers(1);
 
                 LongBuffer framebufferPointer = vk.stack().mallocLong(1);
@@ -1292,13 +1363,13 @@ public class VulkanUtils {
         }
     }
 
-    public static List<VkCommandBuffer> createCommandBuffers(VkDevice logicalDevice, VkCommandPool commandPool, List<VkFramebuffer> framebuffers) {
+    public static List<VkCommandBuffer> createCommandBuffers(VkDevice logicalDevice, VkCommandPool commandPool, int count) {
         try (VulkanSession vk = new VulkanSession()) {
             VkCommandBufferAllocateInfo commandBufferAllocateInfo = VkCommandBufferAllocateInfo.calloc(vk.stack())
                     .sType$Default()
                     .commandPool(commandPool.address())
                     .level(VK_COMMAND_BUFFER_LEVEL_PRIMARY) // the secondary level is used to indicate that this buffer can only be run from another buffer (basically you can record a command to run a buffer of commands).
-                    .commandBufferCount(framebuffers.size());
+                    .commandBufferCount(count);
             return vk.allocateCommandBuffers(logicalDevice, commandBufferAllocateInfo);
         }
     }
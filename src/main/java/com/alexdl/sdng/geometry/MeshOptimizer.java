@@ -0,0 +1,386 @@
+package com.alexdl.sdng.geometry;
+
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Reorders the triangles and vertices of indexed meshes so that the GPU does less work drawing them, without changing
+ * what is drawn.
+ * <ul>
+ *     <li>{@link #optimizeVertexCache} orders triangles so that they reuse the vertices that were just transformed,
+ *     using Tom Forsyth's linear-speed vertex cache optimization.</li>
+ *     <li>{@link #optimizeOverdraw} then moves clusters of those triangles that face outwards to the front, so that
+ *     they hide more of what is drawn after them, while keeping most of the cache locality.</li>
+ *     <li>{@link #optimizeVertexFetch} finally orders the vertices by their first use, so that they are fetched from
+ *     memory mostly front to back.</li>
+ * </ul>
+ */
+public final class MeshOptimizer {
+    /** Size of the modeled LRU cache that the scores are tuned for */
+    private static final int SCORING_CACHE_SIZE = 32;
+    private static final float CACHE_DECAY_POWER = 1.5f;
+    private static final float LAST_TRIANGLE_SCORE = 0.75f;
+    private static final float VALENCE_BOOST_SCALE = 2.0f;
+    private static final float VALENCE_BOOST_POWER = 0.5f;
+    private static final int MAX_VALENCE_SCORED = 64;
+    /** Size of the FIFO cache that clusters are found with, close to what current GPUs reuse within */
+    private static final int CLUSTER_CACHE_SIZE = 16;
+
+    private static final float[] CACHE_POSITION_SCORES = new float[SCORING_CACHE_SIZE];
+    private static final float[] VALENCE_SCORES = new float[MAX_VALENCE_SCORED + 1];
+
+    static {
+        for (int position = 0; position < SCORING_CACHE_SIZE; position++) {
+            // The last triangle's vertices get a fixed score, so that the next triangle does not just reuse its edge
+            CACHE_POSITION_SCORES[position] = position < 3
+                    ? LAST_TRIANGLE_SCORE
+                    : (float) Math.pow(1 - (position - 3) / (float) (SCORING_CACHE_SIZE - 3), CACHE_DECAY_POWER);
+        }
+        for (int valence = 1; valence <= MAX_VALENCE_SCORED; valence++) {
+            // Vertices with few triangles left get finished first, so they don't have to come back into the cache
+            VALENCE_SCORES[valence] = VALENCE_BOOST_SCALE * (float) Math.pow(valence, -VALENCE_BOOST_POWER);
+        }
+    }
+
+    /**
+     * @param acmr average cache miss ratio, the number of vertices transformed per triangle, between 0.5 for an ideal
+     *             order of a large regular grid and 3
+     * @param atvr average transformed vertex ratio, the number of times every vertex is transformed, 1 at best
+     */
+    public record VertexCacheStatistics(float acmr, float atvr) {
+    }
+
+    private MeshOptimizer() {
+    }
+
+    /**
+     * @return the triangles reordered to reuse recently transformed vertices
+     */
+    public static @Nonnull int[] optimizeVertexCache(@Nonnull int[] indices, int vertexCount) {
+        int triangleCount = indices.length / 3;
+        int[] adjacencyOffsets = new int[vertexCount + 1];
+        for (int index : indices) {
+            adjacencyOffsets[index + 1]++;
+        }
+        for (int vertex = 0; vertex < vertexCount; vertex++) {
+            adjacencyOffsets[vertex + 1] += adjacencyOffsets[vertex];
+        }
+        // Triangles not emitted yet, the first remainingTriangles[v] of every vertex's range
+        int[] adjacency = new int[indices.length];
+        int[] remainingTriangles = new int[vertexCount];
+        for (int i = 0; i < indices.length; i++) {
+            int vertex = indices[i];
+            adjacency[adjacencyOffsets[vertex] + remainingTriangles[vertex]] = i / 3;
+            remainingTriangles[vertex]++;
+        }
+
+        int[] cachePositions = new int[vertexCount];
+        Arrays.fill(cachePositions, -1);
+        float[] vertexScores = new float[vertexCount];
+        for (int vertex = 0; vertex < vertexCount; vertex++) {
+            vertexScores[vertex] = vertexScore(cachePositions[vertex], remainingTriangles[vertex]);
+        }
+
+        boolean[] emitted = new boolean[triangleCount];
+        int[] cache = new int[SCORING_CACHE_SIZE + 3];
+        int[] nextCache = new int[SCORING_CACHE_SIZE + 3];
+        int cacheSize = 0;
+        int[] result = new int[indices.length];
+        int nextInputTriangle = 0;
+        int bestTriangle = -1;
+        for (int emittedCount = 0; emittedCount < triangleCount; emittedCount++) {
+            if (bestTriangle < 0) {
+                // Nothing in the cache has triangles left, continue with the next triangle in the input order
+                while (emitted[nextInputTriangle]) {
+                    nextInputTriangle++;
+                }
+                bestTriangle = nextInputTriangle;
+            }
+            int triangle = bestTriangle;
+            emitted[triangle] = true;
+            System.arraycopy(indices, triangle * 3, result, emittedCount * 3, 3);
+
+            // The triangle's vertices move to the front of the cache, pushing the rest back
+            int nextCacheSize = 0;
+            for (int corner = 0; corner < 3; corner++) {
+                int vertex = indices[triangle * 3 + corner];
+                removeTriangle(adjacency, adjacencyOffsets[vertex], remainingTriangles, vertex, triangle);
+                nextCache[nextCacheSize++] = vertex;
+            }
+            for (int i = 0; i < cacheSize; i++) {
+                int vertex = cache[i];
+                if (vertex != nextCache[0] && vertex != nextCache[1] && vertex != nextCache[2]) {
+                    nextCache[nextCacheSize++] = vertex;
+                }
+            }
+            int[] swap = cache;
+            cache = nextCache;
+            nextCache = swap;
+            cacheSize = nextCacheSize;
+
+            for (int i = 0; i < cacheSize; i++) {
+                int vertex = cache[i];
+                // Vertices beyond the cache size are evicted, but their triangles still need new scores
+                cachePositions[vertex] = i < SCORING_CACHE_SIZE ? i : -1;
+                vertexScores[vertex] = vertexScore(cachePositions[vertex], remainingTriangles[vertex]);
+            }
+            bestTriangle = -1;
+            float bestScore = -1;
+            for (int i = 0; i < cacheSize; i++) {
+                int vertex = cache[i];
+                for (int j = 0; j < remainingTriangles[vertex]; j++) {
+                    int candidate = adjacency[adjacencyOffsets[vertex] + j];
+                    float score = vertexScores[indices[candidate * 3]]
+                                  + vertexScores[indices[candidate * 3 + 1]]
+                                  + vertexScores[indices[candidate * 3 + 2]];
+                    if (score > bestScore) {
+                        bestScore = score;
+                        bestTriangle = candidate;
+                    }
+                }
+            }
+            cacheSize = Math.min(cacheSize, SCORING_CACHE_SIZE);
+        }
+        return result;
+    }
+
+    /**
+     * Splits the triangles into clusters wherever doing so costs little cache locality and orders the clusters so that
+     * the ones facing away from the mesh's center are drawn first. Meant to run on the result of
+     * {@link #optimizeVertexCache}.
+     *
+     * @param vertices  vertex data with the position in the first three floats of every vertex
+     * @param stride    number of floats per vertex
+     * @param threshold how much worse the cache miss ratio of a cluster may get when it is split further, e.g. 1.05
+     */
+    public static @Nonnull int[] optimizeOverdraw(@Nonnull int[] indices, @Nonnull float[] vertices, int stride, float threshold) {
+        int triangleCount = indices.length / 3;
+        if (triangleCount == 0) {
+            return indices.clone();
+        }
+        int vertexCount = vertices.length / stride;
+        int[] hardBoundaries = hardBoundaries(indices, vertexCount);
+        List<int[]> clusters = new ArrayList<>();
+        for (int i = 0; i < hardBoundaries.length; i++) {
+            int end = i + 1 < hardBoundaries.length ? hardBoundaries[i + 1] : triangleCount;
+            addSoftClusters(indices, vertexCount, hardBoundaries[i], end, threshold, clusters);
+        }
+
+        // Area weighted, so that many small triangles don't outweigh a few large ones
+        double[] meshCentroid = new double[3];
+        double meshArea = 0;
+        double[] clusterData = new double[clusters.size() * 7];
+        for (int c = 0; c < clusters.size(); c++) {
+            int[] cluster = clusters.get(c);
+            for (int triangle = cluster[0]; triangle < cluster[1]; triangle++) {
+                int a = indices[triangle * 3] * stride;
+                int b = indices[triangle * 3 + 1] * stride;
+                int c0 = indices[triangle * 3 + 2] * stride;
+                double abX = vertices[b] - vertices[a];
+                double abY = vertices[b + 1] - vertices[a + 1];
+                double abZ = vertices[b + 2] - vertices[a + 2];
+                double acX = vertices[c0] - vertices[a];
+                double acY = vertices[c0 + 1] - vertices[a + 1];
+                double acZ = vertices[c0 + 2] - vertices[a + 2];
+                double normalX = abY * acZ - abZ * acY;
+                double normalY = abZ * acX - abX * acZ;
+                double normalZ = abX * acY - abY * acX;
+                double area = Math.sqrt(normalX * normalX + normalY * normalY + normalZ * normalZ);
+                for (int axis = 0; axis < 3; axis++) {
+                    double centroid = (vertices[a + axis] + vertices[b + axis] + vertices[c0 + axis]) / 3.0;
+                    clusterData[c * 7 + axis] += centroid * area;
+                    meshCentroid[axis] += centroid * area;
+                }
+                clusterData[c * 7 + 3] += normalX;
+                clusterData[c * 7 + 4] += normalY;
+                clusterData[c * 7 + 5] += normalZ;
+                clusterData[c * 7 + 6] += area;
+                meshArea = meshArea + area;
+            }
+        }
+        float[] sortKeys = new float[clusters.size()];
+        for (int c = 0; c < clusters.size(); c++) {
+            double area = clusterData[c * 7 + 6];
+            double normalX = clusterData[c * 7 + 3];
+            double normalY = clusterData[c * 7 + 4];
+            double normalZ = clusterData[c * 7 + 5];
+            double normalLength = Math.sqrt(normalX * normalX + normalY * normalY + normalZ * normalZ);
+            if (area == 0 || normalLength == 0 || meshArea == 0) {
+                continue;
+            }
+            double dot = 0;
+            double[] normal = {normalX, normalY, normalZ};
+            for (int axis = 0; axis < 3; axis++) {
+                dot += (clusterData[c * 7 + axis] / area - meshCentroid[axis] / meshArea) * normal[axis] / normalLength;
+            }
+            sortKeys[c] = (float) dot;
+        }
+
+        Integer[] order = new Integer[clusters.size()];
+        for (int c = 0; c < order.length; c++) {
+            order[c] = c;
+        }
+        // Stable, so clusters that are equally exposed keep their cache friendly order
+        Arrays.sort(order, Comparator.comparingDouble((Integer c) -> sortKeys[c]).reversed());
+        int[] result = new int[indices.length];
+        int written = 0;
+        for (int c : order) {
+            int[] cluster = clusters.get(c);
+            int length = (cluster[1] - cluster[0]) * 3;
+            System.arraycopy(indices, cluster[0] * 3, result, written, length);
+            written = written + length;
+        }
+        return result;
+    }
+
+    /**
+     * @return for every vertex, its new position when ordered by first use in the indices, with the vertices that are
+     * never used moved to the end
+     */
+    public static @Nonnull int[] optimizeVertexFetch(@Nonnull int[] indices, int vertexCount) {
+        int[] remap = new int[vertexCount];
+        Arrays.fill(remap, -1);
+        int next = 0;
+        for (int index : indices) {
+            if (remap[index] < 0) {
+                remap[index] = next++;
+            }
+        }
+        for (int vertex = 0; vertex < vertexCount; vertex++) {
+            if (remap[vertex] < 0) {
+                remap[vertex] = next++;
+            }
+        }
+        return remap;
+    }
+
+    /**
+     * @param remap new position of every vertex, as returned by {@link #optimizeVertexFetch}
+     */
+    public static @Nonnull float[] remapVertices(@Nonnull float[] vertices, int stride, @Nonnull int[] remap) {
+        float[] result = new float[vertices.length];
+        for (int vertex = 0; vertex < remap.length; vertex++) {
+            System.arraycopy(vertices, vertex * stride, result, remap[vertex] * stride, stride);
+        }
+        return result;
+    }
+
+    /**
+     * @param remap new position of every vertex, as returned by {@link #optimizeVertexFetch}
+     */
+    public static @Nonnull int[] remapIndices(@Nonnull int[] indices, @Nonnull int[] remap) {
+        int[] result = new int[indices.length];
+        for (int i = 0; i < indices.length; i++) {
+            result[i] = remap[indices[i]];
+        }
+        return result;
+    }
+
+    /**
+     * Simulates drawing the triangles with a FIFO cache of transformed vertices.
+     */
+    public static @Nonnull VertexCacheStatistics analyzeVertexCache(@Nonnull int[] indices, int vertexCount, int cacheSize) {
+        int triangleCount = indices.length / 3;
+        if (triangleCount == 0) {
+            return new VertexCacheStatistics(0, 0);
+        }
+        int[] insertedAt = new int[vertexCount];
+        Arrays.fill(insertedAt, Integer.MIN_VALUE / 2);
+        boolean[] used = new boolean[vertexCount];
+        int usedVertices = 0;
+        int misses = 0;
+        for (int index : indices) {
+            // A vertex is still cached when fewer than cacheSize vertices were inserted after it
+            if (misses - insertedAt[index] > cacheSize) {
+                insertedAt[index] = misses;
+                misses = misses + 1;
+            }
+            if (!used[index]) {
+                used[index] = true;
+                usedVertices = usedVertices + 1;
+            }
+        }
+        return new VertexCacheStatistics((float) misses / triangleCount, (float) misses / usedVertices);
+    }
+
+    private static float vertexScore(int cachePosition, int remainingTriangles) {
+        if (remainingTriangles == 0) {
+            return -1;
+        }
+        float score = cachePosition >= 0 ? CACHE_POSITION_SCORES[cachePosition] : 0;
+        return score + VALENCE_SCORES[Math.min(remainingTriangles, MAX_VALENCE_SCORED)];
+    }
+
+    private static void removeTriangle(int[] adjacency, int offset, int[] remainingTriangles, int vertex, int triangle) {
+        int last = offset + remainingTriangles[vertex] - 1;
+        for (int i = offset; i <= last; i++) {
+            if (adjacency[i] == triangle) {
+                adjacency[i] = adjacency[last];
+                adjacency[last] = triangle;
+                remainingTriangles[vertex]--;
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return the triangles at which the order jumps to vertices that are all out of the cache, which is where the
+     * cache optimization started on a new area of the mesh
+     */
+    private static int[] hardBoundaries(int[] indices, int vertexCount) {
+        int[] insertedAt = new int[vertexCount];
+        Arrays.fill(insertedAt, Integer.MIN_VALUE / 2);
+        int misses = 0;
+        int[] boundaries = new int[indices.length / 3];
+        int boundaryCount = 0;
+        for (int triangle = 0; triangle < indices.length / 3; triangle++) {
+            int triangleMisses = 0;
+            for (int corner = 0; corner < 3; corner++) {
+                int index = indices[triangle * 3 + corner];
+                if (misses - insertedAt[index] > CLUSTER_CACHE_SIZE) {
+                    insertedAt[index] = misses;
+                    misses = misses + 1;
+                    triangleMisses = triangleMisses + 1;
+                }
+            }
+            if (triangle == 0 || triangleMisses == 3) {
+                boundaries[boundaryCount++] = triangle;
+            }
+        }
+        return Arrays.copyOf(boundaries, boundaryCount);
+    }
+
+    /**
+     * Splits the triangles from {@code start} to {@code end} wherever the clusters so far, each drawn with an empty
+     * cache, have a miss ratio within the threshold of the whole range's.
+     */
+    private static void addSoftClusters(int[] indices, int vertexCount, int start, int end, float threshold, List<int[]> clusters) {
+        int[] range = Arrays.copyOfRange(indices, start * 3, end * 3);
+        float rangeAcmr = analyzeVertexCache(range, vertexCount, CLUSTER_CACHE_SIZE).acmr();
+        int[] insertedAt = new int[vertexCount];
+        Arrays.fill(insertedAt, Integer.MIN_VALUE / 2);
+        // Misses keep counting across clusters, clearing the cache just means moving past every inserted vertex
+        int misses = 0;
+        int clusterStart = start;
+        int clusterStartMisses = 0;
+        for (int triangle = start; triangle < end; triangle++) {
+            for (int corner = 0; corner < 3; corner++) {
+                int index = indices[triangle * 3 + corner];
+                if (misses - insertedAt[index] > CLUSTER_CACHE_SIZE || insertedAt[index] < clusterStartMisses) {
+                    insertedAt[index] = misses;
+                    misses = misses + 1;
+                }
+            }
+            int clusterTriangles = triangle - clusterStart + 1;
+            if (triangle + 1 < end && (misses - clusterStartMisses) <= rangeAcmr * threshold * clusterTriangles) {
+                clusters.add(new int[]{clusterStart, triangle + 1});
+                clusterStart = triangle + 1;
+                clusterStartMisses = misses;
+            }
+        }
+        clusters.add(new int[]{clusterStart, end});
+    }
+}
@@ -0,0 +1,343 @@
+package com.alexdl.sdng.geometry;
+
+import javax.annotation.Nonnull;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Simplifies triangle meshes by collapsing edges in the order of their quadric error, keeping the original vertices so
+ * that every simplified index buffer can be drawn with the vertex buffer of the full mesh.
+ * <p>
+ * An edge collapse moves one vertex onto a neighbouring one. The error of a collapse is measured with the quadric of the
+ * moving vertex, which sums the squared distances to the planes of all triangles it was part of, so it never
+ * underestimates how far the surface moved. Vertices on open borders and on attribute seams, where vertices with the
+ * same position differ in their other attributes, are never moved, which keeps the outline and the texture mapping
+ * intact at the cost of simplifying less around them.
+ * <p>
+ * Collapses happen in passes, every pass collapses the cheapest edges whose neighbourhoods don't overlap, and collapses
+ * that would flip a triangle are skipped.
+ */
+public final class MeshSimplifier {
+    private static final int QUADRIC_DOUBLES = 10;
+
+    /**
+     * @param indices three vertex indices for every triangle, referencing the original vertices
+     * @param error   the largest error of any collapse that was made, in the units of the vertex positions
+     */
+    public record Simplification(int[] indices, float error) {
+    }
+
+    private MeshSimplifier() {
+    }
+
+    /**
+     * @param vertices         vertex data with the position in the first three floats of every vertex
+     * @param stride           number of floats per vertex
+     * @param indices          three vertex indices for every triangle
+     * @param targetIndexCount stop once there are no more indices than this, 0 to only be limited by the error
+     * @param targetError      largest error a collapse may have, in the units of the vertex positions
+     */
+    public static @Nonnull Simplification simplify(@Nonnull float[] vertices,
+                                                   int stride,
+                                                   @Nonnull int[] indices,
+                                                   int targetIndexCount,
+                                                   float targetError) {
+        int vertexCount = vertices.length / stride;
+        int[] canonical = canonicalVertices(vertices, stride, vertexCount);
+        boolean[] seam = new boolean[vertexCount];
+        for (int vertex = 0; vertex < vertexCount; vertex++) {
+            if (canonical[vertex] != vertex) {
+                seam[vertex] = true;
+                seam[canonical[vertex]] = true;
+            }
+        }
+        boolean[] locked = seam.clone();
+        lockBorders(indices, canonical, locked);
+        double[] quadrics = triangleQuadrics(vertices, stride, indices, canonical, vertexCount);
+
+        int[] current = indices.clone();
+        int indexCount = current.length;
+        double maxCost = 0;
+        double costLimit = (double) targetError * targetError;
+        int[] collapseTargets = new int[vertexCount];
+        boolean[] touched = new boolean[vertexCount];
+        while (indexCount > targetIndexCount) {
+            int[] adjacencyOffsets = new int[vertexCount + 1];
+            int[] adjacency = triangleAdjacency(current, indexCount, canonical, adjacencyOffsets);
+            long[] candidates = collapseCandidates(vertices, stride, current, indexCount, canonical, seam, locked, quadrics);
+            Arrays.sort(candidates);
+
+            Arrays.fill(collapseTargets, -1);
+            Arrays.fill(touched, false);
+            int remainingIndices = indexCount;
+            int collapses = 0;
+            for (long candidate : candidates) {
+                double cost = Float.intBitsToFloat((int) (candidate >>> 32));
+                if (cost > costLimit || remainingIndices <= targetIndexCount) {
+                    break;
+                }
+                int edge = (int) (candidate & 0x7FFFFFFFL);
+                int from = canonical[current[edge]];
+                int to = canonical[current[nextInTriangle(edge)]];
+                if (((candidate >>> 31) & 1) != 0) {
+                    int swap = from;
+                    from = to;
+                    to = swap;
+                }
+                if (touched[from] || touched[to] || flipsTriangle(vertices, stride, current, canonical, adjacency, adjacencyOffsets, from, to)) {
+                    continue;
+                }
+
+                collapseTargets[from] = to;
+                maxCost = Math.max(maxCost, cost);
+                collapses = collapses + 1;
+                // Nothing around either vertex may change any more in this pass, the flip test relied on it
+                touched[from] = true;
+                touched[to] = true;
+                for (int i = adjacencyOffsets[from]; i < adjacencyOffsets[from + 1]; i++) {
+                    int triangle = adjacency[i];
+                    boolean removed = false;
+                    for (int corner = 0; corner < 3; corner++) {
+                        int vertex = canonical[current[triangle * 3 + corner]];
+                        touched[vertex] = true;
+                        removed = removed || vertex == to;
+                    }
+                    if (removed) {
+                        remainingIndices = remainingIndices - 3;
+                    }
+                }
+            }
+            if (collapses == 0) {
+                break;
+            }
+
+            for (int vertex = 0; vertex < vertexCount; vertex++) {
+                int target = collapseTargets[vertex];
+                if (target >= 0) {
+                    for (int i = 0; i < QUADRIC_DOUBLES; i++) {
+                        quadrics[target * QUADRIC_DOUBLES + i] += quadrics[vertex * QUADRIC_DOUBLES + i];
+                    }
+                }
+            }
+            indexCount = applyCollapses(current, indexCount, canonical, collapseTargets);
+        }
+        return new Simplification(Arrays.copyOf(current, indexCount), (float) Math.sqrt(maxCost));
+    }
+
+    /**
+     * @return for every vertex, the first vertex with exactly the same position
+     */
+    private static int[] canonicalVertices(float[] vertices, int stride, int vertexCount) {
+        int[] canonical = new int[vertexCount];
+        Map<Position, Integer> firstVertices = new HashMap<>();
+        for (int vertex = 0; vertex < vertexCount; vertex++) {
+            int offset = vertex * stride;
+            Position position = new Position(vertices[offset], vertices[offset + 1], vertices[offset + 2]);
+            canonical[vertex] = firstVertices.computeIfAbsent(position, key -> firstVertices.size());
+        }
+        // The map hands out positions in order of first appearance, turn them back into vertex indices
+        int[] firstVertex = new int[firstVertices.size()];
+        Arrays.fill(firstVertex, -1);
+        for (int vertex = 0; vertex < vertexCount; vertex++) {
+            if (firstVertex[canonical[vertex]] < 0) {
+                firstVertex[canonical[vertex]] = vertex;
+            }
+            canonical[vertex] = firstVertex[canonical[vertex]];
+        }
+        return canonical;
+    }
+
+    /**
+     * Locks the vertices of every edge that does not have exactly two triangles on it.
+     */
+    private static void lockBorders(int[] indices, int[] canonical, boolean[] locked) {
+        Map<Long, Integer> edgeUses = new HashMap<>();
+        for (int i = 0; i < indices.length; i++) {
+            edgeUses.merge(edgeKey(canonical[indices[i]], canonical[indices[nextInTriangle(i)]]), 1, Integer::sum);
+        }
+        for (Map.Entry<Long, Integer> edge : edgeUses.entrySet()) {
+            if (edge.getValue() != 2) {
+                locked[(int) (edge.getKey() >>> 32)] = true;
+                locked[(int) (long) edge.getKey()] = true;
+            }
+        }
+    }
+
+    private static double[] triangleQuadrics(float[] vertices, int stride, int[] indices, int[] canonical, int vertexCount) {
+        double[] quadrics = new double[vertexCount * QUADRIC_DOUBLES];
+        for (int triangle = 0; triangle < indices.length / 3; triangle++) {
+            int a = canonical[indices[triangle * 3]] * stride;
+            int b = canonical[indices[triangle * 3 + 1]] * stride;
+            int c = canonical[indices[triangle * 3 + 2]] * stride;
+            double abX = vertices[b] - vertices[a];
+            double abY = vertices[b + 1] - vertices[a + 1];
+            double abZ = vertices[b + 2] - vertices[a + 2];
+            double acX = vertices[c] - vertices[a];
+            double acY = vertices[c + 1] - vertices[a + 1];
+            double acZ = vertices[c + 2] - vertices[a + 2];
+            double normalX = abY * acZ - abZ * acY;
+            double normalY = abZ * acX - abX * acZ;
+            double normalZ = abX * acY - abY * acX;
+            double length = Math.sqrt(normalX * normalX + normalY * normalY + normalZ * normalZ);
+            if (length == 0) {
+                continue;
+            }
+            normalX = normalX / length;
+            normalY = normalY / length;
+            normalZ = normalZ / length;
+            double distance = -(normalX * vertices[a] + normalY * vertices[a + 1] + normalZ * vertices[a + 2]);
+            for (int corner = 0; corner < 3; corner++) {
+                int quadric = canonical[indices[triangle * 3 + corner]] * QUADRIC_DOUBLES;
+                quadrics[quadric] += normalX * normalX;
+                quadrics[quadric + 1] += normalX * normalY;
+                quadrics[quadric + 2] += normalX * normalZ;
+                quadrics[quadric + 3] += normalX * distance;
+                quadrics[quadric + 4] += normalY * normalY;
+                quadrics[quadric + 5] += normalY * normalZ;
+                quadrics[quadric + 6] += normalY * distance;
+                quadrics[quadric + 7] += normalZ * normalZ;
+                quadrics[quadric + 8] += normalZ * distance;
+                quadrics[quadric + 9] += distance * distance;
+            }
+        }
+        return quadrics;
+    }
+
+    /**
+     * @return the triangles around every canonical vertex, the ones of vertex {@code v} are stored from
+     * {@code offsets[v]} to {@code offsets[v + 1]}
+     */
+    private static int[] triangleAdjacency(int[] indices, int indexCount, int[] canonical, int[] offsets) {
+        for (int i = 0; i < indexCount; i++) {
+            offsets[canonical[indices[i]] + 1]++;
+        }
+        for (int vertex = 0; vertex < offsets.length - 1; vertex++) {
+            offsets[vertex + 1] += offsets[vertex];
+        }
+        int[] adjacency = new int[indexCount];
+        int[] filled = Arrays.copyOf(offsets, offsets.length - 1);
+        for (int i = 0; i < indexCount; i++) {
+            int vertex = canonical[indices[i]];
+            adjacency[filled[vertex]] = i / 3;
+            filled[vertex] = filled[vertex] + 1;
+        }
+        return adjacency;
+    }
+
+    /**
+     * @return every possible collapse, each packed as the cost in the upper 32 bits, so that sorting orders them by it,
+     * whether the edge is collapsed backwards in bit 31 and the index of the edge's first corner in the rest
+     */
+    private static long[] collapseCandidates(float[] vertices, int stride, int[] indices, int indexCount, int[] canonical,
+                                             boolean[] seam, boolean[] locked, double[] quadrics) {
+        long[] candidates = new long[indexCount * 2];
+        int candidateCount = 0;
+        for (int i = 0; i < indexCount; i++) {
+            int first = canonical[indices[i]];
+            int second = canonical[indices[nextInTriangle(i)]];
+            // A seam vertex has several versions, the moving vertex's triangles could only get one of them
+            if (!locked[first] && !seam[second]) {
+                candidates[candidateCount++] = packCandidate(collapseCost(quadrics, first, vertices, second * stride), i, false);
+            }
+            if (!locked[second] && !seam[first]) {
+                candidates[candidateCount++] = packCandidate(collapseCost(quadrics, second, vertices, first * stride), i, true);
+            }
+        }
+        return Arrays.copyOf(candidates, candidateCount);
+    }
+
+    private static long packCandidate(double cost, int edge, boolean backwards) {
+        long costBits = Float.floatToIntBits((float) Math.max(cost, 0));
+        return (costBits << 32) | (backwards ? 1L << 31 : 0) | edge;
+    }
+
+    /**
+     * @return the quadric of {@code vertex} evaluated at the position starting at {@code position}
+     */
+    private static double collapseCost(double[] quadrics, int vertex, float[] vertices, int position) {
+        int q = vertex * QUADRIC_DOUBLES;
+        double x = vertices[position];
+        double y = vertices[position + 1];
+        double z = vertices[position + 2];
+        return quadrics[q] * x * x + 2 * quadrics[q + 1] * x * y + 2 * quadrics[q + 2] * x * z + 2 * quadrics[q + 3] * x
+               + quadrics[q + 4] * y * y + 2 * quadrics[q + 5] * y * z + 2 * quadrics[q + 6] * y
+               + quadrics[q + 7] * z * z + 2 * quadrics[q + 8] * z
+               + quadrics[q + 9];
+    }
+
+    /**
+     * @return whether moving {@code from} onto {@code to} turns any remaining triangle around {@code from} over
+     */
+    private static boolean flipsTriangle(float[] vertices, int stride, int[] indices, int[] canonical,
+                                         int[] adjacency, int[] adjacencyOffsets, int from, int to) {
+        for (int i = adjacencyOffsets[from]; i < adjacencyOffsets[from + 1]; i++) {
+            int triangle = adjacency[i];
+            int a = canonical[indices[triangle * 3]];
+            int b = canonical[indices[triangle * 3 + 1]];
+            int c = canonical[indices[triangle * 3 + 2]];
+            if (a == to || b == to || c == to) {
+                // Collapses into a line and is removed
+                continue;
+            }
+            double[] before = normal(vertices, stride, a, b, c);
+            double[] after = normal(vertices, stride, a == from ? to : a, b == from ? to : b, c == from ? to : c);
+            double dot = before[0] * after[0] + before[1] * after[1] + before[2] * after[2];
+            double afterLengthSquared = after[0] * after[0] + after[1] * after[1] + after[2] * after[2];
+            if (dot <= 0 || afterLengthSquared == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static double[] normal(float[] vertices, int stride, int a, int b, int c) {
+        a = a * stride;
+        b = b * stride;
+        c = c * stride;
+        double abX = vertices[b] - vertices[a];
+        double abY = vertices[b + 1] - vertices[a + 1];
+        double abZ = vertices[b + 2] - vertices[a + 2];
+        double acX = vertices[c] - vertices[a];
+        double acY = vertices[c + 1] - vertices[a + 1];
+        double acZ = vertices[c + 2] - vertices[a + 2];
+        return new double[]{abY * acZ - abZ * acY, abZ * acX - abX * acZ, abX * acY - abY * acX};
+    }
+
+    /**
+     * Points the indices of collapsed vertices at their targets and removes the triangles that collapsed with them.
+     *
+     * @return the new number of indices
+     */
+    private static int applyCollapses(int[] indices, int indexCount, int[] canonical, int[] collapseTargets) {
+        int kept = 0;
+        for (int triangle = 0; triangle < indexCount / 3; triangle++) {
+            int a = indices[triangle * 3];
+            int b = indices[triangle * 3 + 1];
+            int c = indices[triangle * 3 + 2];
+            // Only vertices without seams move, so the canonical vertex is the vertex itself
+            a = collapseTargets[canonical[a]] >= 0 ? collapseTargets[canonical[a]] : a;
+            b = collapseTargets[canonical[b]] >= 0 ? collapseTargets[canonical[b]] : b;
+            c = collapseTargets[canonical[c]] >= 0 ? collapseTargets[canonical[c]] : c;
+            if (canonical[a] == canonical[b] || canonical[b] == canonical[c] || canonical[a] == canonical[c]) {
+                continue;
+            }
+            indices[kept] = a;
+            indices[kept + 1] = b;
+            indices[kept + 2] = c;
+            kept = kept + 3;
+        }
+        return kept;
+    }
+
+    private static int nextInTriangle(int corner) {
+        return corner % 3 == 2 ? corner - 2 : corner + 1;
+    }
+
+    private static long edgeKey(int a, int b) {
+        return ((long) Math.min(a, b) << 32) | Math.max(a, b);
+    }
+
+    private record Position(float x, float y, float z) {
+    }
+}
@@ -0,0 +1,39 @@
+package com.alexdl.sdng.occlusion;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Geometry that hides what is behind it, rasterized into an {@link OcclusionBuffer}. It should be a simplified version
+ * of what is drawn, and never extend beyond it, or models behind the missing parts are culled while they are visible.
+ *
+ * @param positions three floats for every vertex
+ * @param indices   three vertex indices for every triangle
+ */
+public record Occluder(float[] positions, int[] indices) {
+    public Occluder {
+        if (positions.length % 3 != 0 || indices.length % 3 != 0) {
+            throw new IllegalArgumentException("Occluder positions and indices have to come in groups of three");
+        }
+    }
+
+    /**
+     * @param vertices vertex data with the position in the first three floats of every vertex
+     * @param stride   number of floats per vertex
+     */
+    public static @Nonnull Occluder of(@Nonnull float[] vertices, int stride, @Nonnull int[] indices) {
+        int vertexCount = vertices.length / stride;
+        float[] positions = new float[vertexCount * 3];
+        for (int i = 0; i < vertexCount; i++) {
+            System.arraycopy(vertices, i * stride, positions, i * 3, 3);
+        }
+        return new Occluder(positions, indices.clone());
+    }
+
+    public int vertexCount() {
+        return positions.length / 3;
+    }
+
+    public int triangleCount() {
+        return indices.length / 3;
+    }
+}
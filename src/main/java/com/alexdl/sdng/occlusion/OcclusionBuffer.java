@@ -0,0 +1,453 @@
+package com.alexdl.sdng.occlusion;
+
+import com.alexdl.sdng.backend.Disposable;
+import org.joml.Matrix4fc;
+import org.joml.Vector3fc;
+import org.joml.Vector4f;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A low resolution depth buffer that occluders are rasterized into on the CPU, which bounding boxes are then tested
+ * against to find out whether they are hidden behind them.
+ * <p>
+ * The buffer is split into tiles. Occluders are transformed, clipped against the near plane and binned into the tiles
+ * their triangles overlap on the calling thread, after which the tiles are rasterized by worker threads, each tile by
+ * exactly one of them. Every pixel keeps the nearest depth of all triangles covering its center, which does not depend
+ * on the order triangles are rasterized in, so the result is the same for any number of workers. Every tile also keeps
+ * its farthest depth, so that boxes behind a fully covered tile are rejected without looking at its pixels.
+ * <p>
+ * Depth is the normalized device depth {@code z / w}, which only has to grow with the distance from the camera, so
+ * projections that map depth to either {@code [-1, 1]} or {@code [0, 1]} work, but reversed depth does not.
+ * <p>
+ * Use it by calling {@link #clear}, then {@link #addOccluder} for every occluder, {@link #rasterize} once, and then
+ * {@link #isOccluded} for everything that might be hidden, which is safe to do from multiple threads.
+ */
+public final class OcclusionBuffer implements Disposable {
+    public static final int TILE_SIZE = 32;
+    // Anything closer to the camera than this is clipped away, the projection of what is left stays finite
+    private static final float NEAR_W = 1e-4f;
+    // Occluders have to be nearer than a box by this much to hide it, so that an occluder lying on a face of the box
+    // doesn't hide it through rounding, about eight float steps at the far end of the depth range
+    private static final float DEPTH_EPSILON = 1e-6f;
+    private static final int TRIANGLE_DOUBLES = 9;
+
+    private final int width;
+    private final int height;
+    private final int tilesX;
+    private final int tilesY;
+    private final float[] depth;
+    private final float[] tileMaxDepth;
+    private final int workerCount;
+    private final @Nullable ExecutorService executor;
+
+    private double[] triangles;
+    private int triangleCount;
+    private final int[][] bins;
+    private final int[] binSizes;
+    private float[] clipVertices;
+    private final Vector4f clipVertex;
+    private final float[] clippedPolygon;
+    private boolean rasterized;
+
+    /**
+     * @param workerCount threads to rasterize on, 1 rasterizes on the calling thread without starting any
+     */
+    public OcclusionBuffer(int width, int height, int workerCount) {
+        if (width <= 0 || height <= 0 || workerCount <= 0) {
+            throw new IllegalArgumentException("Occlusion buffer size and worker count have to be positive");
+        }
+        this.width = width;
+        this.height = height;
+        this.tilesX = Math.ceilDiv(width, TILE_SIZE);
+        this.tilesY = Math.ceilDiv(height, TILE_SIZE);
+        this.depth = new float[width * height];
+        this.tileMaxDepth = new float[tilesX * tilesY];
+        this.workerCount = workerCount;
+
+        // The calling thread rasterizes as well, so one thread fewer is needed
+        if (workerCount > 1) {
+            AtomicInteger threadCounter = new AtomicInteger(0);
+            this.executor = Executors.newFixedThreadPool(workerCount - 1, runnable -> {
+                Thread thread = new Thread(runnable, "occlusion-rasterizer-" + threadCounter.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            });
+        } else {
+            this.executor = null;
+        }
+
+        this.triangles = new double[1024 * TRIANGLE_DOUBLES];
+        this.bins = new int[tilesX * tilesY][16];
+        this.binSizes = new int[tilesX * tilesY];
+        this.clipVertices = new float[256 * 4];
+        this.clipVertex = new Vector4f();
+        // A triangle clipped by one plane has at most four vertices
+        this.clippedPolygon = new float[4 * 4];
+        clear();
+    }
+
+    public int width() {
+        return width;
+    }
+
+    public int height() {
+        return height;
+    }
+
+    /**
+     * @return how many triangles were binned since the last {@link #clear}, after clipping
+     */
+    public int triangleCount() {
+        return triangleCount;
+    }
+
+    /**
+     * Removes all occluders, after which nothing is occluded until the next {@link #rasterize}.
+     */
+    public void clear() {
+        triangleCount = 0;
+        Arrays.fill(binSizes, 0);
+        rasterized = false;
+    }
+
+    /**
+     * Transforms the occluder into screen space and bins its triangles, without rasterizing them yet.
+     *
+     * @param modelViewProjection transforms the occluder's positions into clip space
+     */
+    public void addOccluder(@Nonnull Occluder occluder, @Nonnull Matrix4fc modelViewProjection) {
+        int vertexCount = occluder.vertexCount();
+        if (clipVertices.length < vertexCount * 4) {
+            clipVertices = new float[vertexCount * 4];
+        }
+        float[] positions = occluder.positions();
+        for (int i = 0; i < vertexCount; i++) {
+            modelViewProjection.transform(positions[i * 3], positions[i * 3 + 1], positions[i * 3 + 2], 1, clipVertex);
+            clipVertices[i * 4] = clipVertex.x;
+            clipVertices[i * 4 + 1] = clipVertex.y;
+            clipVertices[i * 4 + 2] = clipVertex.z;
+            clipVertices[i * 4 + 3] = clipVertex.w;
+        }
+
+        int[] indices = occluder.indices();
+        for (int i = 0; i < indices.length; i = i + 3) {
+            int a = indices[i] * 4;
+            int b = indices[i + 1] * 4;
+            int c = indices[i + 2] * 4;
+            if (outsideSameSide(a, b, c)) {
+                continue;
+            }
+            boolean aInFront = clipVertices[a + 3] >= NEAR_W;
+            boolean bInFront = clipVertices[b + 3] >= NEAR_W;
+            boolean cInFront = clipVertices[c + 3] >= NEAR_W;
+            if (aInFront && bInFront && cInFront) {
+                addTriangle(clipVertices, a, clipVertices, b, clipVertices, c);
+            } else if (aInFront || bInFront || cInFront) {
+                int polygonSize = clipNear(a, b, c);
+                for (int vertex = 2; vertex < polygonSize; vertex++) {
+                    addTriangle(clippedPolygon, 0, clippedPolygon, (vertex - 1) * 4, clippedPolygon, vertex * 4);
+                }
+            }
+        }
+    }
+
+    /**
+     * Rasterizes the occluders added since the last {@link #clear}, on all workers.
+     */
+    public void rasterize() {
+        AtomicInteger nextTile = new AtomicInteger(0);
+        Runnable worker = () -> {
+            int tile;
+            while ((tile = nextTile.getAndIncrement()) < tileMaxDepth.length) {
+                rasterizeTile(tile);
+            }
+        };
+
+        List<Future<?>> futures = new ArrayList<>(workerCount - 1);
+        if (executor != null) {
+            for (int i = 1; i < workerCount; i++) {
+                futures.add(executor.submit(worker));
+            }
+        }
+        worker.run();
+        for (Future<?> future : futures) {
+            awaitRasterization(future);
+        }
+        rasterized = true;
+    }
+
+    /**
+     * @param min                 minimum corner of the box
+     * @param max                 maximum corner of the box
+     * @param modelViewProjection transforms the box corners into clip space
+     * @return whether the box is entirely behind the rasterized occluders, false when it is partially in front of the
+     * near plane or outside the buffer, which is left to frustum culling
+     */
+    public boolean isOccluded(@Nonnull Vector3fc min, @Nonnull Vector3fc max, @Nonnull Matrix4fc modelViewProjection) {
+        if (!rasterized) {
+            return false;
+        }
+        float minX = Float.POSITIVE_INFINITY;
+        float minY = Float.POSITIVE_INFINITY;
+        float maxX = Float.NEGATIVE_INFINITY;
+        float maxY = Float.NEGATIVE_INFINITY;
+        float nearestDepth = Float.POSITIVE_INFINITY;
+        Vector4f corner = new Vector4f();
+        for (int i = 0; i < 8; i++) {
+            modelViewProjection.transform(
+                    (i & 1) == 0 ? min.x() : max.x(),
+                    (i & 2) == 0 ? min.y() : max.y(),
+                    (i & 4) == 0 ? min.z() : max.z(),
+                    1, corner);
+            if (corner.w < NEAR_W) {
+                return false;
+            }
+            float x = toScreen(corner.x / corner.w, width);
+            float y = toScreen(corner.y / corner.w, height);
+            minX = Math.min(minX, x);
+            minY = Math.min(minY, y);
+            maxX = Math.max(maxX, x);
+            maxY = Math.max(maxY, y);
+            nearestDepth = Math.min(nearestDepth, corner.z / corner.w);
+        }
+        nearestDepth = nearestDepth - DEPTH_EPSILON;
+
+        // Every pixel the box touches, not just the ones whose center it covers
+        int fromX = Math.max((int) Math.floor(minX), 0);
+        int fromY = Math.max((int) Math.floor(minY), 0);
+        int toX = Math.min((int) Math.ceil(maxX), width) - 1;
+        int toY = Math.min((int) Math.ceil(maxY), height) - 1;
+        if (fromX > toX || fromY > toY) {
+            return false;
+        }
+
+        for (int tileY = fromY / TILE_SIZE; tileY <= toY / TILE_SIZE; tileY++) {
+            for (int tileX = fromX / TILE_SIZE; tileX <= toX / TILE_SIZE; tileX++) {
+                if (tileMaxDepth[tileY * tilesX + tileX] < nearestDepth) {
+                    continue;
+                }
+                int tileFromX = Math.max(fromX, tileX * TILE_SIZE);
+                int tileToX = Math.min(toX, tileX * TILE_SIZE + TILE_SIZE - 1);
+                int tileFromY = Math.max(fromY, tileY * TILE_SIZE);
+                int tileToY = Math.min(toY, tileY * TILE_SIZE + TILE_SIZE - 1);
+                for (int y = tileFromY; y <= tileToY; y++) {
+                    int row = y * width;
+                    for (int x = tileFromX; x <= tileToX; x++) {
+                        if (depth[row + x] >= nearestDepth) {
+                            return false;
+                        }
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the nearest rasterized depth at the pixel, positive infinity where no occluder was rasterized
+     */
+    public float depth(int x, int y) {
+        return depth[y * width + x];
+    }
+
+    @Override
+    public void dispose() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    private void rasterizeTile(int tile) {
+        int tileX = tile % tilesX;
+        int tileY = tile / tilesX;
+        int tileFromX = tileX * TILE_SIZE;
+        int tileFromY = tileY * TILE_SIZE;
+        int tileToX = Math.min(tileFromX + TILE_SIZE, width) - 1;
+        int tileToY = Math.min(tileFromY + TILE_SIZE, height) - 1;
+        for (int y = tileFromY; y <= tileToY; y++) {
+            Arrays.fill(depth, y * width + tileFromX, y * width + tileToX + 1, Float.POSITIVE_INFINITY);
+        }
+
+        int[] bin = bins[tile];
+        for (int i = 0; i < binSizes[tile]; i++) {
+            int offset = bin[i] * TRIANGLE_DOUBLES;
+            double x0 = triangles[offset];
+            double y0 = triangles[offset + 1];
+            double z0 = triangles[offset + 2];
+            double x1 = triangles[offset + 3];
+            double y1 = triangles[offset + 4];
+            double z1 = triangles[offset + 5];
+            double x2 = triangles[offset + 6];
+            double y2 = triangles[offset + 7];
+            double z2 = triangles[offset + 8];
+            double area = (x1 - x0) * (y2 - y0) - (x2 - x0) * (y1 - y0);
+            if (area == 0) {
+                continue;
+            }
+            // Both windings are rasterized, occluders are not necessarily closed
+            double sign = area > 0 ? 1 : -1;
+            double depthX = ((z1 - z0) * (y2 - y0) - (z2 - z0) * (y1 - y0)) / area;
+            double depthY = ((x1 - x0) * (z2 - z0) - (x2 - x0) * (z1 - z0)) / area;
+
+            // Pixels whose centers are inside the triangle's bounding box
+            int fromX = Math.max(tileFromX, (int) Math.ceil(Math.min(x0, Math.min(x1, x2)) - 0.5));
+            int toX = Math.min(tileToX, (int) Math.floor(Math.max(x0, Math.max(x1, x2)) - 0.5));
+            int fromY = Math.max(tileFromY, (int) Math.ceil(Math.min(y0, Math.min(y1, y2)) - 0.5));
+            int toY = Math.min(tileToY, (int) Math.floor(Math.max(y0, Math.max(y1, y2)) - 0.5));
+            if (fromX > toX || fromY > toY) {
+                continue;
+            }
+
+            double startX = fromX + 0.5;
+            double startY = fromY + 0.5;
+            double edge0 = sign * ((x1 - x0) * (startY - y0) - (y1 - y0) * (startX - x0));
+            double edge1 = sign * ((x2 - x1) * (startY - y1) - (y2 - y1) * (startX - x1));
+            double edge2 = sign * ((x0 - x2) * (startY - y2) - (y0 - y2) * (startX - x2));
+            double edge0X = -sign * (y1 - y0);
+            double edge1X = -sign * (y2 - y1);
+            double edge2X = -sign * (y0 - y2);
+            double edge0Y = sign * (x1 - x0);
+            double edge1Y = sign * (x2 - x1);
+            double edge2Y = sign * (x0 - x2);
+            double rowDepth = z0 + depthX * (startX - x0) + depthY * (startY - y0);
+
+            for (int y = fromY; y <= toY; y++) {
+                double e0 = edge0;
+                double e1 = edge1;
+                double e2 = edge2;
+                double pixelDepth = rowDepth;
+                int row = y * width;
+                for (int x = fromX; x <= toX; x++) {
+                    if (e0 >= 0 && e1 >= 0 && e2 >= 0 && pixelDepth < depth[row + x]) {
+                        depth[row + x] = (float) pixelDepth;
+                    }
+                    e0 = e0 + edge0X;
+                    e1 = e1 + edge1X;
+                    e2 = e2 + edge2X;
+                    pixelDepth = pixelDepth + depthX;
+                }
+                edge0 = edge0 + edge0Y;
+                edge1 = edge1 + edge1Y;
+                edge2 = edge2 + edge2Y;
+                rowDepth = rowDepth + depthY;
+            }
+        }
+
+        float maxDepth = Float.NEGATIVE_INFINITY;
+        for (int y = tileFromY; y <= tileToY; y++) {
+            for (int x = tileFromX; x <= tileToX; x++) {
+                maxDepth = Math.max(maxDepth, depth[y * width + x]);
+            }
+        }
+        tileMaxDepth[tile] = maxDepth;
+    }
+
+    /**
+     * @return whether all three clip space vertices are outside the same side plane, so the triangle is not visible
+     */
+    private boolean outsideSameSide(int a, int b, int c) {
+        float[] v = clipVertices;
+        return (v[a] > v[a + 3] && v[b] > v[b + 3] && v[c] > v[c + 3])
+               || (v[a] < -v[a + 3] && v[b] < -v[b + 3] && v[c] < -v[c + 3])
+               || (v[a + 1] > v[a + 3] && v[b + 1] > v[b + 3] && v[c + 1] > v[c + 3])
+               || (v[a + 1] < -v[a + 3] && v[b + 1] < -v[b + 3] && v[c + 1] < -v[c + 3]);
+    }
+
+    /**
+     * Clips the triangle against the plane {@code w = NEAR_W} into {@link #clippedPolygon}.
+     *
+     * @return the number of vertices of the clipped polygon
+     */
+    private int clipNear(int a, int b, int c) {
+        int size = 0;
+        int[] vertices = {a, b, c};
+        for (int i = 0; i < 3; i++) {
+            int current = vertices[i];
+            int next = vertices[(i + 1) % 3];
+            float currentW = clipVertices[current + 3];
+            float nextW = clipVertices[next + 3];
+            if (currentW >= NEAR_W) {
+                System.arraycopy(clipVertices, current, clippedPolygon, size * 4, 4);
+                size = size + 1;
+            }
+            if ((currentW >= NEAR_W) != (nextW >= NEAR_W)) {
+                float t = (NEAR_W - currentW) / (nextW - currentW);
+                for (int component = 0; component < 4; component++) {
+                    float from = clipVertices[current + component];
+                    clippedPolygon[size * 4 + component] = from + (clipVertices[next + component] - from) * t;
+                }
+                size = size + 1;
+            }
+        }
+        return size;
+    }
+
+    private void addTriangle(float[] aSource, int a, float[] bSource, int b, float[] cSource, int c) {
+        if (triangles.length < (triangleCount + 1) * TRIANGLE_DOUBLES) {
+            triangles = Arrays.copyOf(triangles, triangles.length * 2);
+        }
+        int offset = triangleCount * TRIANGLE_DOUBLES;
+        project(aSource, a, offset);
+        project(bSource, b, offset + 3);
+        project(cSource, c, offset + 6);
+
+        double minX = Math.min(triangles[offset], Math.min(triangles[offset + 3], triangles[offset + 6]));
+        double maxX = Math.max(triangles[offset], Math.max(triangles[offset + 3], triangles[offset + 6]));
+        double minY = Math.min(triangles[offset + 1], Math.min(triangles[offset + 4], triangles[offset + 7]));
+        double maxY = Math.max(triangles[offset + 1], Math.max(triangles[offset + 4], triangles[offset + 7]));
+        if (maxX < 0 || maxY < 0 || minX >= width || minY >= height) {
+            return;
+        }
+        int fromTileX = (int) Math.max(minX, 0) / TILE_SIZE;
+        int fromTileY = (int) Math.max(minY, 0) / TILE_SIZE;
+        int toTileX = (int) Math.min(maxX, width - 1) / TILE_SIZE;
+        int toTileY = (int) Math.min(maxY, height - 1) / TILE_SIZE;
+        for (int tileY = fromTileY; tileY <= toTileY; tileY++) {
+            for (int tileX = fromTileX; tileX <= toTileX; tileX++) {
+                int tile = tileY * tilesX + tileX;
+                if (bins[tile].length == binSizes[tile]) {
+                    bins[tile] = Arrays.copyOf(bins[tile], binSizes[tile] * 2);
+                }
+                bins[tile][binSizes[tile]] = triangleCount;
+                binSizes[tile] = binSizes[tile] + 1;
+            }
+        }
+        triangleCount = triangleCount + 1;
+    }
+
+    private void project(float[] source, int vertex, int offset) {
+        double w = source[vertex + 3];
+        triangles[offset] = toScreen(source[vertex] / w, width);
+        triangles[offset + 1] = toScreen(source[vertex + 1] / w, height);
+        triangles[offset + 2] = source[vertex + 2] / w;
+    }
+
+    private static double toScreen(double normalized, int size) {
+        return (normalized * 0.5 + 0.5) * size;
+    }
+
+    private static float toScreen(float normalized, int size) {
+        return (normalized * 0.5f + 0.5f) * size;
+    }
+
+    private static void awaitRasterization(Future<?> future) {
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for occluder rasterization", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Failed to rasterize occluders", e.getCause());
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package com.alexdl.sdng.profiling;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * A {@code VkDeviceMemory} block being allocated or freed, which is expensive and limited in count on some drivers.
+ */
+@Name("com.alexdl.sdng.DeviceMemory")
+@Label("Device Memory Block")
+@Category({"Shadow Engine", "Vulkan"})
+@Description("A device memory block allocated or freed by the allocator")
+public class DeviceMemoryEvent extends jdk.jfr.Event {
+    @Label("Allocated")
+    @Description("Whether the block was allocated, or otherwise freed")
+    public boolean allocated;
+
+    @Label("Size")
+    @DataAmount
+    public long bytes;
+
+    @Label("Memory Type")
+    public int memoryTypeIndex;
+
+    @Label("Dedicated")
+    @Description("Whether the block holds a single resource that was too large to share one")
+    public boolean dedicated;
+}
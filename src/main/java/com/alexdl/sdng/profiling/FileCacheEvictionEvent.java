@@ -0,0 +1,18 @@
+package com.alexdl.sdng.profiling;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("com.alexdl.sdng.FileCacheEviction")
+@Label("File Cache Eviction")
+@Category({"Shadow Engine", "Files"})
+public class FileCacheEvictionEvent extends jdk.jfr.Event {
+    @Label("URI")
+    public String uri;
+
+    @Label("Size")
+    @DataAmount
+    public long bytes;
+}
@@ -0,0 +1,21 @@
+package com.alexdl.sdng.profiling;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("com.alexdl.sdng.FileLoad")
+@Label("File Load")
+@Category({"Shadow Engine", "Files"})
+public class FileLoadEvent extends jdk.jfr.Event {
+    @Label("URI")
+    public String uri;
+
+    @Label("Size")
+    @DataAmount
+    public long bytes;
+
+    @Label("Cache Hit")
+    public boolean cacheHit;
+}
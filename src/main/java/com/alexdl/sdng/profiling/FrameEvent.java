@@ -0,0 +1,89 @@
+package com.alexdl.sdng.profiling;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * A frame drawn by the renderer, with the time spent in each {@link FramePhase} and what was drawn.
+ */
+@Name("com.alexdl.sdng.Frame")
+@Label("Frame")
+@Category({"Shadow Engine", "Rendering"})
+@Description("A frame drawn by the renderer")
+public class FrameEvent extends jdk.jfr.Event {
+    @Label("Frame Number")
+    public long frameNumber;
+
+    @Label("Event Polling")
+    @Timespan
+    public long eventPolling;
+
+    @Label("Update")
+    @Timespan
+    public long update;
+
+    @Label("Fence Wait")
+    @Description("Time spent waiting for the GPU, high when GPU-bound")
+    @Timespan
+    public long fenceWait;
+
+    @Label("Image Acquire")
+    @Timespan
+    public long imageAcquire;
+
+    @Label("Occlusion")
+    @Description("Time spent rasterizing occluders")
+    @Timespan
+    public long occlusion;
+
+    @Label("Culling")
+    @Timespan
+    public long culling;
+
+    @Label("Uniform Upload")
+    @Timespan
+    public long uniformUpload;
+
+    @Label("Command Recording")
+    @Timespan
+    public long commandRecording;
+
+    @Label("Submit")
+    @Timespan
+    public long submit;
+
+    @Label("Present")
+    @Timespan
+    public long present;
+
+    @Label("Draw Calls")
+    public int drawCalls;
+
+    @Label("Instances")
+    public int instances;
+
+    @Label("Binds Issued")
+    public int bindsIssued;
+
+    @Label("Binds Skipped")
+    public int bindsSkipped;
+
+    @Label("Meshes Drawn")
+    @Description("Meshes inside the view frustum that are not occluded")
+    public int meshesDrawn;
+
+    @Label("Meshes Culled")
+    @Description("Meshes outside the view frustum")
+    public int meshesCulled;
+
+    @Label("Meshes Occluded")
+    @Description("Meshes inside the view frustum that are hidden behind occluders")
+    public int meshesOccluded;
+
+    @Label("Meshes Simplified")
+    @Description("Drawn meshes that use a simplified level of detail")
+    public int meshesSimplified;
+}
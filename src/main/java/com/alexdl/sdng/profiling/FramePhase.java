@@ -0,0 +1,27 @@
+package com.alexdl.sdng.profiling;
+
+/**
+ * The parts a frame is split into by {@link FrameProfiler}, in the order they happen.
+ */
+public enum FramePhase {
+    /** Polling window events */
+    EVENT_POLLING,
+    /** {@code Game.update} */
+    UPDATE,
+    /** Waiting for the GPU to finish the frame that last used the same frame in flight, high when GPU-bound */
+    FENCE_WAIT,
+    /** Acquiring the next image of the render target, high when the presentation engine holds on to its images */
+    IMAGE_ACQUIRE,
+    /** Rasterizing the queued occluders on the CPU */
+    OCCLUSION,
+    /** Culling the queued models against the view frustum and the occluders, and batching what is left */
+    CULLING,
+    /** Writing the scene and instance data of the frame */
+    UNIFORM_UPLOAD,
+    /** Recording the frame's command buffers, or finding that the recorded ones can be reused */
+    COMMAND_RECORDING,
+    /** Submitting the frame to the graphics queue */
+    SUBMIT,
+    /** Queueing the rendered image for presentation */
+    PRESENT
+}
@@ -0,0 +1,99 @@
+package com.alexdl.sdng.profiling;
+
+import com.alexdl.sdng.logging.Logger;
+
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Measures how long every {@link FramePhase} of a frame takes on the CPU, with a {@link Histogram} for each phase.
+ * <p>
+ * Phases are measured as laps, each one starting where the previous one ended:
+ * <pre>{@code
+ * long time = System.nanoTime();
+ * waitForFence();
+ * time = profiler.lap(FramePhase.FENCE_WAIT, time);
+ * acquireImage();
+ * time = profiler.lap(FramePhase.IMAGE_ACQUIRE, time);
+ * }</pre>
+ */
+public class FrameProfiler {
+    private static final double NANOS_PER_MILLI = 1_000_000.0;
+
+    private final Logger logger = new Logger(FrameProfiler.class);
+    private final Map<FramePhase, Histogram> histograms;
+    private final long[] lastLaps;
+
+    public FrameProfiler() {
+        this.histograms = new EnumMap<>(FramePhase.class);
+        for (FramePhase phase : FramePhase.values()) {
+            histograms.put(phase, new Histogram());
+        }
+        this.lastLaps = new long[FramePhase.values().length];
+    }
+
+    /**
+     * Records the time from {@code startTime} until now as a measurement of the phase.
+     *
+     * @param startTime {@link System#nanoTime()} of when the phase started
+     * @return the current {@link System#nanoTime()}, which is where the next phase starts
+     */
+    public long lap(@Nonnull FramePhase phase, long startTime) {
+        long now = System.nanoTime();
+        histograms.get(phase).record(now - startTime);
+        lastLaps[phase.ordinal()] = now - startTime;
+        return now;
+    }
+
+    /**
+     * @return nanoseconds the phase took the last time it was measured, only meant to be read by the thread measuring it
+     */
+    public long lastLap(@Nonnull FramePhase phase) {
+        return lastLaps[phase.ordinal()];
+    }
+
+    public @Nonnull PhaseTiming timing(@Nonnull FramePhase phase) {
+        Histogram histogram = histograms.get(phase);
+        return new PhaseTiming(
+                phase,
+                histogram.count(),
+                histogram.mean() / NANOS_PER_MILLI,
+                histogram.valueAtPercentile(50) / NANOS_PER_MILLI,
+                histogram.valueAtPercentile(99) / NANOS_PER_MILLI,
+                histogram.valueAtPercentile(99.9) / NANOS_PER_MILLI,
+                histogram.max() / NANOS_PER_MILLI);
+    }
+
+    public @Nonnull List<PhaseTiming> timings() {
+        List<PhaseTiming> timings = new ArrayList<>(histograms.size());
+        for (FramePhase phase : FramePhase.values()) {
+            timings.add(timing(phase));
+        }
+        return timings;
+    }
+
+    public void reset() {
+        histograms.values().forEach(Histogram::reset);
+    }
+
+    public void log() {
+        for (PhaseTiming timing : timings()) {
+            if (timing.frames() == 0) {
+                continue;
+            }
+            logger.info("%-17s %8.3f ms mean, %8.3f ms median, %8.3f ms p99, %8.3f ms p99.9, %8.3f ms max over %d frames",
+                    timing.phase(), timing.meanMillis(), timing.medianMillis(), timing.p99Millis(),
+                    timing.p999Millis(), timing.maxMillis(), timing.frames());
+        }
+        // The render loop blocks on the fence when the GPU can't keep up, so a long wait means the GPU is the limit
+        PhaseTiming fenceWait = timing(FramePhase.FENCE_WAIT);
+        if (fenceWait.frames() > 0) {
+            double frameMillis = timings().stream().mapToDouble(PhaseTiming::meanMillis).sum();
+            logger.info("Waiting on the GPU for %.0f%% of the frame, %s-bound", fenceWait.meanMillis() / frameMillis * 100,
+                    fenceWait.meanMillis() > frameMillis / 2 ? "GPU" : "CPU");
+        }
+    }
+}
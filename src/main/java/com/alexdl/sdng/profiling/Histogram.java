@@ -0,0 +1,102 @@
+package com.alexdl.sdng.profiling;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of positive long values with a fixed relative precision, in the style of HdrHistogram: buckets double in
+ * width and each one is split into {@value #SUB_BUCKETS} linear sub-buckets, so any recorded value is off by at most
+ * 1/{@value #SUB_BUCKETS} of itself, whether it is a microsecond or a second.
+ * <p>
+ * Recording is lock-free and never allocates, so it can be done from any thread in the middle of a frame. Reads see
+ * each counter atomically but not all of them at the same instant, which only matters while values are being recorded.
+ */
+public class Histogram {
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = Long.SIZE - 1 - SUB_BUCKET_BITS;
+
+    private final AtomicLongArray counts;
+    private final AtomicLong totalCount;
+    private final AtomicLong sum;
+    private final AtomicLong max;
+
+    public Histogram() {
+        this.counts = new AtomicLongArray(BUCKETS * SUB_BUCKETS + SUB_BUCKETS);
+        this.totalCount = new AtomicLong();
+        this.sum = new AtomicLong();
+        this.max = new AtomicLong();
+    }
+
+    /**
+     * @param value negative values are recorded as 0
+     */
+    public void record(long value) {
+        value = Math.max(value, 0);
+        counts.incrementAndGet(indexOf(value));
+        totalCount.incrementAndGet();
+        sum.addAndGet(value);
+        max.accumulateAndGet(value, Math::max);
+    }
+
+    public long count() {
+        return totalCount.get();
+    }
+
+    public double mean() {
+        long count = totalCount.get();
+        return count > 0 ? (double) sum.get() / count : 0;
+    }
+
+    public long max() {
+        return max.get();
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return the highest value that is equivalent to the value at the given percentile
+     */
+    public long valueAtPercentile(double percentile) {
+        long count = totalCount.get();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * count));
+        long seen = 0;
+        for (int index = 0; index < counts.length(); index++) {
+            seen = seen + counts.get(index);
+            if (seen >= rank) {
+                return Math.min(highestValueOf(index), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    public void reset() {
+        for (int index = 0; index < counts.length(); index++) {
+            counts.set(index, 0);
+        }
+        totalCount.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+
+    private static int indexOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        // The bucket is picked by the highest set bit, the sub-bucket by the bits right below it
+        int bucket = Long.SIZE - 1 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        int subBucket = (int) (value >>> bucket) - SUB_BUCKETS;
+        return SUB_BUCKETS + bucket * SUB_BUCKETS + subBucket;
+    }
+
+    private static long highestValueOf(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int bucket = (index - SUB_BUCKETS) / SUB_BUCKETS;
+        int subBucket = (index - SUB_BUCKETS) % SUB_BUCKETS;
+        return ((long) (subBucket + SUB_BUCKETS + 1) << bucket) - 1;
+    }
+}
@@ -0,0 +1,46 @@
+package com.alexdl.sdng.profiling;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * A model loaded by the asset loader, lasting until everything it uploads is resident on the device.
+ */
+@Name("com.alexdl.sdng.ModelLoad")
+@Label("Model Load")
+@Category({"Shadow Engine", "Assets"})
+@Description("A model loaded and uploaded to the device")
+public class ModelLoadEvent extends jdk.jfr.Event {
+    @Label("URI")
+    public String uri;
+
+    @Label("Meshes")
+    public int meshes;
+
+    @Label("Materials")
+    public int materials;
+
+    @Label("Vertices")
+    public long vertices;
+
+    @Label("Indices")
+    public long indices;
+
+    @Label("Geometry Size")
+    @DataAmount
+    public long geometryBytes;
+
+    @Label("Parse Time")
+    @Description("Time spent importing the scene and building meshes and materials on the CPU")
+    @Timespan
+    public long parseTime;
+
+    @Label("Upload Time")
+    @Description("Time from submitting the uploads until they finished on the device")
+    @Timespan
+    public long uploadTime;
+}
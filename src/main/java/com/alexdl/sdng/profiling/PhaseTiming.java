@@ -0,0 +1,16 @@
+package com.alexdl.sdng.profiling;
+
+/**
+ * Time spent in a {@link FramePhase} over all frames since the profiler was created or reset.
+ *
+ * @param phase        the phase
+ * @param frames       number of frames the phase was measured in
+ * @param meanMillis   average time
+ * @param medianMillis 50th percentile
+ * @param p99Millis    99th percentile
+ * @param p999Millis   99.9th percentile
+ * @param maxMillis    slowest frame
+ */
+public record PhaseTiming(FramePhase phase, long frames, double meanMillis, double medianMillis, double p99Millis,
+                          double p999Millis, double maxMillis) {
+}
@@ -0,0 +1,27 @@
+package com.alexdl.sdng.profiling;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * A buffer or image bound to a range of a device memory block.
+ */
+@Name("com.alexdl.sdng.ResourceAllocation")
+@Label("Resource Allocation")
+@Category({"Shadow Engine", "Vulkan"})
+public class ResourceAllocationEvent extends jdk.jfr.Event {
+    @Label("Image")
+    public boolean image;
+
+    @Label("Size")
+    @DataAmount
+    public long bytes;
+
+    @Label("Alignment")
+    public long alignment;
+
+    @Label("Memory Type")
+    public int memoryTypeIndex;
+}
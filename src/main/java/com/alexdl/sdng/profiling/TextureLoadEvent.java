@@ -0,0 +1,34 @@
+package com.alexdl.sdng.profiling;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * A texture loaded by the asset loader, lasting until its pixels are resident on the device.
+ */
+@Name("com.alexdl.sdng.TextureLoad")
+@Label("Texture Load")
+@Category({"Shadow Engine", "Assets"})
+@Description("A texture decoded and uploaded to the device")
+public class TextureLoadEvent extends jdk.jfr.Event {
+    @Label("URI")
+    public String uri;
+
+    @Label("File Size")
+    @DataAmount
+    public long fileBytes;
+
+    @Label("Parse Time")
+    @Description("Time spent decoding the image and creating the device image")
+    @Timespan
+    public long parseTime;
+
+    @Label("Upload Time")
+    @Description("Time from queueing the upload until it finished on the device")
+    @Timespan
+    public long uploadTime;
+}
@@ -0,0 +1,669 @@
+package com.alexdl.sdng.spatial;
+
+import org.joml.FrustumIntersection;
+import org.joml.Vector3fc;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Consumer;
+
+/**
+ * A bounding volume hierarchy that is updated incrementally as objects are inserted, removed and moved, in the style
+ * of Box2D's dynamic tree.
+ * <p>
+ * Every leaf keeps the tight box of its object and a fat box around it that is larger by a margin and stretched in the
+ * direction the object last moved. Moving an object only touches the tree once it leaves its fat box, so objects that
+ * move a little every frame mostly cost a comparison. Leaves are inserted next to the sibling that grows the total
+ * surface area the least, and the tree is kept balanced with AVL rotations.
+ * <p>
+ * Nodes live in flat arrays indexed by node id and are recycled through a free list, so once the tree has grown to its
+ * working size moving objects and querying do not allocate, only inserting an object boxes its leaf id into the map
+ * from objects to leaves. Objects are keyed by identity. Queries only read the tree and can run on several threads at
+ * once, but not while it is being changed.
+ *
+ * @param <T> type of the objects, e.g. models
+ */
+public class DynamicAabbTree<T> {
+    private static final int NULL = -1;
+    private static final int INITIAL_CAPACITY = 64;
+    /** How far ahead of its last movement the fat box of a moving object reaches */
+    private static final float DISPLACEMENT_MULTIPLIER = 4;
+
+    private final float margin;
+    private final Map<T, Integer> leaves;
+
+    // Per node, boxes are stored as minX, minY, minZ, maxX, maxY, maxZ
+    private float[] fatBounds;
+    private float[] tightBounds;
+    private int[] parents;
+    private int[] children1;
+    private int[] children2;
+    private int[] heights;
+    private Object[] keys;
+
+    private int root;
+    private int freeList;
+
+    /**
+     * @param margin how much larger than its object a leaf's box is on every side
+     */
+    public DynamicAabbTree(float margin) {
+        this.margin = margin;
+        this.leaves = new IdentityHashMap<>();
+        this.root = NULL;
+        this.freeList = NULL;
+        grow(INITIAL_CAPACITY);
+    }
+
+    public int size() {
+        return leaves.size();
+    }
+
+    /**
+     * @return number of levels, 0 when empty
+     */
+    public int height() {
+        return root == NULL ? 0 : heights[root] + 1;
+    }
+
+    public boolean contains(@Nonnull T key) {
+        return leaves.containsKey(key);
+    }
+
+    public void insert(@Nonnull T key, @Nonnull Vector3fc min, @Nonnull Vector3fc max) {
+        if (leaves.containsKey(key)) {
+            throw new IllegalArgumentException("Already in the tree: " + key);
+        }
+        int leaf = allocateNode();
+        keys[leaf] = key;
+        heights[leaf] = 0;
+        setBox(tightBounds, leaf, min.x(), min.y(), min.z(), max.x(), max.y(), max.z());
+        setBox(fatBounds, leaf,
+                min.x() - margin, min.y() - margin, min.z() - margin,
+                max.x() + margin, max.y() + margin, max.z() + margin);
+        insertLeaf(leaf);
+        leaves.put(key, leaf);
+    }
+
+    /**
+     * @return whether the object was in the tree
+     */
+    public boolean remove(@Nonnull T key) {
+        Integer leaf = leaves.remove(key);
+        if (leaf == null) {
+            return false;
+        }
+        removeLeaf(leaf);
+        freeNode(leaf);
+        return true;
+    }
+
+    /**
+     * Updates the box of an object that is already in the tree.
+     *
+     * @return whether the leaf had to be reinserted because the object left its fat box
+     */
+    public boolean move(@Nonnull T key, @Nonnull Vector3fc min, @Nonnull Vector3fc max) {
+        Integer boxedLeaf = leaves.get(key);
+        if (boxedLeaf == null) {
+            throw new IllegalArgumentException("Not in the tree: " + key);
+        }
+        int leaf = boxedLeaf;
+        int offset = leaf * 6;
+        float displacementX = (min.x() + max.x() - tightBounds[offset] - tightBounds[offset + 3]) * 0.5f;
+        float displacementY = (min.y() + max.y() - tightBounds[offset + 1] - tightBounds[offset + 4]) * 0.5f;
+        float displacementZ = (min.z() + max.z() - tightBounds[offset + 2] - tightBounds[offset + 5]) * 0.5f;
+        setBox(tightBounds, leaf, min.x(), min.y(), min.z(), max.x(), max.y(), max.z());
+        if (contains(fatBounds, leaf, tightBounds, leaf)) {
+            return false;
+        }
+
+        removeLeaf(leaf);
+        float minX = min.x() - margin;
+        float minY = min.y() - margin;
+        float minZ = min.z() - margin;
+        float maxX = max.x() + margin;
+        float maxY = max.y() + margin;
+        float maxZ = max.z() + margin;
+        // Stretched in the direction of movement, so an object moving steadily does not leave its box every frame
+        float predictionX = displacementX * DISPLACEMENT_MULTIPLIER;
+        float predictionY = displacementY * DISPLACEMENT_MULTIPLIER;
+        float predictionZ = displacementZ * DISPLACEMENT_MULTIPLIER;
+        setBox(fatBounds, leaf,
+                predictionX < 0 ? minX + predictionX : minX,
+                predictionY < 0 ? minY + predictionY : minY,
+                predictionZ < 0 ? minZ + predictionZ : minZ,
+                predictionX > 0 ? maxX + predictionX : maxX,
+                predictionY > 0 ? maxY + predictionY : maxY,
+                predictionZ > 0 ? maxZ + predictionZ : maxZ);
+        insertLeaf(leaf);
+        return true;
+    }
+
+    public void clear() {
+        leaves.clear();
+        root = NULL;
+        freeList = NULL;
+        Arrays.fill(keys, null);
+        linkFreeList(0);
+    }
+
+    /**
+     * Calls {@code visitor} with every object whose box intersects the given box.
+     */
+    public void queryBox(@Nonnull Vector3fc min, @Nonnull Vector3fc max, @Nonnull Consumer<T> visitor) {
+        float minX = min.x(), minY = min.y(), minZ = min.z();
+        float maxX = max.x(), maxY = max.y(), maxZ = max.z();
+        NodeStack stack = new NodeStack();
+        stack.push(root);
+        while (!stack.isEmpty()) {
+            int node = stack.pop();
+            if (node == NULL || !overlaps(fatBounds, node, minX, minY, minZ, maxX, maxY, maxZ)) {
+                continue;
+            }
+            if (isLeaf(node)) {
+                if (overlaps(tightBounds, node, minX, minY, minZ, maxX, maxY, maxZ)) {
+                    visitor.accept(key(node));
+                }
+            } else {
+                stack.push(children1[node]);
+                stack.push(children2[node]);
+            }
+        }
+    }
+
+    /**
+     * Calls {@code visitor} with every object whose box intersects the given sphere.
+     */
+    public void querySphere(@Nonnull Vector3fc center, float radius, @Nonnull Consumer<T> visitor) {
+        float radiusSquared = radius * radius;
+        NodeStack stack = new NodeStack();
+        stack.push(root);
+        while (!stack.isEmpty()) {
+            int node = stack.pop();
+            if (node == NULL || distanceSquared(fatBounds, node, center) > radiusSquared) {
+                continue;
+            }
+            if (isLeaf(node)) {
+                if (distanceSquared(tightBounds, node, center) <= radiusSquared) {
+                    visitor.accept(key(node));
+                }
+            } else {
+                stack.push(children1[node]);
+                stack.push(children2[node]);
+            }
+        }
+    }
+
+    /**
+     * Calls {@code visitor} with every object whose box is at least partially inside the frustum. Subtrees that are
+     * entirely inside are reported without testing any of their nodes.
+     */
+    public void queryFrustum(@Nonnull FrustumIntersection frustum, @Nonnull Consumer<T> visitor) {
+        NodeStack stack = new NodeStack();
+        stack.push(root);
+        while (!stack.isEmpty()) {
+            int node = stack.pop();
+            if (node == NULL) {
+                continue;
+            }
+            int offset = node * 6;
+            int intersection = frustum.intersectAab(
+                    fatBounds[offset], fatBounds[offset + 1], fatBounds[offset + 2],
+                    fatBounds[offset + 3], fatBounds[offset + 4], fatBounds[offset + 5]);
+            if (intersection == FrustumIntersection.INSIDE) {
+                visitSubtree(node, visitor, stack);
+            } else if (intersection == FrustumIntersection.INTERSECT) {
+                if (isLeaf(node)) {
+                    if (frustum.testAab(
+                            tightBounds[offset], tightBounds[offset + 1], tightBounds[offset + 2],
+                            tightBounds[offset + 3], tightBounds[offset + 4], tightBounds[offset + 5])) {
+                        visitor.accept(key(node));
+                    }
+                } else {
+                    stack.push(children1[node]);
+                    stack.push(children2[node]);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the object whose box the ray enters first, or {@code null} when it hits nothing within its length
+     */
+    public @Nullable RayHit<T> raycast(@Nonnull Ray ray) {
+        float originX = ray.origin().x(), originY = ray.origin().y(), originZ = ray.origin().z();
+        // Divisions by zero give infinities, which the slab test handles
+        float inverseX = 1 / ray.direction().x(), inverseY = 1 / ray.direction().y(), inverseZ = 1 / ray.direction().z();
+
+        int closestNode = NULL;
+        float closestDistance = ray.maxDistance();
+        NodeStack stack = new NodeStack();
+        if (root != NULL) {
+            stack.push(root, rayDistance(fatBounds, root, originX, originY, originZ, inverseX, inverseY, inverseZ, closestDistance));
+        }
+        while (!stack.isEmpty()) {
+            float nodeDistance = stack.peekDistance();
+            int node = stack.pop();
+            // Negative when the ray misses, or beyond a hit that was found after the node was pushed
+            if (nodeDistance < 0 || nodeDistance > closestDistance) {
+                continue;
+            }
+            if (isLeaf(node)) {
+                float distance = rayDistance(tightBounds, node, originX, originY, originZ, inverseX, inverseY, inverseZ, closestDistance);
+                if (distance >= 0) {
+                    closestNode = node;
+                    closestDistance = distance;
+                }
+                continue;
+            }
+            // The nearer child is visited first, so that a hit in it prunes the farther one
+            int child1 = children1[node];
+            int child2 = children2[node];
+            float distance1 = rayDistance(fatBounds, child1, originX, originY, originZ, inverseX, inverseY, inverseZ, closestDistance);
+            float distance2 = rayDistance(fatBounds, child2, originX, originY, originZ, inverseX, inverseY, inverseZ, closestDistance);
+            if (distance1 <= distance2) {
+                stack.push(child2, distance2);
+                stack.push(child1, distance1);
+            } else {
+                stack.push(child1, distance1);
+                stack.push(child2, distance2);
+            }
+        }
+        return closestNode != NULL ? new RayHit<>(key(closestNode), closestDistance) : null;
+    }
+
+    /**
+     * Casts many rays at once, split across the threads of the pool.
+     *
+     * @return the hit of every ray, {@code null} for rays that hit nothing, in the order of the rays
+     */
+    @SuppressWarnings("unchecked")
+    public @Nonnull List<RayHit<T>> raycastAll(@Nonnull List<Ray> rays, @Nonnull ForkJoinPool pool) {
+        Object[] hits = new Object[rays.size()];
+        pool.invoke(new RaycastTask(rays, hits, 0, rays.size()));
+        return (List<RayHit<T>>) (List<?>) Arrays.asList(hits);
+    }
+
+    // Tasks only live for the duration of raycastAll and are never serialized
+    @SuppressWarnings("serial")
+    private class RaycastTask extends RecursiveAction {
+        /** Below this, splitting any further costs more than casting the rays */
+        private static final int RAYS_PER_TASK = 256;
+
+        private final List<Ray> rays;
+        private final Object[] hits;
+        private final int from;
+        private final int to;
+
+        private RaycastTask(List<Ray> rays, Object[] hits, int from, int to) {
+            this.rays = rays;
+            this.hits = hits;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= RAYS_PER_TASK) {
+                for (int i = from; i < to; i++) {
+                    hits[i] = raycast(rays.get(i));
+                }
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new RaycastTask(rays, hits, from, middle), new RaycastTask(rays, hits, middle, to));
+        }
+    }
+
+    private void visitSubtree(int subtreeRoot, Consumer<T> visitor, NodeStack stack) {
+        int depth = stack.size();
+        stack.push(subtreeRoot);
+        while (stack.size() > depth) {
+            int node = stack.pop();
+            if (isLeaf(node)) {
+                visitor.accept(key(node));
+            } else {
+                stack.push(children1[node]);
+                stack.push(children2[node]);
+            }
+        }
+    }
+
+    private void insertLeaf(int leaf) {
+        if (root == NULL) {
+            root = leaf;
+            parents[leaf] = NULL;
+            return;
+        }
+
+        // Walk down to the sibling whose box grows the least, counting the growth of every ancestor on the way
+        int index = root;
+        while (!isLeaf(index)) {
+            int child1 = children1[index];
+            int child2 = children2[index];
+            float area = surfaceArea(fatBounds, index);
+            float combinedArea = combinedSurfaceArea(index, leaf);
+            // Cost of making a new parent for this node and the leaf
+            float cost = 2 * combinedArea;
+            // Minimum cost of pushing the leaf further down the tree
+            float inheritanceCost = 2 * (combinedArea - area);
+            float cost1 = descendCost(child1, leaf) + inheritanceCost;
+            float cost2 = descendCost(child2, leaf) + inheritanceCost;
+            if (cost < cost1 && cost < cost2) {
+                break;
+            }
+            index = cost1 < cost2 ? child1 : child2;
+        }
+        int sibling = index;
+
+        int oldParent = parents[sibling];
+        int newParent = allocateNode();
+        parents[newParent] = oldParent;
+        keys[newParent] = null;
+        heights[newParent] = heights[sibling] + 1;
+        union(newParent, sibling, leaf);
+        if (oldParent != NULL) {
+            if (children1[oldParent] == sibling) {
+                children1[oldParent] = newParent;
+            } else {
+                children2[oldParent] = newParent;
+            }
+        } else {
+            root = newParent;
+        }
+        children1[newParent] = sibling;
+        children2[newParent] = leaf;
+        parents[sibling] = newParent;
+        parents[leaf] = newParent;
+
+        refit(parents[leaf]);
+    }
+
+    private void removeLeaf(int leaf) {
+        if (leaf == root) {
+            root = NULL;
+            return;
+        }
+        int parent = parents[leaf];
+        int grandParent = parents[parent];
+        int sibling = children1[parent] == leaf ? children2[parent] : children1[parent];
+        if (grandParent != NULL) {
+            if (children1[grandParent] == parent) {
+                children1[grandParent] = sibling;
+            } else {
+                children2[grandParent] = sibling;
+            }
+            parents[sibling] = grandParent;
+            freeNode(parent);
+            refit(grandParent);
+        } else {
+            root = sibling;
+            parents[sibling] = NULL;
+            freeNode(parent);
+        }
+    }
+
+    /**
+     * Rebalances and recomputes the boxes and heights from a node up to the root.
+     */
+    private void refit(int index) {
+        while (index != NULL) {
+            index = balance(index);
+            int child1 = children1[index];
+            int child2 = children2[index];
+            heights[index] = 1 + Math.max(heights[child1], heights[child2]);
+            union(index, child1, child2);
+            index = parents[index];
+        }
+    }
+
+    /**
+     * Rotates the taller child of a node up when its children's heights differ by more than one.
+     *
+     * @return the node that took the place of the given one
+     */
+    private int balance(int a) {
+        if (isLeaf(a) || heights[a] < 2) {
+            return a;
+        }
+        int b = children1[a];
+        int c = children2[a];
+        int balance = heights[c] - heights[b];
+        if (balance > 1) {
+            rotateUp(a, c, b, false);
+            return c;
+        }
+        if (balance < -1) {
+            rotateUp(a, b, c, true);
+            return b;
+        }
+        return a;
+    }
+
+    /**
+     * Makes {@code up} the parent of {@code a}, handing {@code up}'s shorter child to {@code a} in its place.
+     *
+     * @param stay      the child of {@code a} that stays
+     * @param upIsFirst whether {@code up} is the first child of {@code a}
+     */
+    private void rotateUp(int a, int up, int stay, boolean upIsFirst) {
+        int f = children1[up];
+        int g = children2[up];
+
+        children1[up] = a;
+        parents[up] = parents[a];
+        parents[a] = up;
+        if (parents[up] != NULL) {
+            if (children1[parents[up]] == a) {
+                children1[parents[up]] = up;
+            } else {
+                children2[parents[up]] = up;
+            }
+        } else {
+            root = up;
+        }
+
+        int taller = heights[f] > heights[g] ? f : g;
+        int shorter = taller == f ? g : f;
+        children2[up] = taller;
+        if (upIsFirst) {
+            children1[a] = shorter;
+        } else {
+            children2[a] = shorter;
+        }
+        parents[shorter] = a;
+        union(a, stay, shorter);
+        union(up, a, taller);
+        heights[a] = 1 + Math.max(heights[stay], heights[shorter]);
+        heights[up] = 1 + Math.max(heights[a], heights[taller]);
+    }
+
+    private float descendCost(int child, int leaf) {
+        float combinedArea = combinedSurfaceArea(child, leaf);
+        return isLeaf(child) ? combinedArea : combinedArea - surfaceArea(fatBounds, child);
+    }
+
+    private boolean isLeaf(int node) {
+        return children1[node] == NULL;
+    }
+
+    @SuppressWarnings("unchecked")
+    private T key(int node) {
+        return (T) keys[node];
+    }
+
+    private int allocateNode() {
+        if (freeList == NULL) {
+            grow(parents.length * 2);
+        }
+        int node = freeList;
+        freeList = parents[node];
+        parents[node] = NULL;
+        children1[node] = NULL;
+        children2[node] = NULL;
+        heights[node] = 0;
+        return node;
+    }
+
+    private void freeNode(int node) {
+        keys[node] = null;
+        heights[node] = -1;
+        parents[node] = freeList;
+        freeList = node;
+    }
+
+    private void grow(int capacity) {
+        int oldCapacity = parents == null ? 0 : parents.length;
+        fatBounds = fatBounds == null ? new float[capacity * 6] : Arrays.copyOf(fatBounds, capacity * 6);
+        tightBounds = tightBounds == null ? new float[capacity * 6] : Arrays.copyOf(tightBounds, capacity * 6);
+        parents = parents == null ? new int[capacity] : Arrays.copyOf(parents, capacity);
+        children1 = children1 == null ? new int[capacity] : Arrays.copyOf(children1, capacity);
+        children2 = children2 == null ? new int[capacity] : Arrays.copyOf(children2, capacity);
+        heights = heights == null ? new int[capacity] : Arrays.copyOf(heights, capacity);
+        keys = keys == null ? new Object[capacity] : Arrays.copyOf(keys, capacity);
+        linkFreeList(oldCapacity);
+    }
+
+    /**
+     * Puts every node from {@code first} to the end of the arrays on the free list, which has to be empty.
+     */
+    private void linkFreeList(int first) {
+        for (int node = first; node < parents.length - 1; node++) {
+            parents[node] = node + 1;
+            heights[node] = -1;
+        }
+        parents[parents.length - 1] = NULL;
+        heights[parents.length - 1] = -1;
+        freeList = first;
+    }
+
+    private void union(int destination, int node1, int node2) {
+        int d = destination * 6, a = node1 * 6, b = node2 * 6;
+        setBox(fatBounds, destination,
+                Math.min(fatBounds[a], fatBounds[b]),
+                Math.min(fatBounds[a + 1], fatBounds[b + 1]),
+                Math.min(fatBounds[a + 2], fatBounds[b + 2]),
+                Math.max(fatBounds[a + 3], fatBounds[b + 3]),
+                Math.max(fatBounds[a + 4], fatBounds[b + 4]),
+                Math.max(fatBounds[a + 5], fatBounds[b + 5]));
+        // Inner nodes have no object, their tight box is kept equal to the fat one
+        System.arraycopy(fatBounds, d, tightBounds, d, 6);
+    }
+
+    private float combinedSurfaceArea(int node1, int node2) {
+        int a = node1 * 6, b = node2 * 6;
+        float x = Math.max(fatBounds[a + 3], fatBounds[b + 3]) - Math.min(fatBounds[a], fatBounds[b]);
+        float y = Math.max(fatBounds[a + 4], fatBounds[b + 4]) - Math.min(fatBounds[a + 1], fatBounds[b + 1]);
+        float z = Math.max(fatBounds[a + 5], fatBounds[b + 5]) - Math.min(fatBounds[a + 2], fatBounds[b + 2]);
+        return 2 * (x * y + y * z + z * x);
+    }
+
+    private static float surfaceArea(float[] boxes, int node) {
+        int o = node * 6;
+        float x = boxes[o + 3] - boxes[o];
+        float y = boxes[o + 4] - boxes[o + 1];
+        float z = boxes[o + 5] - boxes[o + 2];
+        return 2 * (x * y + y * z + z * x);
+    }
+
+    private static void setBox(float[] boxes, int node, float minX, float minY, float minZ, float maxX, float maxY, float maxZ) {
+        int o = node * 6;
+        boxes[o] = minX;
+        boxes[o + 1] = minY;
+        boxes[o + 2] = minZ;
+        boxes[o + 3] = maxX;
+        boxes[o + 4] = maxY;
+        boxes[o + 5] = maxZ;
+    }
+
+    private static boolean contains(float[] outerBoxes, int outer, float[] innerBoxes, int inner) {
+        int o = outer * 6, i = inner * 6;
+        return outerBoxes[o] <= innerBoxes[i] && outerBoxes[o + 1] <= innerBoxes[i + 1] && outerBoxes[o + 2] <= innerBoxes[i + 2] &&
+               outerBoxes[o + 3] >= innerBoxes[i + 3] && outerBoxes[o + 4] >= innerBoxes[i + 4] && outerBoxes[o + 5] >= innerBoxes[i + 5];
+    }
+
+    private static boolean overlaps(float[] boxes, int node, float minX, float minY, float minZ, float maxX, float maxY, float maxZ) {
+        int o = node * 6;
+        return boxes[o] <= maxX && boxes[o + 1] <= maxY && boxes[o + 2] <= maxZ &&
+               boxes[o + 3] >= minX && boxes[o + 4] >= minY && boxes[o + 5] >= minZ;
+    }
+
+    private static float distanceSquared(float[] boxes, int node, Vector3fc point) {
+        int o = node * 6;
+        float dx = Math.max(Math.max(boxes[o] - point.x(), point.x() - boxes[o + 3]), 0);
+        float dy = Math.max(Math.max(boxes[o + 1] - point.y(), point.y() - boxes[o + 4]), 0);
+        float dz = Math.max(Math.max(boxes[o + 2] - point.z(), point.z() - boxes[o + 5]), 0);
+        return dx * dx + dy * dy + dz * dz;
+    }
+
+    /**
+     * @return distance along the ray at which it enters the box, 0 when it starts inside, or -1 when it misses the box
+     * or only reaches it beyond {@code maxDistance}
+     */
+    private static float rayDistance(float[] boxes, int node,
+                                     float originX, float originY, float originZ,
+                                     float inverseX, float inverseY, float inverseZ,
+                                     float maxDistance) {
+        int o = node * 6;
+        float x1 = (boxes[o] - originX) * inverseX, x2 = (boxes[o + 3] - originX) * inverseX;
+        float y1 = (boxes[o + 1] - originY) * inverseY, y2 = (boxes[o + 4] - originY) * inverseY;
+        float z1 = (boxes[o + 2] - originZ) * inverseZ, z2 = (boxes[o + 5] - originZ) * inverseZ;
+        float near = Math.max(Math.max(Math.min(x1, x2), Math.min(y1, y2)), Math.max(Math.min(z1, z2), 0));
+        float far = Math.min(Math.min(Math.max(x1, x2), Math.max(y1, y2)), Math.min(Math.max(z1, z2), maxDistance));
+        return near <= far ? near : -1;
+    }
+
+    /**
+     * A growable stack of node ids for the traversals, one per query so that queries can run concurrently.
+     */
+    private static final class NodeStack {
+        private int[] nodes = new int[64];
+        private float[] distances;
+        private int size;
+
+        void push(int node) {
+            if (size == nodes.length) {
+                nodes = Arrays.copyOf(nodes, size * 2);
+            }
+            nodes[size] = node;
+            size = size + 1;
+        }
+
+        /**
+         * Pushes a node together with the distance at which a ray enters it.
+         */
+        void push(int node, float distance) {
+            if (distances == null) {
+                distances = new float[nodes.length];
+            } else if (distances.length < nodes.length || size == distances.length) {
+                distances = Arrays.copyOf(distances, Math.max(nodes.length, size * 2));
+            }
+            distances[size] = distance;
+            push(node);
+        }
+
+        float peekDistance() {
+            return distances[size - 1];
+        }
+
+        int pop() {
+            size = size - 1;
+            return nodes[size];
+        }
+
+        int size() {
+            return size;
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+    }
+}
@@ -0,0 +1,11 @@
+package com.alexdl.sdng.spatial;
+
+import org.joml.Vector3fc;
+
+/**
+ * @param origin      where the ray starts
+ * @param direction   direction of the ray, distances along it are measured in multiples of its length
+ * @param maxDistance how far the ray reaches
+ */
+public record Ray(Vector3fc origin, Vector3fc direction, float maxDistance) {
+}
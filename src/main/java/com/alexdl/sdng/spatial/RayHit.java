@@ -0,0 +1,8 @@
+package com.alexdl.sdng.spatial;
+
+/**
+ * @param key      the object that was hit
+ * @param distance distance along the ray at which it enters the object's box, 0 when it starts inside
+ */
+public record RayHit<T>(T key, float distance) {
+}
@@ -0,0 +1,4 @@
+package org.lwjgl.vulkan;
+
+public record VkQueryPool(long address) {
+}
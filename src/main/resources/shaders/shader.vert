@@ -9,9 +9,9 @@ layout(set = 0, binding = 0) uniform ViewProjection {
     mat4 view;
 } viewProjection;
 
-layout(set = 0, binding = 1) uniform Model {
-    mat4 model;
-} model;
+layout(set = 0, binding = 1) readonly buffer Instances {
+    mat4 models[];
+} instances;
 
 layout(push_constant) uniform PushConstant {
     mat4 model;
@@ -23,7 +23,7 @@ layout(location = 1) out vec2 out_uv;
 void main() {
     out_color = color;
     out_uv = uv;
-    gl_Position = viewProjection.projection * viewProjection.view * model.model * pushConstant.model * vec4(position, 1.0);
+    gl_Position = viewProjection.projection * viewProjection.view * instances.models[gl_InstanceIndex] * pushConstant.model * vec4(position, 1.0);
 }
 
 